@@ -0,0 +1,99 @@
+/*
+ *  This file is part of Cubic Chunks, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2014 Tall Worlds
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package cubicchunks.bench;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cubicchunks.server.CubeRecord;
+
+/**
+ * Encoding and decoding one cube, the part of CubeIO that runs on the compression and loader threads.
+ * <p>
+ * Times are in ms, so ops/ms * 1000 is cubes/s and the bytes counter in bytes/ms is (roughly) MB/s.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CubeFormatBenchmark {
+	
+	private static final int NumSamples = 64;
+	
+	@Param({ "empty", "uniform", "noisy", "entities" })
+	public String kind;
+	
+	@Param({ "record", "nbt" })
+	public String format;
+	
+	private CubeRecord[] m_records;
+	private byte[][] m_encoded;
+	private int m_next;
+	
+	@Setup
+	public void setUp() throws IOException {
+		Random random = new Random(12345);
+		m_records = new CubeRecord[NumSamples];
+		m_encoded = new byte[NumSamples][];
+		for (int i = 0; i < NumSamples; i++) {
+			m_records[i] = CubeSamples.makeCube(this.kind, i, 0, 0, random);
+			m_encoded[i] = CubeSamples.encode(this.format, m_records[i]);
+		}
+		m_next = 0;
+	}
+	
+	@Benchmark
+	public byte[] encode(BytesCounter counter) throws IOException {
+		byte[] data = CubeSamples.encode(this.format, m_records[nextIndex()]);
+		counter.bytes += data.length;
+		return data;
+	}
+	
+	@Benchmark
+	public Object decode(BytesCounter counter) throws IOException {
+		byte[] data = m_encoded[nextIndex()];
+		counter.bytes += data.length;
+		return CubeSamples.decode(this.format, data);
+	}
+	
+	private int nextIndex() {
+		m_next = (m_next + 1) % NumSamples;
+		return m_next;
+	}
+}
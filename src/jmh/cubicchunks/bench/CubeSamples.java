@@ -0,0 +1,223 @@
+/*
+ *  This file is part of Cubic Chunks, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2014 Tall Worlds
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package cubicchunks.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import net.minecraft.nbt.CompressedStreamTools;
+import net.minecraft.nbt.NbtList;
+import net.minecraft.nbt.NbtTagCompound;
+import net.minecraft.world.chunk.NibbleArray;
+
+import cubicchunks.generator.GeneratorStage;
+import cubicchunks.server.CubeRecord;
+import cubicchunks.world.ChunkSectionHelper;
+
+/**
+ * Synthetic cubes for the storage benchmarks.
+ * <p>
+ * Block states use the vanilla encoding (block index << 4 | meta) directly, so no block registry is needed.
+ */
+public class CubeSamples {
+	
+	public static final String[] Kinds = { "empty", "uniform", "noisy", "entities" };
+	
+	private static final int NumBlocks = 16 * 16 * 16;
+	private static final int NumLightBytes = NumBlocks / 2;
+	
+	private static final char Air = 0;
+	private static final char Stone = 1 << 4;
+	private static final char Grass = 2 << 4;
+	private static final char Dirt = 3 << 4;
+	private static final char[] Ores = { 14 << 4, 15 << 4, 16 << 4, 21 << 4, 56 << 4, 73 << 4 };
+	
+	// entity-heavy cubes look like a mob farm
+	private static final int NumEntities = 200;
+	private static final int NumBlockEntities = 50;
+	
+	public static CubeRecord makeCube(String kind, int x, int y, int z, Random random) {
+		byte stage = (byte)GeneratorStage.LIVE.ordinal();
+		NbtTagCompound nbt = makeNbt(kind.equals("entities"), random);
+		
+		if (kind.equals("empty")) {
+			return new CubeRecord(x, y, z, stage, null, null, null, nbt);
+		}
+		
+		char[] blocks = new char[NumBlocks];
+		byte[] blockLight = new byte[NumLightBytes];
+		byte[] skyLight = new byte[NumLightBytes];
+		if (kind.equals("uniform")) {
+			Arrays.fill(blocks, Stone);
+		} else if (kind.equals("noisy") || kind.equals("entities")) {
+			makeTerrain(blocks, skyLight, random);
+		} else {
+			throw new IllegalArgumentException("Unknown cube kind: " + kind);
+		}
+		return new CubeRecord(x, y, z, stage, blocks, blockLight, skyLight, nbt);
+	}
+	
+	private static void makeTerrain(char[] blocks, byte[] skyLight, Random random) {
+		for (int localX = 0; localX < 16; localX++) {
+			for (int localZ = 0; localZ < 16; localZ++) {
+				
+				// a bumpy surface somewhere in the cube
+				int height = 6 + random.nextInt(6);
+				for (int localY = 0; localY < 16; localY++) {
+					int i = localY << 8 | localZ << 4 | localX;
+					char block;
+					if (localY > height) {
+						block = Air;
+						skyLight[i >> 1] |= 0xf << ((i & 1) << 2);
+					} else if (localY == height) {
+						block = Grass;
+					} else if (localY > height - 3) {
+						block = Dirt;
+					} else if (random.nextInt(20) == 0) {
+						block = Ores[random.nextInt(Ores.length)];
+					} else {
+						block = (char)(Stone | random.nextInt(7));
+					}
+					blocks[i] = block;
+				}
+			}
+		}
+	}
+	
+	private static NbtTagCompound makeNbt(boolean hasEntities, Random random) {
+		NbtTagCompound nbt = new NbtTagCompound();
+		NbtList nbtEntities = new NbtList();
+		NbtList nbtBlockEntities = new NbtList();
+		if (hasEntities) {
+			for (int i = 0; i < NumEntities; i++) {
+				NbtTagCompound nbtEntity = new NbtTagCompound();
+				nbtEntity.put("x", random.nextInt(16));
+				nbtEntity.put("y", random.nextInt(16));
+				nbtEntity.put("z", random.nextInt(16));
+				nbtEntity.put("Age", random.nextInt(24000));
+				nbtEntity.put("UUIDMost", random.nextLong());
+				nbtEntity.put("UUIDLeast", random.nextLong());
+				byte[] data = new byte[64];
+				random.nextBytes(data);
+				nbtEntity.put("Data", data);
+				nbtEntities.add(nbtEntity);
+			}
+			for (int i = 0; i < NumBlockEntities; i++) {
+				NbtTagCompound nbtBlockEntity = new NbtTagCompound();
+				nbtBlockEntity.put("x", random.nextInt(16));
+				nbtBlockEntity.put("y", random.nextInt(16));
+				nbtBlockEntity.put("z", random.nextInt(16));
+				nbtBlockEntity.put("Items", new byte[27 * 8]);
+				nbtBlockEntities.add(nbtBlockEntity);
+			}
+		}
+		nbt.put("Entities", nbtEntities);
+		nbt.put("TileEntities", nbtBlockEntities);
+		return nbt;
+	}
+	
+	public static byte[] encode(String format, CubeRecord record) throws IOException {
+		if (format.equals("nbt")) {
+			return encodeLegacy(record);
+		}
+		return record.encode();
+	}
+	
+	public static Object decode(String format, byte[] data) throws IOException {
+		if (format.equals("nbt")) {
+			return decodeLegacy(data);
+		}
+		return CubeRecord.decode(data);
+	}
+	
+	/**
+	 * Encodes the cube the way version 1 of the save format did, as one GZip NBT compound.
+	 */
+	public static byte[] encodeLegacy(CubeRecord record) throws IOException {
+		NbtTagCompound nbt = new NbtTagCompound();
+		nbt.put("v", (byte)1);
+		nbt.put("x", record.getX());
+		nbt.put("y", record.getY());
+		nbt.put("z", record.getZ());
+		nbt.put("GeneratorStage", record.getGeneratorStage());
+		
+		char[] blocks = record.getBlocks();
+		if (blocks != null) {
+			nbt.put("Blocks", ChunkSectionHelper.getBlockLSBArray(blocks));
+			NibbleArray blockIdMsbs = ChunkSectionHelper.getBlockMSBArray(blocks);
+			if (blockIdMsbs != null) {
+				nbt.put("Add", blockIdMsbs.get());
+			}
+			nbt.put("Data", ChunkSectionHelper.getBlockMetaArray(blocks).get());
+			nbt.put("BlockLight", record.getBlockLight());
+			if (record.getSkyLight() != null) {
+				nbt.put("SkyLight", record.getSkyLight());
+			}
+		}
+		
+		NbtTagCompound recordNbt = record.getNbt();
+		nbt.put("Entities", recordNbt.getAsNbtList("Entities", 10));
+		nbt.put("TileEntities", recordNbt.getAsNbtList("TileEntities", 10));
+		
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(buf);
+		CompressedStreamTools.writeNbtMapToOutputStream(nbt, out);
+		out.close();
+		return buf.toByteArray();
+	}
+	
+	/**
+	 * Decodes a version 1 cube as far as CubeIO does before it needs a world: the NBT and the block states.
+	 */
+	public static char[] decodeLegacy(byte[] data) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		NbtTagCompound nbt = CompressedStreamTools.readCompressedInputStream(in);
+		in.close();
+		
+		if (!nbt.containsKey("Blocks")) {
+			return null;
+		}
+		byte[] blockIdLsbs = nbt.getAsByteArray("Blocks");
+		NibbleArray blockIdMsbs = null;
+		if (nbt.containsKey("Add")) {
+			blockIdMsbs = new NibbleArray(nbt.getAsByteArray("Add"));
+		}
+		NibbleArray blockMetadata = new NibbleArray(nbt.getAsByteArray("Data"));
+		
+		char[] blocks = new char[NumBlocks];
+		for (int i = 0; i < NumBlocks; i++) {
+			int blockIndex = blockIdLsbs[i] & 0xff;
+			if (blockIdMsbs != null) {
+				blockIndex |= blockIdMsbs.getValue(i) << 8;
+			}
+			blocks[i] = (char)(blockIndex << 4 | blockMetadata.getValue(i));
+		}
+		return blocks;
+	}
+}
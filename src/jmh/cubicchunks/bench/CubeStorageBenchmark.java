@@ -0,0 +1,185 @@
+/*
+ *  This file is part of Cubic Chunks, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2014 Tall Worlds
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package cubicchunks.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cubicchunks.server.storage.ICubeStorage;
+import cubicchunks.server.storage.JournaledCubeStorage;
+import cubicchunks.server.storage.MapDBCubeStorage;
+import cubicchunks.server.storage.RegionCubeStorage;
+import cubicchunks.util.AddressTools;
+
+/**
+ * The save and load paths of CubeIO from the encoded cube down to the disk, for each storage backend.
+ * <p>
+ * Saves are batches of encoded cubes followed by a commit, like CubeIO.tryWrite. Loads read and decode either
+ * a stack of cubes (like ServerCubeCache.loadCubeStack) or single cubes at random (like the async loader).
+ * Scores are per cube: ops/ms * 1000 is cubes/s and the bytes counter in bytes/ms is (roughly) MB/s.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CubeStorageBenchmark {
+	
+	private static final int ColumnsSize = 16;
+	private static final int StackHeight = 16;
+	private static final int SaveBatchSize = 250;
+	private static final int NumSamples = 64;
+	
+	@Param({ "mapdb", "region" })
+	public String backend;
+	
+	@Param({ "batch", "journal" })
+	public String durability;
+	
+	@Param({ "record", "nbt" })
+	public String format;
+	
+	@Param({ "empty", "uniform", "noisy", "entities" })
+	public String kind;
+	
+	private File m_dir;
+	private ICubeStorage m_storage;
+	private byte[][] m_encoded;
+	private Random m_random;
+	private int m_nextSave;
+	private int m_nextStack;
+	
+	@Setup
+	public void setUp() throws IOException {
+		m_dir = File.createTempFile("cubes", "");
+		m_dir.delete();
+		m_dir.mkdirs();
+		
+		if (this.backend.equals("region")) {
+			m_storage = new RegionCubeStorage(m_dir);
+		} else {
+			m_storage = new MapDBCubeStorage(new File(m_dir, "cubes.db"));
+		}
+		if (this.durability.equals("journal")) {
+			m_storage = new JournaledCubeStorage(m_storage, new File(m_dir, "cubes.journal"), 30 * 1000, 64 * 1024 * 1024);
+		}
+		
+		m_random = new Random(12345);
+		m_encoded = new byte[NumSamples][];
+		for (int i = 0; i < NumSamples; i++) {
+			m_encoded[i] = CubeSamples.encode(this.format, CubeSamples.makeCube(this.kind, 0, i, 0, m_random));
+		}
+		
+		// fill the world so loads have something to find
+		int i = 0;
+		for (int cubeX = 0; cubeX < ColumnsSize; cubeX++) {
+			for (int cubeZ = 0; cubeZ < ColumnsSize; cubeZ++) {
+				for (int cubeY = 0; cubeY < StackHeight; cubeY++) {
+					m_storage.writeCube(AddressTools.getAddress(cubeX, cubeY, cubeZ), m_encoded[i++ % NumSamples]);
+				}
+			}
+		}
+		m_storage.commit();
+		
+		m_nextSave = 0;
+		m_nextStack = 0;
+	}
+	
+	@TearDown
+	public void tearDown() throws IOException {
+		m_storage.close();
+		delete(m_dir);
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(SaveBatchSize)
+	public void save(BytesCounter counter) throws IOException {
+		for (int i = 0; i < SaveBatchSize; i++) {
+			// overwrite the world in order, over and over
+			int index = m_nextSave++ % (ColumnsSize * ColumnsSize * StackHeight);
+			int cubeY = index % StackHeight;
+			int cubeZ = (index / StackHeight) % ColumnsSize;
+			int cubeX = index / StackHeight / ColumnsSize;
+			byte[] data = m_encoded[index % NumSamples];
+			m_storage.writeCube(AddressTools.getAddress(cubeX, cubeY, cubeZ), data);
+			counter.bytes += data.length;
+		}
+		m_storage.commit();
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(StackHeight)
+	public int loadStack(BytesCounter counter) throws IOException {
+		int column = m_nextStack++ % (ColumnsSize * ColumnsSize);
+		Map<Long,byte[]> out = new HashMap<Long,byte[]>();
+		m_storage.readCubes(column / ColumnsSize, column % ColumnsSize, 0, StackHeight - 1, out);
+		int numDecoded = 0;
+		for (byte[] data : out.values()) {
+			counter.bytes += data.length;
+			if (CubeSamples.decode(this.format, data) != null) {
+				numDecoded++;
+			}
+		}
+		return numDecoded;
+	}
+	
+	@Benchmark
+	public Object loadRandom(BytesCounter counter) throws IOException {
+		int cubeX = m_random.nextInt(ColumnsSize);
+		int cubeY = m_random.nextInt(StackHeight);
+		int cubeZ = m_random.nextInt(ColumnsSize);
+		byte[] data = m_storage.readCube(AddressTools.getAddress(cubeX, cubeY, cubeZ));
+		counter.bytes += data.length;
+		return CubeSamples.decode(this.format, data);
+	}
+	
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -52,6 +52,7 @@ import cubicchunks.client.ClientCubeCache;
 import cubicchunks.client.WorldClientContext;
 import cubicchunks.generator.GeneratorPipeline;
 import cubicchunks.generator.GeneratorStage;
+import cubicchunks.lighting.DiffuseLightingCalculator;
 import cubicchunks.lighting.LightingManager;
 import cubicchunks.server.CubePlayerManager;
 import cubicchunks.server.ServerCubeCache;
@@ -182,6 +183,14 @@ public class CubicChunkSystem implements ChunkSystem {
 		}
 	}
 
+	public void onServerStopped() {
+		// the worlds are saved by now, so write out whatever is still queued and close the storage
+		for (WorldServerContext context : WorldServerContext.getAll()) {
+			context.getCubeCache().close();
+		}
+		WorldServerContext.clear();
+	}
+
 	@Override
 	public Integer getRandomBlockYForMobSpawnAttempt(Random rand, int upper, World world, int cubeX, int cubeZ) {
 		// need to return a random blockY between the "bottom" of the world and upper
@@ -338,13 +347,18 @@ public class CubicChunkSystem implements ChunkSystem {
 	@Override
 	public Boolean updateLightingAt(World world, BlockPos pos) {
 		if (isTallWorld(world)) {
+			// can't fix the light until the area around the block is loaded
+			if (!DiffuseLightingCalculator.canLight(world, pos)) {
+				return false;
+			}
+			
+			// the lighting manager fixes the light for all the changed blocks at once at the end of the tick
 			LightingManager lightingManager = WorldContext.get(world).getLightingManager();
-			boolean success = false;
 			if (!world.dimension.hasNoSky()) {
-				success |= lightingManager.computeDiffuseLighting(pos, LightType.SKY);
+				lightingManager.queueDiffuseLightingCalculation(pos, LightType.SKY);
 			}
-			success |= lightingManager.computeDiffuseLighting(pos, LightType.BLOCK);
-			return success;
+			lightingManager.queueDiffuseLightingCalculation(pos, LightType.BLOCK);
+			return true;
 		}
 		return null;
 	}
@@ -0,0 +1,100 @@
+/*
+ *  This file is part of Cubic Chunks, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2014 Tall Worlds
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package cubicchunks;
+
+/**
+ * Tuning knobs for Tall Worlds servers.
+ * <p>
+ * Every value is read once from a system property named tallworlds.&lt;name&gt;, eg -Dtallworlds.storageBackend=region
+ */
+public class TallWorldsConfig {
+	
+	private static final String Prefix = "tallworlds.";
+	
+	// storage engine used by CubeIO: "mapdb" (one B-tree database per dimension) or "region" (memory-mapped region files)
+	public static final String StorageBackend = getString("storageBackend", "mapdb");
+	
+	// number of threads reading and decoding cubes for the server cube cache
+	public static final int LoaderThreads = getInt("loaderThreads", 2);
+	
+	// number of threads compressing cubes and columns before CubeIO writes them to storage
+	public static final int CompressionThreads = getInt("compressionThreads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+	
+	// number of threads computing first light for batches of new cubes (0 computes it on the tick thread)
+	// off by default, the bigger threaded batches are prepared and committed on the tick thread between budget checks
+	public static final int LightingThreads = getInt("lightingThreads", 0);
+	
+	// keep cube blocks in palette-compressed storage instead of vanilla chunk sections
+	public static final boolean PaletteBlockStorage = getBoolean("paletteBlockStorage", false);
+	
+	// keep server cube blocks and light in pooled direct buffers instead of on the heap (wins over paletteBlockStorage)
+	public static final boolean OffHeapBlockStorage = getBoolean("offHeapBlockStorage", false);
+	
+	// when CubeIO makes saved cubes durable:
+	// "batch" commits the storage after every save batch
+	// "group" commits once enough time has passed or enough bytes were written since the last commit
+	// "journal" syncs a write-ahead journal after every batch and only commits the storage at checkpoints
+	public static final String Durability = getString("durability", "batch");
+	
+	// group commit thresholds
+	public static final int GroupCommitMillis = getInt("groupCommitMillis", 1000);
+	public static final int GroupCommitBytes = getInt("groupCommitBytes", 16 * 1024 * 1024);
+	
+	// how often the journal is moved into the storage
+	public static final int JournalCheckpointMillis = getInt("journalCheckpointMillis", 30 * 1000);
+	public static final int JournalCheckpointBytes = getInt("journalCheckpointBytes", 64 * 1024 * 1024);
+	
+	// memory budget for recently unloaded cubes, kept compressed so walking back over them doesn't hit the disk (0 disables it)
+	public static final int ColdCubeCacheBytes = getInt("coldCubeCacheBytes", 64 * 1024 * 1024);
+	
+	// estimated heap the loaded cubes and columns may use before the least recently watched cubes get unloaded (0 disables it)
+	public static final int CubeMemoryBudgetMB = getInt("cubeMemoryBudgetMB", 0);
+	
+	// modified cubes and columns get saved in the background once they've waited this many ticks (0 leaves them all for the autosave)
+	public static final int IncrementalSaveTicks = getInt("incrementalSaveTicks", 20 * 30);
+	
+	private static String getString(String name, String defaultValue) {
+		return System.getProperty(Prefix + name, defaultValue);
+	}
+	
+	private static int getInt(String name, int defaultValue) {
+		String value = System.getProperty(Prefix + name);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException ex) {
+			return defaultValue;
+		}
+	}
+	
+	private static boolean getBoolean(String name, boolean defaultValue) {
+		String value = System.getProperty(Prefix + name);
+		if (value == null) {
+			return defaultValue;
+		}
+		return Boolean.parseBoolean(value.trim());
+	}
+}
@@ -25,6 +25,7 @@ package cubicchunks;
 
 import net.minecraftforge.fml.common.Mod;
 import net.minecraftforge.fml.common.event.FMLInitializationEvent;
+import net.minecraftforge.fml.common.event.FMLServerStoppedEvent;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -78,4 +79,9 @@ public class TallWorldsMod {
 			log.error("Cannot register cubic chunk system. Someone else beat us to it. =(", ex);
 		}
 	}
+	
+	@Mod.EventHandler
+	public void serverStopped(FMLServerStoppedEvent event) {
+		m_system.onServerStopped();
+	}
 }
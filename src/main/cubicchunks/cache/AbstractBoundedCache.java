@@ -0,0 +1,165 @@
+/*
+ *  This file is part of Cubic Chunks, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2014 Tall Worlds
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package cubicchunks.cache;
+
+/**
+ * The eviction and bookkeeping half of the bounded caches.
+ * <p>
+ * Entries live on an intrusive doubly-linked list in recency order, so a hit or an eviction is a couple of pointer swaps.
+ * Subclasses own the key index and drop entries from it when they're evicted.
+ */
+abstract class AbstractBoundedCache<V> {
+	
+	static class Node<V> {
+		
+		V value;
+		int weight;
+		Node<V> prev;
+		Node<V> next;
+	}
+	
+	private final long m_maxWeight;
+	private final ICacheWeigher<? super V> m_weigher;
+	
+	// sentinel, next is the most recently used entry and prev is the least
+	private final Node<V> m_head;
+	private long m_weight;
+	private long m_hits;
+	private long m_misses;
+	private long m_evictions;
+	
+	protected AbstractBoundedCache(long maxWeight, ICacheWeigher<? super V> weigher) {
+		if (maxWeight <= 0) {
+			throw new IllegalArgumentException("Max weight must be positive: " + maxWeight);
+		}
+		m_maxWeight = maxWeight;
+		m_weigher = weigher;
+		m_head = new Node<V>();
+		m_head.prev = m_head;
+		m_head.next = m_head;
+		m_weight = 0;
+	}
+	
+	public long getMaxWeight() {
+		return m_maxWeight;
+	}
+	
+	public long getWeight() {
+		return m_weight;
+	}
+	
+	public long getHits() {
+		return m_hits;
+	}
+	
+	public long getMisses() {
+		return m_misses;
+	}
+	
+	public long getEvictions() {
+		return m_evictions;
+	}
+	
+	public double getHitRate() {
+		long numRequests = m_hits + m_misses;
+		return numRequests == 0 ? 0 : (double)m_hits / numRequests;
+	}
+	
+	public void resetStats() {
+		m_hits = 0;
+		m_misses = 0;
+		m_evictions = 0;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("%s[weight=%d/%d, hits=%d, misses=%d, evictions=%d]",
+			getClass().getSimpleName(), m_weight, m_maxWeight, m_hits, m_misses, m_evictions
+		);
+	}
+	
+	protected V onHit(Node<V> node) {
+		m_hits++;
+		unlink(node);
+		linkFirst(node);
+		return node.value;
+	}
+	
+	protected void onMiss() {
+		m_misses++;
+	}
+	
+	/**
+	 * Sets the node's value, makes it the most recently used entry, then evicts until the cache fits its budget again.
+	 * The node must not be linked.
+	 */
+	protected void add(Node<V> node, V value) {
+		node.value = value;
+		node.weight = m_weigher == null ? 1 : m_weigher.getWeight(value);
+		if (node.weight < 0) {
+			throw new IllegalArgumentException("Negative weight: " + node.weight);
+		}
+		m_weight += node.weight;
+		linkFirst(node);
+		
+		while (m_weight > m_maxWeight) {
+			Node<V> eldest = m_head.prev;
+			unlink(eldest);
+			m_weight -= eldest.weight;
+			removeFromIndex(eldest);
+			m_evictions++;
+		}
+	}
+	
+	protected V removeNode(Node<V> node) {
+		unlink(node);
+		m_weight -= node.weight;
+		return node.value;
+	}
+	
+	protected void clearNodes() {
+		m_head.prev = m_head;
+		m_head.next = m_head;
+		m_weight = 0;
+	}
+	
+	/**
+	 * Called when an entry is evicted, the node is already unlinked.
+	 */
+	protected abstract void removeFromIndex(Node<V> node);
+	
+	private void linkFirst(Node<V> node) {
+		node.prev = m_head;
+		node.next = m_head.next;
+		m_head.next.prev = node;
+		m_head.next = node;
+	}
+	
+	private void unlink(Node<V> node) {
+		node.prev.next = node.next;
+		node.next.prev = node.prev;
+		node.prev = null;
+		node.next = null;
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ *  This file is part of Cubic Chunks, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2014 Tall Worlds
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package cubicchunks.cache;
+
+import java.util.HashMap;
+
+/**
+ * Least-recently-used cache with a hard budget.
+ * <p>
+ * Every value has a weight, 1 by default or whatever the {@link ICacheWeigher} says (eg bytes),
+ * and the least recently used entries are evicted as soon as the total weight goes over the budget.
+ * Values are held strongly, so what's in the cache doesn't depend on the garbage collector.
+ * <p>
+ * Not thread-safe.
+ */
+public class BoundedCache<K,V> extends AbstractBoundedCache<V> {
+	
+	private static class KeyNode<K,V> extends Node<V> {
+		
+		final K key;
+		
+		KeyNode(K key) {
+			this.key = key;
+		}
+	}
+	
+	private HashMap<K,KeyNode<K,V>> m_index;
+	
+	public BoundedCache(long maxSize) {
+		this(maxSize, null);
+	}
+	
+	public BoundedCache(long maxWeight, ICacheWeigher<? super V> weigher) {
+		super(maxWeight, weigher);
+		m_index = new HashMap<K,KeyNode<K,V>>();
+	}
+	
+	public int size() {
+		return m_index.size();
+	}
+	
+	public boolean isEmpty() {
+		return m_index.isEmpty();
+	}
+	
+	/**
+	 * Doesn't count as a use of the entry, and doesn't touch the stats.
+	 */
+	public boolean containsKey(K key) {
+		return m_index.containsKey(key);
+	}
+	
+	public V get(K key) {
+		KeyNode<K,V> node = m_index.get(key);
+		if (node == null) {
+			onMiss();
+			return null;
+		}
+		return onHit(node);
+	}
+	
+	public V put(K key, V value) {
+		if (value == null) {
+			throw new IllegalArgumentException("Value can't be null");
+		}
+		V oldValue = remove(key);
+		KeyNode<K,V> node = new KeyNode<K,V>(key);
+		m_index.put(key, node);
+		add(node, value);
+		return oldValue;
+	}
+	
+	public V remove(K key) {
+		KeyNode<K,V> node = m_index.remove(key);
+		if (node == null) {
+			return null;
+		}
+		return removeNode(node);
+	}
+	
+	public void clear() {
+		m_index.clear();
+		clearNodes();
+	}
+	
+	@Override
+	@SuppressWarnings("unchecked")
+	protected void removeFromIndex(Node<V> node) {
+		m_index.remove(((KeyNode<K,V>)node).key);
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ *  This file is part of Cubic Chunks, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2014 Tall Worlds
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package cubicchunks.cache;
+
+import cubicchunks.util.Long2ObjectMap;
+
+/**
+ * {@link BoundedCache} for primitive long keys like cube and column addresses, so lookups don't box the key.
+ * <p>
+ * Not thread-safe.
+ */
+public class LongBoundedCache<V> extends AbstractBoundedCache<V> {
+	
+	private static class LongNode<V> extends Node<V> {
+		
+		final long key;
+		
+		LongNode(long key) {
+			this.key = key;
+		}
+	}
+	
+	private Long2ObjectMap<LongNode<V>> m_index;
+	
+	public LongBoundedCache(long maxSize) {
+		this(maxSize, null);
+	}
+	
+	public LongBoundedCache(long maxWeight, ICacheWeigher<? super V> weigher) {
+		super(maxWeight, weigher);
+		m_index = new Long2ObjectMap<LongNode<V>>();
+	}
+	
+	public int size() {
+		return m_index.size();
+	}
+	
+	public boolean isEmpty() {
+		return m_index.isEmpty();
+	}
+	
+	/**
+	 * Doesn't count as a use of the entry, and doesn't touch the stats.
+	 */
+	public boolean containsKey(long key) {
+		return m_index.containsKey(key);
+	}
+	
+	public V get(long key) {
+		LongNode<V> node = m_index.get(key);
+		if (node == null) {
+			onMiss();
+			return null;
+		}
+		return onHit(node);
+	}
+	
+	public V put(long key, V value) {
+		if (value == null) {
+			throw new IllegalArgumentException("Value can't be null");
+		}
+		V oldValue = remove(key);
+		LongNode<V> node = new LongNode<V>(key);
+		m_index.put(key, node);
+		add(node, value);
+		return oldValue;
+	}
+	
+	public V remove(long key) {
+		LongNode<V> node = m_index.remove(key);
+		if (node == null) {
+			return null;
+		}
+		return removeNode(node);
+	}
+	
+	public void clear() {
+		m_index.clear();
+		clearNodes();
+	}
+	
+	@Override
+	protected void removeFromIndex(Node<V> node) {
+		m_index.remove(((LongNode<V>)node).key);
+	}
+}
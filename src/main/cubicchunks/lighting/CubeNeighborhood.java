@@ -0,0 +1,230 @@
+/*
+ *  This file is part of Cubic Chunks, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2014 Tall Worlds
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package cubicchunks.lighting;
+
+import net.minecraft.block.Block;
+import net.minecraft.util.BlockPos;
+import net.minecraft.world.LightType;
+import net.minecraft.world.World;
+
+import cubicchunks.util.Coords;
+import cubicchunks.world.ICubeCache;
+import cubicchunks.world.cube.Cube;
+import cubicchunks.world.cube.IBlockStorage;
+
+/**
+ * Light access for the 3x3x3 cubes around one cube, for the lighting loops that touch the same few cubes over and over.
+ * <p>
+ * The cubes are looked up once in {@link #pin}. After that, reads go straight to the block storages and writes
+ * go into the light nibble arrays, found by index arithmetic instead of going through the world, column and cube.
+ * Blocks outside the neighborhood fall back to the world. Call {@link #unpin} to hand the changed light back to the cubes.
+ */
+public class CubeNeighborhood {
+	
+	private static final int NumCubes = 3 * 3 * 3;
+	
+	private World world;
+	private boolean hasSky;
+	private int minBlockX;
+	private int minBlockY;
+	private int minBlockZ;
+	private Cube[] cubes;
+	private IBlockStorage[] storages;
+	
+	// the light arrays of the cubes we wrote to, indexed like the cubes
+	private byte[][] blockLight;
+	private byte[][] skyLight;
+	
+	private BlockPos.MutableBlockPos worldPos;
+	
+	public CubeNeighborhood() {
+		this.world = null;
+		this.cubes = new Cube[NumCubes];
+		this.storages = new IBlockStorage[NumCubes];
+		this.blockLight = new byte[NumCubes][];
+		this.skyLight = new byte[NumCubes][];
+		this.worldPos = new BlockPos.MutableBlockPos();
+	}
+	
+	public void pin(World world, ICubeCache cache, int cubeX, int cubeY, int cubeZ) {
+		this.world = world;
+		this.hasSky = !world.dimension.hasNoSky();
+		
+		// the neighborhood starts at the min corner of the -1,-1,-1 cube
+		this.minBlockX = Coords.cubeToMinBlock(cubeX - 1);
+		this.minBlockY = Coords.cubeToMinBlock(cubeY - 1);
+		this.minBlockZ = Coords.cubeToMinBlock(cubeZ - 1);
+		
+		for (int dx = 0; dx < 3; dx++) {
+			for (int dy = 0; dy < 3; dy++) {
+				for (int dz = 0; dz < 3; dz++) {
+					int i = getCubeIndex(dx, dy, dz);
+					Cube cube = cache.getCube(cubeX + dx - 1, cubeY + dy - 1, cubeZ + dz - 1);
+					this.cubes[i] = cube;
+					this.storages[i] = cube == null || cube.isEmpty() ? null : cube.getStorage();
+				}
+			}
+		}
+	}
+	
+	public void unpin() {
+		for (int i = 0; i < NumCubes; i++) {
+			Cube cube = this.cubes[i];
+			boolean isModified = false;
+			if (this.blockLight[i] != null) {
+				cube.setLightData(LightType.BLOCK, this.blockLight[i]);
+				isModified = true;
+			}
+			if (this.skyLight[i] != null) {
+				cube.setLightData(LightType.SKY, this.skyLight[i]);
+				isModified = true;
+			}
+			if (isModified) {
+				// columns count light changes in their cubes as modifications too
+				cube.getColumn().setModified(true);
+				if (this.world.isClient) {
+					cube.markForRenderUpdate();
+				}
+			}
+			
+			this.cubes[i] = null;
+			this.storages[i] = null;
+			this.blockLight[i] = null;
+			this.skyLight[i] = null;
+		}
+		this.world = null;
+	}
+	
+	/**
+	 * Only blocks in existing, non-empty cubes of the neighborhood can take new light.
+	 */
+	public boolean isLightModifiable(int blockX, int blockY, int blockZ) {
+		int i = getCubeIndexForBlock(blockX, blockY, blockZ);
+		return i >= 0 && this.storages[i] != null;
+	}
+	
+	public int getLight(LightType lightType, int blockX, int blockY, int blockZ) {
+		
+		int i = getCubeIndexForBlock(blockX, blockY, blockZ);
+		if (i < 0 || this.storages[i] == null) {
+			// outside the neighborhood or no blocks to hold light, the world knows the defaults
+			return this.world.getLightAt(lightType, setWorldPos(blockX, blockY, blockZ));
+		}
+		
+		// read the nibble if we have the array, otherwise just ask the storage
+		byte[] light = getLightArray(lightType, i);
+		if (light != null) {
+			return getNibble(light, getBlockIndex(blockX, blockY, blockZ));
+		}
+		if (lightType == LightType.SKY) {
+			if (!this.hasSky) {
+				return 0;
+			}
+			return this.storages[i].getSkyLight(blockX & 0xf, blockY & 0xf, blockZ & 0xf);
+		}
+		return this.storages[i].getBlockLight(blockX & 0xf, blockY & 0xf, blockZ & 0xf);
+	}
+	
+	/**
+	 * Only call this on blocks where {@link #isLightModifiable} says yes.
+	 */
+	public void setLight(LightType lightType, int blockX, int blockY, int blockZ, int light) {
+		
+		int i = getCubeIndexForBlock(blockX, blockY, blockZ);
+		assert (i >= 0 && this.storages[i] != null);
+		
+		if (lightType == LightType.SKY && !this.hasSky) {
+			return;
+		}
+		
+		// get the arrays from the storage the first time we write to a cube
+		byte[] data = getLightArray(lightType, i);
+		if (data == null) {
+			if (lightType == LightType.SKY) {
+				data = this.storages[i].getSkyLightData();
+				this.skyLight[i] = data;
+			} else {
+				data = this.storages[i].getBlockLightData();
+				this.blockLight[i] = data;
+			}
+		}
+		setNibble(data, getBlockIndex(blockX, blockY, blockZ), light);
+	}
+	
+	public Block getBlock(int blockX, int blockY, int blockZ) {
+		int i = getCubeIndexForBlock(blockX, blockY, blockZ);
+		if (i < 0 || this.storages[i] == null) {
+			return this.world.getBlockStateAt(setWorldPos(blockX, blockY, blockZ)).getBlock();
+		}
+		return this.storages[i].getBlock(blockX & 0xf, blockY & 0xf, blockZ & 0xf);
+	}
+	
+	public boolean canSeeSky(int blockX, int blockY, int blockZ) {
+		int i = getCubeIndexForBlock(blockX, blockY, blockZ);
+		if (i < 0 || this.cubes[i] == null) {
+			return this.world.canSeeSky(setWorldPos(blockX, blockY, blockZ));
+		}
+		
+		// all the cubes in a stack share the column, and the column knows where the sky light stops
+		Integer skylightBlockY = this.cubes[i].getColumn().getSkylightBlockY(blockX & 0xf, blockZ & 0xf);
+		return skylightBlockY == null || blockY >= skylightBlockY;
+	}
+	
+	private byte[] getLightArray(LightType lightType, int i) {
+		return lightType == LightType.SKY ? this.skyLight[i] : this.blockLight[i];
+	}
+	
+	private int getCubeIndexForBlock(int blockX, int blockY, int blockZ) {
+		int x = blockX - this.minBlockX;
+		int y = blockY - this.minBlockY;
+		int z = blockZ - this.minBlockZ;
+		if ((x | y | z) < 0 || x >= 48 || y >= 48 || z >= 48) {
+			return -1;
+		}
+		return getCubeIndex(x >> 4, y >> 4, z >> 4);
+	}
+	
+	private static int getCubeIndex(int dx, int dy, int dz) {
+		return (dx * 3 + dy) * 3 + dz;
+	}
+	
+	private static int getBlockIndex(int blockX, int blockY, int blockZ) {
+		// the vanilla nibble layout
+		return (blockY & 0xf) << 8 | (blockZ & 0xf) << 4 | (blockX & 0xf);
+	}
+	
+	private static int getNibble(byte[] data, int i) {
+		return (data[i >> 1] >> ((i & 1) << 2)) & 0xf;
+	}
+	
+	private static void setNibble(byte[] data, int i, int val) {
+		int shift = (i & 1) << 2;
+		data[i >> 1] = (byte)((data[i >> 1] & ~(0xf << shift)) | ((val & 0xf) << shift));
+	}
+	
+	private BlockPos setWorldPos(int blockX, int blockY, int blockZ) {
+		this.worldPos.setBlockPos(blockX, blockY, blockZ);
+		return this.worldPos;
+	}
+}
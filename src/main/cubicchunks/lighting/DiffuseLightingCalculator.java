@@ -23,10 +23,13 @@
  */
 package cubicchunks.lighting;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import net.minecraft.block.Block;
 import net.minecraft.util.BlockPos;
 import net.minecraft.util.Facing;
-import net.minecraft.util.MathHelper;
 import net.minecraft.world.LightType;
 import net.minecraft.world.World;
 
@@ -34,68 +37,222 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import cubicchunks.generator.GeneratorStage;
+import cubicchunks.util.AddressTools;
 import cubicchunks.util.Bits;
 import cubicchunks.util.Coords;
 import cubicchunks.util.FastIntQueue;
-import cubicchunks.world.ICubeCache;
+import cubicchunks.util.Long2ObjectMap;
 import cubicchunks.world.WorldContext;
-import cubicchunks.world.cube.Cube;
 
+/**
+ * Collects the blocks whose light might have changed and fixes them up all at once.
+ * <p>
+ * Changed blocks are grouped by cube. Each cube gets a single subtract-then-add pass seeded with all its changed blocks,
+ * so nearby changes share the work instead of each flooding the same area again.
+ * Light can't spread further than one cube away, so each pass runs on the cube's pinned {@link CubeNeighborhood}.
+ */
 public class DiffuseLightingCalculator {
 	
 	private static final Logger log = LogManager.getLogger();
 	
+	// light can't spread further than this from a changed block
+	private static final int MaxDistance = 16;
+	
+	private static final int CubeCenter = 8;
+	
 	private FastIntQueue queue;
+	private CubeNeighborhood neighborhood;
+	private Long2ObjectMap<SeedList> skyLightSeeds;
+	private Long2ObjectMap<SeedList> blockLightSeeds;
+	private int numSeeds;
+	private int numMergedSeeds;
+	private int numDeferredSeeds;
+	private int numDroppedSeeds;
+	private int numUpdates;
 	
 	public DiffuseLightingCalculator() {
 		this.queue = new FastIntQueue();
+		this.neighborhood = new CubeNeighborhood();
+		this.skyLightSeeds = new Long2ObjectMap<SeedList>();
+		this.blockLightSeeds = new Long2ObjectMap<SeedList>();
+		this.numSeeds = 0;
+		this.numMergedSeeds = 0;
+		this.numDeferredSeeds = 0;
+		this.numDroppedSeeds = 0;
+		this.numUpdates = 0;
+	}
+	
+	/**
+	 * Returns true if enough blocks around pos are loaded to fix its light.
+	 */
+	public static boolean canLight(World world, BlockPos pos) {
+		return WorldContext.get(world).blocksExist(pos, MaxDistance, true, GeneratorStage.LIGHTING);
+	}
+	
+	/**
+	 * Remembers that the light at this block might be wrong. It gets fixed in the next {@link #processBatch}.
+	 */
+	public void add(BlockPos pos, LightType lightType) {
+		long cubeAddress = AddressTools.getAddress(
+			Coords.blockToCube(pos.getX()),
+			Coords.blockToCube(pos.getY()),
+			Coords.blockToCube(pos.getZ())
+		);
+		
+		Long2ObjectMap<SeedList> seeds = getSeeds(lightType);
+		SeedList cubeSeeds = seeds.get(cubeAddress);
+		if (cubeSeeds == null) {
+			cubeSeeds = new SeedList();
+			seeds.put(cubeAddress, cubeSeeds);
+		}
+		cubeSeeds.add(packUpdate(
+			Coords.blockToLocal(pos.getX()) - CubeCenter,
+			Coords.blockToLocal(pos.getY()) - CubeCenter,
+			Coords.blockToLocal(pos.getZ()) - CubeCenter,
+			0, 0
+		));
+	}
+	
+	public boolean hasSeeds() {
+		return !this.skyLightSeeds.isEmpty() || !this.blockLightSeeds.isEmpty();
 	}
 	
-	public boolean calculate(World world, BlockPos pos, LightType lightType) {
+	/**
+	 * Fixes the light around all the blocks added since the last batch.
+	 * Returns the number of distinct blocks that were looked at.
+	 */
+	public int processBatch(World world) {
+		this.numSeeds = 0;
+		this.numMergedSeeds = 0;
+		this.numDeferredSeeds = 0;
+		this.numDroppedSeeds = 0;
+		this.numUpdates = 0;
+		
+		// do all the sky light first, block light doesn't care about it
+		processSeeds(world, this.skyLightSeeds, LightType.SKY);
+		processSeeds(world, this.blockLightSeeds, LightType.BLOCK);
+		
+		return this.numSeeds - this.numMergedSeeds - this.numDeferredSeeds - this.numDroppedSeeds;
+	}
+	
+	public String getProcessingReport() {
+		return String.format("\t%22s: %3d seeds, %d merged, %d deferred, %d dropped, %d light updates", "Diffuse Lighting",
+			this.numSeeds, this.numMergedSeeds, this.numDeferredSeeds, this.numDroppedSeeds, this.numUpdates
+		);
+	}
+	
+	private Long2ObjectMap<SeedList> getSeeds(LightType lightType) {
+		return lightType == LightType.SKY ? this.skyLightSeeds : this.blockLightSeeds;
+	}
+	
+	private void processSeeds(World world, Long2ObjectMap<SeedList> seeds, LightType lightType) {
 		
-		// are there enough nearby blocks to do the lighting?
 		WorldContext worldContext = WorldContext.get(world);
+		BlockPos.MutableBlockPos originPos = new BlockPos.MutableBlockPos();
+		List<Long> deferredAddresses = null;
+		List<SeedList> deferredSeeds = null;
+		for (int i = seeds.firstIndex(); i >= 0; i = seeds.nextIndex(i)) {
+			long cubeAddress = seeds.getKeyAt(i);
+			int cubeX = AddressTools.getX(cubeAddress);
+			int cubeY = AddressTools.getY(cubeAddress);
+			int cubeZ = AddressTools.getZ(cubeAddress);
+			originPos.setBlockPos(
+				Coords.cubeToMinBlock(cubeX) + CubeCenter,
+				Coords.cubeToMinBlock(cubeY) + CubeCenter,
+				Coords.cubeToMinBlock(cubeZ) + CubeCenter
+			);
+			
+			SeedList cubeSeeds = seeds.getValueAt(i);
+			this.numSeeds += cubeSeeds.size;
+			this.numMergedSeeds += cubeSeeds.removeDuplicates();
+			
+			// are there enough nearby blocks to do the lighting?
+			// every block in the cube is close enough to all the neighboring cubes, so just check from the middle
+			if (!worldContext.blocksExist(originPos, MaxDistance, true, GeneratorStage.LIGHTING)) {
+				if (worldContext.getCubeCache().cubeExists(cubeX, cubeY, cubeZ)) {
+					// try again next tick, the neighbors are probably still loading
+					if (deferredAddresses == null) {
+						deferredAddresses = new ArrayList<Long>();
+						deferredSeeds = new ArrayList<SeedList>();
+					}
+					deferredAddresses.add(cubeAddress);
+					deferredSeeds.add(cubeSeeds);
+					this.numDeferredSeeds += cubeSeeds.size;
+				} else {
+					// the cube is gone, first light fixes it up when it comes back
+					this.numDroppedSeeds += cubeSeeds.size;
+				}
+				continue;
+			}
+			
+			// NOTE: cubes can't load or unload while we're calculating, so the pinned cubes stay good for the whole pass
+			this.neighborhood.pin(world, worldContext.getCubeCache(), cubeX, cubeY, cubeZ);
+			calculate(world, originPos, cubeSeeds, lightType);
+			this.neighborhood.unpin();
+		}
+		seeds.clear();
 		
-		if (!worldContext.blocksExist(pos, 16, true, GeneratorStage.LIGHTING)) {
-			return false;
+		if (deferredAddresses != null) {
+			for (int i = 0; i < deferredAddresses.size(); i++) {
+				seeds.put(deferredAddresses.get(i), deferredSeeds.get(i));
+			}
 		}
+	}
+	
+	private void calculate(World world, BlockPos origin, SeedList seeds, LightType lightType) {
+		
+		BlockPos.MutableBlockPos seedPos = new BlockPos.MutableBlockPos();
 		
 		this.queue.clear();
 		
-		// did we add or subtract light?
-		int oldLight = world.getLightAt(lightType, pos);
-		int newLight = computeLightValue(world, pos, lightType);
-		if (newLight > oldLight) {
-			// seed processing with this block
-			this.queue.add(packUpdate(0, 0, 0, 0));
-		} else if (newLight < oldLight) {
+		// sort the seeds into ones that lost light and ones that gained light
+		// the ones that gained light get moved to the front of the list, to wait until the subtractions are done
+		int numAdditions = 0;
+		for (int i = 0; i < seeds.size; i++) {
+			int seed = seeds.values[i];
+			setPos(seedPos, origin, seed);
+			
+			// did we add or subtract light?
+			int oldLight = this.neighborhood.getLight(lightType, seedPos.getX(), seedPos.getY(), seedPos.getZ());
+			int newLight = computeLightValue(seedPos, lightType);
+			if (newLight > oldLight) {
+				seeds.values[numAdditions++] = seed;
+			} else if (newLight < oldLight && this.queue.hasRoomFor(1)) {
+				this.queue.add(packUpdate(unpackUpdateDx(seed), unpackUpdateDy(seed), unpackUpdateDz(seed), oldLight, 0));
+			}
+		}
+		
+		if (this.queue.hasNext()) {
 			// subtract light from the area
 			world.profiler.startSection("diffuse light subtractions");
-			this.queue.add(packUpdate(0, 0, 0, oldLight));
-			processLightSubtractions(world, pos, lightType);
+			processLightSubtractions(origin, lightType);
 			world.profiler.endSection();
 			
 			// reset the queue so the next processing method re-processes all the entries
 			this.queue.reset();
 		}
 		
+		// then seed the additions
+		for (int i = 0; i < numAdditions && this.queue.hasRoomFor(1); i++) {
+			this.queue.add(seeds.values[i]);
+		}
+		
 		// add light to the area
 		world.profiler.startSection("diffuse light additions");
-		processLightAdditions(world, pos, lightType);
+		processLightAdditions(origin, lightType);
 		world.profiler.endSection();
 		
+		this.numUpdates += this.queue.size();
+		
 		// TEMP
 		if (this.queue.size() > 32000) {
-			log.warn(String.format("%s Warning! Calculated %d light updates at (%d,%d,%d) for %s light.", 
-					world.isClient ? "CLIENT" : "SERVER", this.queue.size(), pos.getX(), pos.getY(), pos.getZ(), lightType.name()));
+			log.warn(String.format("%s Warning! Calculated %d light updates for %d seeds around (%d,%d,%d) for %s light.", 
+					world.isClient ? "CLIENT" : "SERVER", this.queue.size(), seeds.size, origin.getX(), origin.getY(), origin.getZ(), lightType.name()));
 		}
-		
-		return true;
 	}
 	
-	private void processLightSubtractions(World world, BlockPos pos, LightType lightType) {
+	private void processLightSubtractions(BlockPos origin, LightType lightType) {
 		
-		// TODO: optimize out news?
 		BlockPos.MutableBlockPos updatePos = new BlockPos.MutableBlockPos();
 		BlockPos.MutableBlockPos neighborPos = new BlockPos.MutableBlockPos();
 		
@@ -104,21 +261,18 @@ public class DiffuseLightingCalculator {
 			
 			// unpack the update
 			int update = this.queue.get();
-			updatePos.setBlockPos(
-				unpackUpdateDx(update) + pos.getX(),
-				unpackUpdateDy(update) + pos.getY(),
-				unpackUpdateDz(update) + pos.getZ()
-			);
+			setPos(updatePos, origin, update);
 			int updateLight = unpackUpdateLight(update);
+			int neighborDistance = unpackUpdateDistance(update) + 1;
 			
 			// if the light changed, skip this update
-			int oldLight = world.getLightAt(lightType, updatePos);
+			int oldLight = this.neighborhood.getLight(lightType, updatePos.getX(), updatePos.getY(), updatePos.getZ());
 			if (oldLight != updateLight) {
 				continue;
 			}
 			
 			// set update block light to 0
-			world.setLightAt(lightType, updatePos, 0);
+			this.neighborhood.setLight(lightType, updatePos.getX(), updatePos.getY(), updatePos.getZ(), 0);
 			
 			// if we ran out of light, don't propagate
 			if (updateLight <= 0) {
@@ -130,19 +284,19 @@ public class DiffuseLightingCalculator {
 				neighborPos.setBlockPos(updatePos.getX(), updatePos.getY(), updatePos.getZ());
 				neighborPos.addDirection(facing, 1);
 				
-				if (!shouldUpdateLight(world, pos, neighborPos)) {
+				if (!shouldUpdateLight(neighborPos, neighborDistance)) {
 					continue;
 				}
 				
 				// get the neighbor opacity
-				int neighborOpacity = world.getBlockStateAt(neighborPos).getBlock().getOpacity();
+				int neighborOpacity = this.neighborhood.getBlock(neighborPos.getX(), neighborPos.getY(), neighborPos.getZ()).getOpacity();
 				if (neighborOpacity < 1) {
 					neighborOpacity = 1;
 				}
 				
 				// if the neighbor block doesn't have the light we expect, bail
 				int expectedLight = updateLight - neighborOpacity;
-				int actualLight = world.getLightAt(lightType, neighborPos);
+				int actualLight = this.neighborhood.getLight(lightType, neighborPos.getX(), neighborPos.getY(), neighborPos.getZ());
 				if (actualLight != expectedLight) {
 					continue;
 				}
@@ -150,19 +304,19 @@ public class DiffuseLightingCalculator {
 				if (this.queue.hasRoomFor(1)) {
 					// queue an update to subtract light from the neighboring block
 					this.queue.add(packUpdate(
-						neighborPos.getX() - pos.getX(),
-						neighborPos.getY() - pos.getY(),
-						neighborPos.getZ() - pos.getZ(),
-						expectedLight
+						neighborPos.getX() - origin.getX(),
+						neighborPos.getY() - origin.getY(),
+						neighborPos.getZ() - origin.getZ(),
+						expectedLight,
+						neighborDistance
 					));
 				}
 			}
 		}
 	}
 	
-	private void processLightAdditions(World world, BlockPos pos, LightType lightType) {
+	private void processLightAdditions(BlockPos origin, LightType lightType) {
 		
-		// TODO: optimize out news?
 		BlockPos.MutableBlockPos updatePos = new BlockPos.MutableBlockPos();
 		BlockPos.MutableBlockPos neighborPos = new BlockPos.MutableBlockPos();
 
@@ -171,21 +325,18 @@ public class DiffuseLightingCalculator {
 			
 			// unpack the update
 			int update = this.queue.get();
-			updatePos.setBlockPos(
-				unpackUpdateDx(update) + pos.getX(),
-				unpackUpdateDy(update) + pos.getY(),
-				unpackUpdateDz(update) + pos.getZ()
-			);
+			setPos(updatePos, origin, update);
+			int neighborDistance = unpackUpdateDistance(update) + 1;
 			
 			// skip updates that don't change the light
-			int oldLight = world.getLightAt(lightType, updatePos);
-			int newLight = computeLightValue(world, updatePos, lightType);
+			int oldLight = this.neighborhood.getLight(lightType, updatePos.getX(), updatePos.getY(), updatePos.getZ());
+			int newLight = computeLightValue(updatePos, lightType);
 			if (newLight == oldLight) {
 				continue;
 			}
 			
 			// update the light here
-			world.setLightAt(lightType, updatePos, newLight);
+			this.neighborhood.setLight(lightType, updatePos.getX(), updatePos.getY(), updatePos.getZ(), newLight);
 			
 			// if we didn't get brighter, don't propagate light to the area
 			if (newLight <= oldLight) {
@@ -197,12 +348,12 @@ public class DiffuseLightingCalculator {
 				neighborPos.setBlockPos(updatePos.getX(), updatePos.getY(), updatePos.getZ());
 				neighborPos.addDirection(facing, 1);
 				
-				if (!shouldUpdateLight(world, pos, neighborPos)) {
+				if (!shouldUpdateLight(neighborPos, neighborDistance)) {
 					continue;
 				}
 				
 				// if the neighbor already has enough light, bail
-				int neighborLight = world.getLightAt(lightType, neighborPos);
+				int neighborLight = this.neighborhood.getLight(lightType, neighborPos.getX(), neighborPos.getY(), neighborPos.getZ());
 				if (neighborLight >= newLight) {
 					continue;
 				}
@@ -210,59 +361,42 @@ public class DiffuseLightingCalculator {
 				if (this.queue.hasRoomFor(1)) {
 					// queue an update to add light to the neighboring block
 					this.queue.add(packUpdate(
-						neighborPos.getX() - pos.getX(),
-						neighborPos.getY() - pos.getY(),
-						neighborPos.getZ() - pos.getZ(),
-						0
+						neighborPos.getX() - origin.getX(),
+						neighborPos.getY() - origin.getY(),
+						neighborPos.getZ() - origin.getZ(),
+						0,
+						neighborDistance
 					));
 				}
 			}
 		}
 	}
 	
-	private boolean shouldUpdateLight(World world, BlockPos pos, BlockPos targetPos) {
+	private boolean shouldUpdateLight(BlockPos targetPos, int distance) {
 		
-		// don't update blocks that are too far away
-		int manhattanDistance = MathHelper.abs(targetPos.getX() - pos.getX()) 
-								+ MathHelper.abs(targetPos.getY() - pos.getY()) 
-								+ MathHelper.abs(targetPos.getZ() - pos.getZ());
-		if (manhattanDistance > 16) {
+		// don't update blocks that are too far away from the block that changed
+		if (distance > MaxDistance) {
 			return false;
 		}
 		
 		// don't update blocks we can't write to
-		if (!isLightModifiable(world, targetPos.getX(), targetPos.getY(), targetPos.getZ())) {
+		if (!this.neighborhood.isLightModifiable(targetPos.getX(), targetPos.getY(), targetPos.getZ())) {
 			return false;
 		}
 		
 		return true;
 	}
 	
-	private boolean isLightModifiable(World world, int blockX, int blockY, int blockZ) {
-		
-		// get the cube
-		int cubeX = Coords.blockToCube(blockX);
-		int cubeY = Coords.blockToCube(blockY);
-		int cubeZ = Coords.blockToCube(blockZ);
-		ICubeCache cubeCache = WorldContext.get(world).getCubeCache();
-		if (!cubeCache.cubeExists(cubeX, cubeY, cubeZ)) {
-			return false;
-		}
-		Cube cube = cubeCache.getCube(cubeX, cubeY, cubeZ);
-		
-		return !cube.isEmpty();
-	}
-	
-	private int computeLightValue(World world, BlockPos pos, LightType lightType) {
+	private int computeLightValue(BlockPos pos, LightType lightType) {
 		
 		// TODO: optimize out news?
 		BlockPos.MutableBlockPos neighborPos = new BlockPos.MutableBlockPos();
 
-		if (lightType == LightType.SKY && world.canSeeSky(pos)) {
+		if (lightType == LightType.SKY && this.neighborhood.canSeeSky(pos.getX(), pos.getY(), pos.getZ())) {
 			// sky light is easy
 			return 15;
 		} else {
-			Block block = world.getBlockStateAt(pos).getBlock();
+			Block block = this.neighborhood.getBlock(pos.getX(), pos.getY(), pos.getZ());
 			
 			// init this block's computed light with the light it generates
 			int lightAtThisBlock = lightType == LightType.SKY ? 0 : block.getBrightness();
@@ -295,7 +429,7 @@ public class DiffuseLightingCalculator {
 					neighborPos.setBlockPos(pos.getX(), pos.getY(), pos.getZ());
 					neighborPos.addDirection(facing, 1);
 					
-					int lightFromNeighbor = world.getLightAt(lightType, neighborPos) - blockOpacity;
+					int lightFromNeighbor = this.neighborhood.getLight(lightType, neighborPos.getX(), neighborPos.getY(), neighborPos.getZ()) - blockOpacity;
 					
 					// take the max of light from neighbors
 					if (lightFromNeighbor > lightAtThisBlock) {
@@ -313,8 +447,19 @@ public class DiffuseLightingCalculator {
 		}
 	}
 	
-	private int packUpdate(int dx, int dy, int dz, int light) {
-		return Bits.packSignedToInt(dx, 6, 0) | Bits.packSignedToInt(dy, 6, 6) | Bits.packSignedToInt(dz, 6, 12) | Bits.packUnsignedToInt(light, 6, 18);
+	private void setPos(BlockPos.MutableBlockPos pos, BlockPos origin, int update) {
+		pos.setBlockPos(
+			unpackUpdateDx(update) + origin.getX(),
+			unpackUpdateDy(update) + origin.getY(),
+			unpackUpdateDz(update) + origin.getZ()
+		);
+	}
+	
+	// updates are at most MaxDistance past the edge of the cube, so the offsets from the cube center fit in 6 bits
+	
+	private int packUpdate(int dx, int dy, int dz, int light, int distance) {
+		return Bits.packSignedToInt(dx, 6, 0) | Bits.packSignedToInt(dy, 6, 6) | Bits.packSignedToInt(dz, 6, 12)
+			| Bits.packUnsignedToInt(light, 5, 18) | Bits.packUnsignedToInt(distance, 5, 23);
 	}
 	
 	private int unpackUpdateDx(int packed) {
@@ -330,6 +475,44 @@ public class DiffuseLightingCalculator {
 	}
 	
 	private int unpackUpdateLight(int packed) {
-		return Bits.unpackUnsigned(packed, 6, 18);
+		return Bits.unpackUnsigned(packed, 5, 18);
+	}
+	
+	private int unpackUpdateDistance(int packed) {
+		return Bits.unpackUnsigned(packed, 5, 23);
+	}
+	
+	private static class SeedList {
+		
+		public int[] values;
+		public int size;
+		
+		public SeedList() {
+			this.values = new int[8];
+			this.size = 0;
+		}
+		
+		public void add(int seed) {
+			if (this.size == this.values.length) {
+				this.values = Arrays.copyOf(this.values, this.size * 2);
+			}
+			this.values[this.size++] = seed;
+		}
+		
+		/**
+		 * Returns the number of duplicates removed.
+		 */
+		public int removeDuplicates() {
+			Arrays.sort(this.values, 0, this.size);
+			int numUnique = 0;
+			for (int i = 0; i < this.size; i++) {
+				if (numUnique == 0 || this.values[i] != this.values[numUnique - 1]) {
+					this.values[numUnique++] = this.values[i];
+				}
+			}
+			int numRemoved = this.size - numUnique;
+			this.size = numUnique;
+			return numRemoved;
+		}
 	}
 }
@@ -23,31 +23,188 @@
  */
 package cubicchunks.lighting;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import net.minecraft.util.BlockPos;
 import net.minecraft.world.LightType;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import cubicchunks.TallWorldsConfig;
 import cubicchunks.generator.GeneratorStage;
+import cubicchunks.util.AddressTools;
+import cubicchunks.util.Bits;
 import cubicchunks.util.Coords;
+import cubicchunks.util.Long2ObjectMap;
 import cubicchunks.util.processor.CubeProcessor;
 import cubicchunks.world.ICubeCache;
 import cubicchunks.world.LightIndex;
 import cubicchunks.world.WorldContext;
 import cubicchunks.world.cube.Cube;
 
+/**
+ * Computes the first sky light for a cube and finds the blocks that need diffuse lighting.
+ * <p>
+ * The computing part only reads the cube, its neighbors and their columns, so with tallworlds.lightingThreads
+ * set, batches of cubes are computed on worker threads. The tick thread looks up the cubes beforehand
+ * and writes the results into the world afterwards.
+ */
 public class FirstLightProcessor extends CubeProcessor {
 	
+	private static final Logger log = LogManager.getLogger();
+	
+	// worker threads need more cubes per batch to be worth waking up
+	private static final int ParallelBatchScale = 32;
+	
+	// face neighbors, in the order of the slab passes
+	private static final int[][] NeighborOffsets = {
+		{ -1, 0, 0 }, { 1, 0, 0 }, { 0, -1, 0 }, { 0, 1, 0 }, { 0, 0, -1 }, { 0, 0, 1 }
+	};
+	
+	// shared by all the worlds, there's no point in having more threads than cores
+	private static ExecutorService executor = null;
+	
 	public FirstLightProcessor(String name, ICubeCache cache, int batchSize) {
-		super(name, cache, batchSize);
+		super(name, cache, TallWorldsConfig.LightingThreads > 0 ? batchSize * ParallelBatchScale : batchSize);
 	}
 	
 	@Override
 	public boolean calculate(Cube cube) {
 		
+		Result result = prepare(cube);
+		if (result == null) {
+			return false;
+		}
+		
+		compute(result);
+		commit(result);
+		return true;
+	}
+	
+	@Override
+	public void processBatch() {
+		
+		if (TallWorldsConfig.LightingThreads <= 0) {
+			super.processBatch();
+			return;
+		}
+		
+		// look up all the cubes on this thread, the cube cache isn't thread-safe
+		List<Result> results = new ArrayList<Result>(this.incomingAddresses.size());
+		for (long address : this.incomingAddresses) {
+			
+			// get the cube
+			int cubeX = AddressTools.getX(address);
+			int cubeY = AddressTools.getY(address);
+			int cubeZ = AddressTools.getZ(address);
+			Cube cube = this.cache.getCube(cubeX, cubeY, cubeZ);
+			if (cube == null) {
+				log.warn("Unloaded cube ({},{},{}) dropped from {} processor queue.", cubeX, cubeY, cubeZ, this.name);
+				continue;
+			}
+			
+			// add cubes that can't be lit yet back onto the queue
+			Result result = prepare(cube);
+			if (result == null) {
+				this.deferredAddresses.add(address);
+			} else {
+				results.add(result);
+			}
+		}
+		
+		computeInParallel(results);
+		
+		// write the results into the world
+		for (Result result : results) {
+			commit(result);
+			this.processedAddresses.add(result.cube.getAddress());
+		}
+	}
+	
+	private Result prepare(Cube cube) {
+		
 		// only continue if the neighboring cubes are at least in the lighting stage
 		WorldContext worldContext = WorldContext.get(cube.getWorld());
 		if (!worldContext.cubeAndNeighborsExist(cube, true, GeneratorStage.LIGHTING)) {
-			return false;
+			return null;
+		}
+		
+		Result result = new Result(cube);
+		for (int i = 0; i < NeighborOffsets.length; i++) {
+			result.neighbors[i] = this.cache.getCube(
+				cube.getX() + NeighborOffsets[i][0],
+				cube.getY() + NeighborOffsets[i][1],
+				cube.getZ() + NeighborOffsets[i][2]
+			);
+		}
+		return result;
+	}
+	
+	private void computeInParallel(List<Result> results) {
+		
+		// the column light indices cache their answers when asked, so two threads must never ask the same column
+		// group the cubes by column, then color the columns so two columns of the same color never share a neighbor
+		// the columns of one color can be lit at the same time
+		List<List<ColumnTask>> tasksByColor = new ArrayList<List<ColumnTask>>(9);
+		for (int i = 0; i < 9; i++) {
+			tasksByColor.add(new ArrayList<ColumnTask>());
+		}
+		Long2ObjectMap<ColumnTask> tasksByColumn = new Long2ObjectMap<ColumnTask>();
+		for (Result result : results) {
+			long columnAddress = AddressTools.getAddress(result.cube.getX(), result.cube.getZ());
+			ColumnTask task = tasksByColumn.get(columnAddress);
+			if (task == null) {
+				task = new ColumnTask();
+				tasksByColumn.put(columnAddress, task);
+				int color = ((result.cube.getX() % 3 + 3) % 3) * 3 + (result.cube.getZ() % 3 + 3) % 3;
+				tasksByColor.get(color).add(task);
+			}
+			task.results.add(result);
+		}
+		
+		for (List<ColumnTask> tasks : tasksByColor) {
+			List<Future<Void>> futures = new ArrayList<Future<Void>>(tasks.size());
+			for (ColumnTask task : tasks) {
+				futures.add(getExecutor().submit(task));
+			}
+			
+			// wait for the whole color before starting the next one
+			// NOTE: don't bail out on interrupts, the workers would still be touching the columns
+			for (Future<Void> future : futures) {
+				try {
+					Uninterruptibles.getUninterruptibly(future);
+				} catch (ExecutionException ex) {
+					throw new RuntimeException(ex.getCause());
+				}
+			}
 		}
+	}
+	
+	private static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(TallWorldsConfig.LightingThreads, new ThreadFactoryBuilder()
+				.setNameFormat("First Light #%d")
+				.setDaemon(true)
+				.build()
+			);
+		}
+		return executor;
+	}
+	
+	private static void compute(Result result) {
 		
+		Cube cube = result.cube;
 		int minBlockX = Coords.cubeToMinBlock(cube.getX());
 		int maxBlockX = Coords.cubeToMaxBlock(cube.getX());
 		int minBlockY = Coords.cubeToMinBlock(cube.getY());
@@ -57,10 +214,13 @@ public class FirstLightProcessor extends CubeProcessor {
 		
 		BlockPos.MutableBlockPos pos = new BlockPos.MutableBlockPos();
 		
-		// update the sky light
-		for (pos.x = minBlockX; pos.x <= maxBlockX; pos.x++) {
-			for (pos.z = minBlockZ; pos.z <= maxBlockZ; pos.z++) {
-				updateSkylight(cube, pos);
+		// compute the sky light
+		if (!cube.getWorld().dimension.hasNoSky()) {
+			result.skyLight = new byte[16 * 16 * 16 / 2];
+			for (pos.x = minBlockX; pos.x <= maxBlockX; pos.x++) {
+				for (pos.z = minBlockZ; pos.z <= maxBlockZ; pos.z++) {
+					updateSkylight(cube, pos, result.skyLight);
+				}
 			}
 		}
 		
@@ -68,12 +228,7 @@ public class FirstLightProcessor extends CubeProcessor {
 		for (pos.x = minBlockX; pos.x <= maxBlockX; pos.x++) {
 			for (pos.y = minBlockY; pos.y <= maxBlockY; pos.y++) {
 				for (pos.z = minBlockZ; pos.z <= maxBlockZ; pos.z++) {
-					boolean wasLit = lightBlock(cube, pos);
-					
-					// if the lighting failed, then try again later
-					if (!wasLit) {
-						return false;
-					}
+					lightBlock(cube, pos, result);
 				}
 			}
 		}
@@ -81,17 +236,41 @@ public class FirstLightProcessor extends CubeProcessor {
 		// populate the nearby faces of adjacent cubes
 		// this is for cases when a sheer wall is up against an empty cube
 		// unless this is called, the wall will not get directly lit
-		lightXSlab(cache.getCube(cube.getX() - 1, cube.getY(), cube.getZ()), 15, pos);
-		lightXSlab(cache.getCube(cube.getX() + 1, cube.getY(), cube.getZ()), 0, pos);
-		lightYSlab(cache.getCube(cube.getX(), cube.getY() - 1, cube.getZ()), 15, pos);
-		lightYSlab(cache.getCube(cube.getX(), cube.getY() + 1, cube.getZ()), 0, pos);
-		lightZSlab(cache.getCube(cube.getX(), cube.getY(), cube.getZ() - 1), 15, pos);
-		lightZSlab(cache.getCube(cube.getX(), cube.getY(), cube.getZ() + 1), 0, pos);
+		lightXSlab(result.neighbors[0], 15, pos, result);
+		lightXSlab(result.neighbors[1], 0, pos, result);
+		lightYSlab(result.neighbors[2], 15, pos, result);
+		lightYSlab(result.neighbors[3], 0, pos, result);
+		lightZSlab(result.neighbors[4], 15, pos, result);
+		lightZSlab(result.neighbors[5], 0, pos, result);
+	}
+	
+	private static void commit(Result result) {
 		
-		return true;
+		Cube cube = result.cube;
+		if (result.skyLight != null) {
+			cube.setLightData(LightType.SKY, result.skyLight);
+		}
+		
+		// queue the diffuse lighting
+		// world.updateLightingAt() refuses blocks near unloaded cubes, but the lighting manager keeps those until their neighbors load
+		LightingManager lightingManager = WorldContext.get(cube.getWorld()).getLightingManager();
+		boolean hasSky = !cube.getWorld().dimension.hasNoSky();
+		BlockPos.MutableBlockPos pos = new BlockPos.MutableBlockPos();
+		for (int i = 0; i < result.numBlocksToLight; i++) {
+			int packed = result.blocksToLight[i];
+			pos.setBlockPos(
+				Coords.cubeToMinBlock(cube.getX()) + Bits.unpackSigned(packed, 8, 0),
+				Coords.cubeToMinBlock(cube.getY()) + Bits.unpackSigned(packed, 8, 8),
+				Coords.cubeToMinBlock(cube.getZ()) + Bits.unpackSigned(packed, 8, 16)
+			);
+			if (hasSky) {
+				lightingManager.queueDiffuseLightingCalculation(pos, LightType.SKY);
+			}
+			lightingManager.queueDiffuseLightingCalculation(pos, LightType.BLOCK);
+		}
 	}
 	
-	private void updateSkylight(Cube cube, BlockPos.MutableBlockPos pos) {
+	private static void updateSkylight(Cube cube, BlockPos.MutableBlockPos pos, byte[] skyLight) {
 		
 		int localX = Coords.blockToLocal(pos.getX());
 		int localZ = Coords.blockToLocal(pos.getZ());
@@ -115,14 +294,14 @@ public class FirstLightProcessor extends CubeProcessor {
 			
 			// set everything to sky light
 			for (pos.y=cubeMinBlockY; pos.y<=cubeMaxBlockY; pos.y++) {
-				cube.setLightValue(LightType.SKY, pos, 15);
+				setLight(skyLight, pos, 15);
 			}
 			
 		} else if (cubeMaxBlockY < gradientMinBlockY) {
 			
 			// set everything to dark
 			for (pos.y=cubeMinBlockY; pos.y<=cubeMaxBlockY; pos.y++) {
-				cube.setLightValue(LightType.SKY, pos, 0);
+				setLight(skyLight, pos, 0);
 			}
 			
 		} else {
@@ -143,13 +322,20 @@ public class FirstLightProcessor extends CubeProcessor {
 				
 				if (pos.y <= cubeMaxBlockY) {
 					// apply the light
-					cube.setLightValue(LightType.SKY, pos, light);
+					setLight(skyLight, pos, light);
 				}
 			}
 		}
 	}
 	
-	private void lightXSlab(Cube cube, int localX, BlockPos.MutableBlockPos pos) {
+	private static void setLight(byte[] data, BlockPos pos, int light) {
+		// the vanilla nibble layout
+		int i = Coords.blockToLocal(pos.getY()) << 8 | Coords.blockToLocal(pos.getZ()) << 4 | Coords.blockToLocal(pos.getX());
+		int shift = (i & 1) << 2;
+		data[i >> 1] = (byte)((data[i >> 1] & ~(0xf << shift)) | (light << shift));
+	}
+	
+	private static void lightXSlab(Cube cube, int localX, BlockPos.MutableBlockPos pos, Result result) {
 		pos.x = Coords.localToBlock(cube.getX(), localX);
 		int minBlockY = Coords.cubeToMinBlock(cube.getY());
 		int maxBlockY = Coords.cubeToMaxBlock(cube.getY());
@@ -157,12 +343,12 @@ public class FirstLightProcessor extends CubeProcessor {
 		int maxBlockZ = Coords.cubeToMaxBlock(cube.getZ());
 		for (pos.y = minBlockY; pos.y <= maxBlockY; pos.y++) {
 			for (pos.z = minBlockZ; pos.z <= maxBlockZ; pos.z++) {
-				lightBlock(cube, pos);
+				lightBlock(cube, pos, result);
 			}
 		}
 	}
 	
-	private void lightYSlab(Cube cube, int localY, BlockPos.MutableBlockPos pos) {
+	private static void lightYSlab(Cube cube, int localY, BlockPos.MutableBlockPos pos, Result result) {
 		int minBlockX = Coords.cubeToMinBlock(cube.getX());
 		int maxBlockX = Coords.cubeToMaxBlock(cube.getX());
 		pos.y = Coords.localToBlock(cube.getY(), localY);
@@ -170,12 +356,12 @@ public class FirstLightProcessor extends CubeProcessor {
 		int maxBlockZ = Coords.cubeToMaxBlock(cube.getZ());
 		for (pos.x = minBlockX; pos.x <= maxBlockX; pos.x++) {
 			for (pos.z = minBlockZ; pos.z <= maxBlockZ; pos.z++) {
-				lightBlock(cube, pos);
+				lightBlock(cube, pos, result);
 			}
 		}
 	}
 	
-	private void lightZSlab(Cube cube, int localZ, BlockPos.MutableBlockPos pos) {
+	private static void lightZSlab(Cube cube, int localZ, BlockPos.MutableBlockPos pos, Result result) {
 		int minBlockX = Coords.cubeToMinBlock(cube.getX());
 		int maxBlockX = Coords.cubeToMaxBlock(cube.getX());
 		int minBlockY = Coords.cubeToMinBlock(cube.getY());
@@ -183,12 +369,12 @@ public class FirstLightProcessor extends CubeProcessor {
 		pos.z = Coords.localToBlock(cube.getZ(), localZ);
 		for (pos.x = minBlockX; pos.x <= maxBlockX; pos.x++) {
 			for (pos.y = minBlockY; pos.y <= maxBlockY; pos.y++) {
-				lightBlock(cube, pos);
+				lightBlock(cube, pos, result);
 			}
 		}
 	}
 	
-	private boolean lightBlock(Cube cube, BlockPos.MutableBlockPos pos) {
+	private static void lightBlock(Cube cube, BlockPos.MutableBlockPos pos, Result result) {
 		
 		int localX = Coords.blockToLocal(pos.getX());
 		int localY = Coords.blockToLocal(pos.getY());
@@ -224,9 +410,54 @@ public class FirstLightProcessor extends CubeProcessor {
 		}
 		
 		if (lightBlock) {
-			return cube.getWorld().updateLightingAt(pos);
+			// remember the block relative to the cube we're lighting, the tick thread lights it later
+			Cube origin = result.cube;
+			result.addBlockToLight(
+				Bits.packSignedToInt(pos.getX() - Coords.cubeToMinBlock(origin.getX()), 8, 0)
+				| Bits.packSignedToInt(pos.getY() - Coords.cubeToMinBlock(origin.getY()), 8, 8)
+				| Bits.packSignedToInt(pos.getZ() - Coords.cubeToMinBlock(origin.getZ()), 8, 16)
+			);
+		}
+	}
+	
+	private static class Result {
+		
+		public Cube cube;
+		public Cube[] neighbors;
+		public byte[] skyLight;
+		public int[] blocksToLight;
+		public int numBlocksToLight;
+		
+		public Result(Cube cube) {
+			this.cube = cube;
+			this.neighbors = new Cube[NeighborOffsets.length];
+			this.skyLight = null;
+			this.blocksToLight = new int[64];
+			this.numBlocksToLight = 0;
 		}
 		
-		return true;
+		public void addBlockToLight(int packed) {
+			if (this.numBlocksToLight == this.blocksToLight.length) {
+				this.blocksToLight = Arrays.copyOf(this.blocksToLight, this.numBlocksToLight * 2);
+			}
+			this.blocksToLight[this.numBlocksToLight++] = packed;
+		}
+	}
+	
+	private static class ColumnTask implements Callable<Void> {
+		
+		public List<Result> results;
+		
+		public ColumnTask() {
+			this.results = new ArrayList<Result>();
+		}
+		
+		@Override
+		public Void call() {
+			for (Result result : this.results) {
+				compute(result);
+			}
+			return null;
+		}
 	}
 }
@@ -30,7 +30,6 @@ import net.minecraft.world.World;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import cubicchunks.util.Bits;
 import cubicchunks.world.ICubeCache;
 import cubicchunks.world.column.Column;
 
@@ -49,23 +48,25 @@ public class LightingManager {
 	public LightingManager(World world, ICubeCache provider) {
 		this.world = world;
 		
-		this.skyLightOcclusionProcessor = new SkyLightOcclusionProcessor("Sky Light Occlusion", provider, 50);
+		this.skyLightOcclusionProcessor = new SkyLightOcclusionProcessor("Sky Light Occlusion", provider, 10);
 		this.firstLightProcessor = new FirstLightProcessor("First Light", provider, 10);
 		this.diffuseLightingCalculator = new DiffuseLightingCalculator();
 		this.skyLightUpdateCalculator = new SkyLightUpdateCalculator();
 	}
 	
 	public void queueSkyLightOcclusionCalculation(int blockX, int blockZ) {
-		long blockColumnAddress = Bits.packSignedToLong(blockX, 26, 0) | Bits.packSignedToLong(blockZ, 26, 26);
-		this.skyLightOcclusionProcessor.add(blockColumnAddress);
+		this.skyLightOcclusionProcessor.add(blockX, blockZ);
 	}
 	
 	public void queueFirstLightCalculation(long cubeAddress) {
 		this.firstLightProcessor.add(cubeAddress);
 	}
 	
-	public boolean computeDiffuseLighting(BlockPos pos, LightType lightType) {
-		return this.diffuseLightingCalculator.calculate(this.world, pos, lightType);
+	/**
+	 * The light gets fixed at the end of the tick, along with all the other blocks that changed.
+	 */
+	public void queueDiffuseLightingCalculation(BlockPos pos, LightType lightType) {
+		this.diffuseLightingCalculator.add(pos, lightType);
 	}
 	
 	public void computeSkyLightUpdate(Column column, int localX, int localZ, int oldMaxBlockY, int newMaxBlockY) {
@@ -81,12 +82,21 @@ public class LightingManager {
 		numProcessed += this.skyLightOcclusionProcessor.processQueue(timeStop);
 		numProcessed += this.firstLightProcessor.processQueue(timeStop);
 		
+		// then fix the light around everything that changed this tick
+		// this doesn't get a budget, the light would stay wrong otherwise
+		if (this.diffuseLightingCalculator.hasSeeds()) {
+			this.world.profiler.startSection("diffuseLighting");
+			numProcessed += this.diffuseLightingCalculator.processBatch(this.world);
+			this.world.profiler.endSection();
+		}
+		
 		// reporting
 		long timeDiff = System.currentTimeMillis() - timeStart;
 		if (numProcessed > 0) {
 			log.info(String.format("%s Lighting manager processed %d calculations in %d ms.", this.world.isClient ? "CLIENT" : "SERVER", numProcessed, timeDiff));
 			log.info(this.skyLightOcclusionProcessor.getProcessingReport());
 			log.info(this.firstLightProcessor.getProcessingReport());
+			log.info(this.diffuseLightingCalculator.getProcessingReport());
 		}
 	}
 }
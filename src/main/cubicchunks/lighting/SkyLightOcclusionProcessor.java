@@ -23,45 +23,194 @@
  */
 package cubicchunks.lighting;
 
+import java.util.Arrays;
+
 import net.minecraft.util.BlockPos;
 import net.minecraft.world.LightType;
 import net.minecraft.world.World;
+import cubicchunks.util.AddressTools;
 import cubicchunks.util.Coords;
-import cubicchunks.util.processor.BlockColumnProcessor;
+import cubicchunks.util.Long2ObjectMap;
+import cubicchunks.util.processor.ColumnProcessor;
 import cubicchunks.world.ICubeCache;
 import cubicchunks.world.WorldContext;
+import cubicchunks.world.column.BlankColumn;
 import cubicchunks.world.column.Column;
 
-public class SkyLightOcclusionProcessor extends BlockColumnProcessor {
+/**
+ * Fixes the sky light next to block columns whose height changed.
+ * <p>
+ * Changed block columns are collected into a bitmap per column, so a column is processed once no matter how many of
+ * its blocks changed. The height field around the changed blocks is read once, and the light ranges that need fixing
+ * are merged per block column before they're queued for diffuse lighting.
+ */
+public class SkyLightOcclusionProcessor extends ColumnProcessor {
+	
+	// the column plus a one block border
+	private static final int GridSize = 18;
+	private static final int NoHeight = Integer.MIN_VALUE;
+	
+	private static final int[][] NeighborOffsets = {
+		{ -1, 0 }, { 1, 0 }, { 0, -1 }, { 0, 1 }
+	};
+	
+	// changed block columns, one bit per block column, indexed by localZ << 4 | localX
+	private Long2ObjectMap<long[]> dirtyBlockColumns;
+	
+	private int[] heights;
+	private boolean[] isNeeded;
+	private int[] minBlockYs;
+	private int[] maxBlockYs;
 	
 	public SkyLightOcclusionProcessor(String name, ICubeCache provider, int batchSize) {
 		super(name, provider, batchSize);
+		
+		this.dirtyBlockColumns = new Long2ObjectMap<long[]>();
+		this.heights = new int[GridSize * GridSize];
+		this.isNeeded = new boolean[GridSize * GridSize];
+		this.minBlockYs = new int[GridSize * GridSize];
+		this.maxBlockYs = new int[GridSize * GridSize];
+	}
+	
+	public void add(int blockX, int blockZ) {
+		long address = AddressTools.getAddress(Coords.blockToCube(blockX), Coords.blockToCube(blockZ));
+		long[] dirty = this.dirtyBlockColumns.get(address);
+		if (dirty == null) {
+			dirty = new long[4];
+			this.dirtyBlockColumns.put(address, dirty);
+			add(address);
+		}
+		int i = Coords.blockToLocal(blockZ) << 4 | Coords.blockToLocal(blockX);
+		dirty[i >> 6] |= 1L << i;
 	}
 	
 	@Override
-	public boolean calculate(Column column, int localX, int localZ, int blockX, int blockZ) {
-		World world = column.getWorld();
+	public void processBatch() {
+		super.processBatch();
 		
-		// get the height
-		Integer height = column.getSkylightBlockY(localX, localZ);
-		if (height == null) {
+		// the columns that were skipped are gone, don't hang on to their bits
+		for (long address : this.incomingAddresses) {
+			this.dirtyBlockColumns.remove(address);
+		}
+	}
+	
+	@Override
+	public boolean calculate(Column column) {
+		
+		long[] dirty = this.dirtyBlockColumns.get(AddressTools.getAddress(column.getX(), column.getZ()));
+		if (dirty == null) {
 			// nothing to do
 			return true;
 		}
 		
-		// get the min column height among neighbors
-		int minHeight1 = world.getChunkMinimumHeight(blockX - 1, blockZ);
-		int minHeight2 = world.getChunkMinimumHeight(blockX + 1, blockZ);
-		int minHeight3 = world.getChunkMinimumHeight(blockX, blockZ - 1);
-		int minHeight4 = world.getChunkMinimumHeight(blockX, blockZ + 1);
-		int minNeighborHeight = Math.min(minHeight1, Math.min(minHeight2, Math.min(minHeight3, minHeight4)));
+		// find the block columns we need heights for
+		Arrays.fill(this.isNeeded, false);
+		for (int i = nextDirty(dirty, 0); i >= 0; i = nextDirty(dirty, i + 1)) {
+			int g = getGridIndex(i & 0xf, i >> 4);
+			this.isNeeded[g] = true;
+			for (int[] offset : NeighborOffsets) {
+				this.isNeeded[g + offset[0] + offset[1] * GridSize] = true;
+			}
+		}
 		
+		// read the height field once
+		Column[] neighbors = new Column[NeighborOffsets.length];
+		for (int n = 0; n < NeighborOffsets.length; n++) {
+			Column neighbor = this.cache.getColumn(column.getX() + NeighborOffsets[n][0], column.getZ() + NeighborOffsets[n][1]);
+			if (neighbor != null && !(neighbor instanceof BlankColumn)) {
+				neighbors[n] = neighbor;
+			}
+		}
+		for (int gz = 0; gz < GridSize; gz++) {
+			for (int gx = 0; gx < GridSize; gx++) {
+				int g = gz * GridSize + gx;
+				this.heights[g] = NoHeight;
+				this.minBlockYs[g] = Integer.MAX_VALUE;
+				this.maxBlockYs[g] = Integer.MIN_VALUE;
+				if (!this.isNeeded[g]) {
+					continue;
+				}
+				
+				// which column is this block column in?
+				Column source = column;
+				if (gx == 0) {
+					source = neighbors[0];
+				} else if (gx == GridSize - 1) {
+					source = neighbors[1];
+				} else if (gz == 0) {
+					source = neighbors[2];
+				} else if (gz == GridSize - 1) {
+					source = neighbors[3];
+				}
+				if (source == null) {
+					continue;
+				}
+				
+				Integer height = source.getSkylightBlockY((gx - 1) & 0xf, (gz - 1) & 0xf);
+				if (height != null) {
+					this.heights[g] = height;
+				}
+			}
+		}
+		
+		// collect the light ranges
+		// every range for a block column ends at that block column's own height, so merging them never adds blocks
+		for (int i = nextDirty(dirty, 0); i >= 0; i = nextDirty(dirty, i + 1)) {
+			int g = getGridIndex(i & 0xf, i >> 4);
+			int height = this.heights[g];
+			if (height == NoHeight) {
+				continue;
+			}
+			
+			int minNeighborHeight = Integer.MAX_VALUE;
+			for (int[] offset : NeighborOffsets) {
+				int n = g + offset[0] + offset[1] * GridSize;
+				int neighborHeight = this.heights[n];
+				if (neighborHeight == NoHeight) {
+					continue;
+				}
+				minNeighborHeight = Math.min(minNeighborHeight, neighborHeight);
+				
+				// light can now come in or out through the side of the neighbor
+				addRange(n, neighborHeight, height);
+			}
+			
+			// and through our own side
+			if (minNeighborHeight != Integer.MAX_VALUE) {
+				addRange(g, height, minNeighborHeight);
+			}
+		}
+		
+		// queue the updates
+		World world = column.getWorld();
+		LightingManager lightingManager = WorldContext.get(world).getLightingManager();
+		int minBlockX = Coords.cubeToMinBlock(column.getX()) - 1;
+		int minBlockZ = Coords.cubeToMinBlock(column.getZ()) - 1;
+		BlockPos.MutableBlockPos pos = new BlockPos.MutableBlockPos();
 		boolean actuallyUpdated = false;
-		actuallyUpdated |= updateSkylight(world, blockX, blockZ, minNeighborHeight);
-		actuallyUpdated |= updateSkylight(world, blockX - 1, blockZ, height);
-		actuallyUpdated |= updateSkylight(world, blockX + 1, blockZ, height);
-		actuallyUpdated |= updateSkylight(world, blockX, blockZ - 1, height);
-		actuallyUpdated |= updateSkylight(world, blockX, blockZ + 1, height);
+		for (int gz = 0; gz < GridSize; gz++) {
+			for (int gx = 0; gx < GridSize; gx++) {
+				int g = gz * GridSize + gx;
+				int minBlockY = this.minBlockYs[g];
+				int maxBlockY = this.maxBlockYs[g];
+				if (maxBlockY <= minBlockY) {
+					continue;
+				}
+				
+				BlockPos bottom = new BlockPos(minBlockX + gx, minBlockY, minBlockZ + gz);
+				BlockPos top = new BlockPos(minBlockX + gx, maxBlockY, minBlockZ + gz);
+				if (!world.checkBlockRangeIsInWorld(bottom, top)) {
+					continue;
+				}
+				
+				pos.x = bottom.getX();
+				pos.z = bottom.getZ();
+				for (pos.y = minBlockY; pos.y <= maxBlockY; pos.y++) {
+					lightingManager.queueDiffuseLightingCalculation(pos, LightType.SKY);
+				}
+				actuallyUpdated = true;
+			}
+		}
 		
 		if (actuallyUpdated) {
 			column.setModified(true);
@@ -70,46 +219,28 @@ public class SkyLightOcclusionProcessor extends BlockColumnProcessor {
 		return true;
 	}
 	
-	private boolean updateSkylight(World world, int blockX, int blockZ, int maxBlockY) {
-		
-		// get the skylight block for this block column
-		Column column = WorldContext.get(world).getCubeCache().getColumn(
-			Coords.blockToCube(blockX),
-			Coords.blockToCube(blockZ)
-		);
-		int localX = Coords.blockToLocal(blockX);
-		int localZ = Coords.blockToLocal(blockZ);
-		Integer height = column.getSkylightBlockY(localX, localZ);
-		if (height == null) {
-			// nothing to do
-			return false;
-		}
-		
-		if (height > maxBlockY) {
-			return updateSkylight(world, blockX, blockZ, maxBlockY, height);
-		} else if (height < maxBlockY) {
-			return updateSkylight(world, blockX, blockZ, height, maxBlockY);
+	private void addRange(int g, int blockY1, int blockY2) {
+		if (blockY1 == blockY2) {
+			return;
 		}
-		
-		return false;
+		this.minBlockYs[g] = Math.min(this.minBlockYs[g], Math.min(blockY1, blockY2));
+		this.maxBlockYs[g] = Math.max(this.maxBlockYs[g], Math.max(blockY1, blockY2));
 	}
 	
-	private boolean updateSkylight(World world, int blockX, int blockZ, int minBlockY, int maxBlockY) {
-		if (maxBlockY <= minBlockY) {
-			return false;
-		}
-		
-		// TODO: optimize out news?
-		BlockPos bottom = new BlockPos(blockX, minBlockY, blockZ);
-		BlockPos top = new BlockPos(blockX, maxBlockY, blockZ);
-		if (!world.checkBlockRangeIsInWorld(bottom, top)) {
-			return false;
-		}
-		
-		for (int blockY = minBlockY; blockY <= maxBlockY; blockY++) {
-			WorldContext.get(world).getLightingManager().computeDiffuseLighting(new BlockPos(blockX, blockY, blockZ), LightType.SKY);
+	private static int getGridIndex(int localX, int localZ) {
+		return (localZ + 1) * GridSize + localX + 1;
+	}
+	
+	private static int nextDirty(long[] dirty, int start) {
+		for (int word = start >> 6; word < dirty.length; word++) {
+			long bits = dirty[word];
+			if (word == start >> 6) {
+				bits &= -1L << (start & 63);
+			}
+			if (bits != 0) {
+				return (word << 6) + Long.numberOfTrailingZeros(bits);
+			}
 		}
-		
-		return true;
+		return -1;
 	}
 }
@@ -114,7 +114,7 @@ public class SkyLightUpdateCalculator {
 		BlockPos.MutableBlockPos pos = new BlockPos.MutableBlockPos();
 		for (int blockY = minBlockY; blockY < maxBlockY; blockY++) {
 			pos.setBlockPos(blockX, blockY, blockZ);
-			lightingManager.computeDiffuseLighting(pos, LightType.SKY);
+			lightingManager.queueDiffuseLightingCalculation(pos, LightType.SKY);
 		}
 	}
 }
@@ -0,0 +1,232 @@
+/*
+ *  This file is part of Cubic Chunks, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2014 Tall Worlds
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package cubicchunks.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import net.minecraft.nbt.NbtTagCompound;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import cubicchunks.util.AddressTools;
+import cubicchunks.util.ConcurrentBatchedQueue;
+import cubicchunks.world.cube.Cube;
+
+/**
+ * Reads and decodes cube records (and their columns if needed) on a pool of loader threads.
+ * <p>
+ * Only the storage read and NBT decode happen off the server thread. Building the cube and column objects
+ * touches the world, so the cube cache does that on the server thread with the finished loads.
+ */
+public class AsyncCubeLoader {
+	
+	private static final Logger log = LogManager.getLogger();
+	
+	public static class Load implements Runnable {
+		
+		private CubeIO cubeIO;
+		private long address;
+		private boolean needsColumn;
+		private List<ICubeLoadCallback> callbacks;
+		private ConcurrentBatchedQueue<Load> finishedLoads;
+		
+		// set by the server thread when the column or cube was saved after we might have read it
+		private boolean isColumnStale;
+		private boolean isCubeStale;
+		
+		// written by the loader thread, read by the server thread after the load is finished
+		private NbtTagCompound columnNbt;
+		private CubeRecord cubeRecord;
+		private Throwable error;
+		
+		private Load(CubeIO cubeIO, long address, boolean needsColumn, ConcurrentBatchedQueue<Load> finishedLoads) {
+			this.cubeIO = cubeIO;
+			this.address = address;
+			this.needsColumn = needsColumn;
+			this.callbacks = new ArrayList<ICubeLoadCallback>(1);
+			this.finishedLoads = finishedLoads;
+			this.isColumnStale = false;
+			this.isCubeStale = false;
+			this.columnNbt = null;
+			this.cubeRecord = null;
+			this.error = null;
+		}
+		
+		@Override
+		public void run() {
+			try {
+				if (this.needsColumn) {
+					this.columnNbt = this.cubeIO.readColumnNbt(AddressTools.getAddress(getX(), getZ()));
+				}
+				this.cubeRecord = this.cubeIO.readCubeRecord(this.address);
+			} catch (Throwable t) {
+				this.error = t;
+			}
+			
+			// the queue is synchronized, so this also publishes the results to the server thread
+			this.finishedLoads.add(this);
+		}
+		
+		public long getAddress() {
+			return this.address;
+		}
+		
+		public int getX() {
+			return AddressTools.getX(this.address);
+		}
+		
+		public int getY() {
+			return AddressTools.getY(this.address);
+		}
+		
+		public int getZ() {
+			return AddressTools.getZ(this.address);
+		}
+		
+		public boolean hasColumnNbt() {
+			return this.needsColumn;
+		}
+		
+		public boolean isColumnStale() {
+			return this.isColumnStale;
+		}
+		
+		public boolean isCubeStale() {
+			return this.isCubeStale;
+		}
+		
+		public NbtTagCompound getColumnNbt() {
+			return this.columnNbt;
+		}
+		
+		public CubeRecord getCubeRecord() {
+			return this.cubeRecord;
+		}
+		
+		public Throwable getError() {
+			return this.error;
+		}
+	}
+	
+	private CubeIO m_cubeIO;
+	private ExecutorService m_executor;
+	private HashMap<Long,Load> m_pendingLoads;
+	private ConcurrentBatchedQueue<Load> m_finishedLoads;
+	
+	public AsyncCubeLoader(CubeIO cubeIO, int numThreads) {
+		m_cubeIO = cubeIO;
+		m_executor = Executors.newFixedThreadPool(numThreads, new ThreadFactoryBuilder()
+			.setNameFormat("Cube Loader #%d")
+			.setDaemon(true)
+			.build()
+		);
+		m_pendingLoads = new HashMap<Long,Load>();
+		m_finishedLoads = new ConcurrentBatchedQueue<Load>();
+	}
+	
+	public boolean isLoading(long cubeAddress) {
+		return m_pendingLoads.containsKey(cubeAddress);
+	}
+	
+	public int getNumPendingLoads() {
+		return m_pendingLoads.size();
+	}
+	
+	public void load(long cubeAddress, boolean needsColumn, ICubeLoadCallback callback) {
+		// NOTE: only call this from the server thread
+		
+		// is the cube already being loaded?
+		Load load = m_pendingLoads.get(cubeAddress);
+		if (load == null) {
+			load = new Load(m_cubeIO, cubeAddress, needsColumn, m_finishedLoads);
+			m_pendingLoads.put(cubeAddress, load);
+			m_executor.execute(load);
+		}
+		
+		if (callback != null) {
+			load.callbacks.add(callback);
+		}
+	}
+	
+	/**
+	 * Call this when a cube is unloaded. A load that's still in flight could have read an older copy,
+	 * so the server thread reads it again when the load finishes.
+	 */
+	public void invalidateCube(long cubeAddress) {
+		// NOTE: only call this from the server thread
+		Load load = m_pendingLoads.get(cubeAddress);
+		if (load != null) {
+			load.isCubeStale = true;
+		}
+	}
+	
+	/**
+	 * Call this when a column is unloaded, for the same reason as {@link #invalidateCube}.
+	 */
+	public void invalidateColumn(int cubeX, int cubeZ) {
+		// NOTE: only call this from the server thread
+		for (Load load : m_pendingLoads.values()) {
+			if (load.needsColumn && load.getX() == cubeX && load.getZ() == cubeZ) {
+				load.isColumnStale = true;
+			}
+		}
+	}
+	
+	/**
+	 * Stops the loader threads. Loads that haven't started yet never finish.
+	 */
+	public void shutdown() {
+		m_executor.shutdownNow();
+		try {
+			if (!m_executor.awaitTermination(10, TimeUnit.SECONDS)) {
+				log.warn("Cube loader threads didn't stop in time");
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	public boolean getFinishedLoads(List<Load> out, int size) {
+		return m_finishedLoads.getBatch(out, size);
+	}
+	
+	public void finish(Load load, Cube cube) {
+		m_pendingLoads.remove(load.address);
+		for (ICubeLoadCallback callback : load.callbacks) {
+			try {
+				callback.onCubeLoaded(cube);
+			} catch (Throwable t) {
+				log.error("Cube load callback failed for cube ({},{},{})", load.getX(), load.getY(), load.getZ(), t);
+			}
+		}
+	}
+}
@@ -31,8 +31,17 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import net.minecraft.block.Block;
 import net.minecraft.block.entity.BlockEntity;
@@ -46,23 +55,30 @@ import net.minecraft.world.ScheduledBlockTick;
 import net.minecraft.world.World;
 import net.minecraft.world.WorldServer;
 import net.minecraft.world.chunk.NibbleArray;
-import net.minecraft.world.chunk.storage.ChunkSection;
 import net.minecraft.world.storage.FileIOWorker;
 import net.minecraft.world.storage.IThreadedFileIO;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.mapdb.DB;
-import org.mapdb.DBMaker;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import cubicchunks.TallWorldsConfig;
+import cubicchunks.cache.ICacheWeigher;
+import cubicchunks.cache.LongBoundedCache;
 import cubicchunks.generator.GeneratorStage;
+import cubicchunks.server.storage.ICubeStorage;
+import cubicchunks.server.storage.JournaledCubeStorage;
+import cubicchunks.server.storage.MapDBCubeStorage;
+import cubicchunks.server.storage.RegionCubeStorage;
 import cubicchunks.util.AddressTools;
-import cubicchunks.util.ConcurrentBatchedQueue;
+import cubicchunks.util.ConcurrentBatchedMappedQueue;
 import cubicchunks.util.Coords;
 import cubicchunks.world.ChunkSectionHelper;
 import cubicchunks.world.IEntityActionListener;
 import cubicchunks.world.column.Column;
 import cubicchunks.world.cube.Cube;
+import cubicchunks.world.cube.IBlockStorage;
 
 public class CubeIO implements IThreadedFileIO {
 	
@@ -72,84 +88,239 @@ public class CubeIO implements IThreadedFileIO {
 		
 		private long address;
 		private NbtTagCompound nbt;
+		private CubeRecord record;
+		private boolean keepCold;
 		
 		public SaveEntry(long address, NbtTagCompound nbt) {
 			this.address = address;
 			this.nbt = nbt;
+			this.record = null;
+		}
+		
+		public SaveEntry(CubeRecord record) {
+			this.address = record.getAddress();
+			this.nbt = null;
+			this.record = record;
 		}
+		
 	}
 	
-	private DB m_db;
-	private ConcurrentNavigableMap<Long,byte[]> m_columns;
-	private ConcurrentNavigableMap<Long,byte[]> m_cubes;
-	private ConcurrentBatchedQueue<SaveEntry> m_columnsToSave;
-	private ConcurrentBatchedQueue<SaveEntry> m_cubesToSave;
+	private ICubeStorage m_storage;
+	private int m_numCompressionThreads;
+	private ExecutorService m_compressor;
+	private ConcurrentBatchedMappedQueue<Long,SaveEntry> m_columnsToSave;
+	private ConcurrentBatchedMappedQueue<Long,SaveEntry> m_cubesToSave;
+	private HashMap<Long,SaveEntry> m_columnsBeingSaved;
+	private HashMap<Long,SaveEntry> m_cubesBeingSaved;
+	private boolean m_groupCommit;
+	private volatile long m_bytesAtRisk;
+	private long m_lastCommitTime;
+	private ScheduledExecutorService m_commitTimer;
+	private boolean m_isCommitScheduled;
+	private LongBoundedCache<byte[]> m_coldCubes;
+	private Object m_writeLock;
+	private boolean m_isClosed;
 	
 	public CubeIO(File saveFile, Dimension dimension) {
 		
-		// init database connection
-		File file = new File(saveFile, String.format("cubes.dim%d.db", dimension.getId()));
+		// init storage
+		m_storage = openStorage(saveFile, dimension);
+		m_groupCommit = TallWorldsConfig.Durability.equals("group");
+		m_bytesAtRisk = 0;
+		m_lastCommitTime = System.currentTimeMillis();
+		m_isCommitScheduled = false;
+		m_writeLock = new Object();
+		m_isClosed = false;
 		
-		file.getParentFile().mkdirs();
-		m_db = DBMaker.newFileDB(file).closeOnJvmShutdown()
-		// .compressionEnable()
-			.make();
+		// init chunk save queue
+		// saving an address that's already queued replaces the queued entry
+		m_columnsToSave = new ConcurrentBatchedMappedQueue<Long,SaveEntry>();
+		m_cubesToSave = new ConcurrentBatchedMappedQueue<Long,SaveEntry>();
+		m_columnsBeingSaved = new HashMap<Long,SaveEntry>();
+		m_cubesBeingSaved = new HashMap<Long,SaveEntry>();
+		
+		// init the cold cube cache
+		// it holds the compressed bytes we just wrote, so evicting a cube only means forgetting it
+		if (TallWorldsConfig.ColdCubeCacheBytes > 0) {
+			m_coldCubes = new LongBoundedCache<byte[]>(TallWorldsConfig.ColdCubeCacheBytes, new ICacheWeigher<byte[]>() {
+				
+				@Override
+				public int getWeight(byte[] data) {
+					return data.length;
+				}
+			});
+		} else {
+			m_coldCubes = null;
+		}
 		
-		// NOTE: could set different cache settings
-		// the default is a hash map cache with 32768 entries
-		// see: http://www.mapdb.org/features.html
+		// init the compression threads
+		// the save queue is only drained by the IO thread, which waits on the results and does all the writes
+		m_numCompressionThreads = Math.max(1, TallWorldsConfig.CompressionThreads);
+		m_compressor = Executors.newFixedThreadPool(m_numCompressionThreads, new ThreadFactoryBuilder()
+			.setNameFormat("Cube Compressor #%d")
+			.setDaemon(true)
+			.build()
+		);
 		
-		m_columns = m_db.getTreeMap("columns");
-		m_cubes = m_db.getTreeMap("chunks");
+		// group commits that come due while nothing is being saved need something to wake up the IO thread
+		if (m_groupCommit) {
+			m_commitTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+				.setNameFormat("Cube Commit Timer")
+				.setDaemon(true)
+				.build()
+			);
+		} else {
+			m_commitTimer = null;
+		}
+	}
+	
+	private static ICubeStorage openStorage(File saveFile, Dimension dimension) {
+		ICubeStorage storage;
+		if (TallWorldsConfig.StorageBackend.equals("region")) {
+			storage = new RegionCubeStorage(new File(saveFile, String.format("cubes.dim%d", dimension.getId())));
+		} else {
+			if (!TallWorldsConfig.StorageBackend.equals("mapdb")) {
+				log.warn("Unknown storage backend \"{}\", using mapdb", TallWorldsConfig.StorageBackend);
+			}
+			storage = new MapDBCubeStorage(new File(saveFile, String.format("cubes.dim%d.db", dimension.getId())));
+		}
 		
-		// init chunk save queue
-		m_columnsToSave = new ConcurrentBatchedQueue<SaveEntry>();
-		m_cubesToSave = new ConcurrentBatchedQueue<SaveEntry>();
+		if (TallWorldsConfig.Durability.equals("journal")) {
+			File journalFile = new File(saveFile, String.format("cubes.dim%d.journal", dimension.getId()));
+			try {
+				return new JournaledCubeStorage(storage, journalFile,
+					TallWorldsConfig.JournalCheckpointMillis,
+					TallWorldsConfig.JournalCheckpointBytes
+				);
+			} catch (IOException ex) {
+				log.error("Unable to open cube journal {}, committing every batch instead", journalFile, ex);
+			}
+		} else if (!TallWorldsConfig.Durability.equals("batch") && !TallWorldsConfig.Durability.equals("group")) {
+			log.warn("Unknown durability mode \"{}\", using batch", TallWorldsConfig.Durability);
+		}
+		return storage;
 	}
 	
-	public boolean columnExists(long address) {
-		return m_columns.containsKey(address);
+	/**
+	 * Returns the number of bytes written to storage that a crash right now would lose.
+	 */
+	public long getBytesAtRisk() {
+		return m_bytesAtRisk;
+	}
+	
+	public boolean columnExists(long address) throws IOException {
+		return getPendingSave(m_columnsToSave, m_columnsBeingSaved, address) != null || m_storage.columnExists(address);
 	}
 	
 	public Column loadColumn(World world, int cubeX, int cubeZ) throws IOException {
 		// does the database have the column?
-		long address = AddressTools.getAddress(cubeX, cubeZ);
-		byte[] data = m_columns.get(address);
-		if (data == null) {
+		NbtTagCompound nbt = readColumnNbt(AddressTools.getAddress(cubeX, cubeZ));
+		if (nbt == null) {
 			// returning null tells the world to generate a new column
 			return null;
 		}
 		
-		// read the NBT
-		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
-		NbtTagCompound nbt = CompressedStreamTools.readCompressedInputStream(in);
-		in.close();
-		
 		// restore the column
 		return readColumnFromNBT(world, cubeX, cubeZ, nbt);
 	}
 	
-	public boolean cubeExists(long address) {
-		return m_cubes.containsKey(address);
+	public NbtTagCompound readColumnNbt(long address) throws IOException {
+		// NOTE: this only touches the storage and save queues, so it's safe to call from the loader threads
+		
+		// is the column still waiting to be written?
+		// the NBT is only ever read after it's queued, so it's safe to share
+		SaveEntry entry = getPendingSave(m_columnsToSave, m_columnsBeingSaved, address);
+		if (entry != null) {
+			return entry.nbt;
+		}
+		
+		byte[] data = m_storage.readColumn(address);
+		if (data == null) {
+			return null;
+		}
+		return readNbtBytes(data);
+	}
+	
+	public boolean cubeExists(long address) throws IOException {
+		return getPendingSave(m_cubesToSave, m_cubesBeingSaved, address) != null || m_storage.cubeExists(address);
 	}
 	
 	public Cube loadCubeAndAddToColumn(World world, Column column, long address) throws IOException {
 		// does the database have the cube?
-		byte[] data = m_cubes.get(address);
+		CubeRecord record = readCubeRecord(address);
+		if (record == null) {
+			return null;
+		}
+		
+		// restore the cube
+		return readCubeFromRecordAndAddToColumn(world, column, record);
+	}
+	
+	public CubeRecord readCubeRecord(long address) throws IOException {
+		// NOTE: this only touches the storage and save queues, so it's safe to call from the loader threads
+		
+		// is the cube still waiting to be written?
+		CubeRecord pending = copyPendingCube(address);
+		if (pending != null) {
+			return pending;
+		}
+		
+		// did we unload the cube recently?
+		byte[] data = takeColdCube(address);
+		if (data == null) {
+			data = m_storage.readCube(address);
+		}
 		if (data == null) {
 			return null;
 		}
+		return decodeCube(address, data);
+	}
+	
+	/**
+	 * Reads all the saved cubes in one column between minCubeY and maxCubeY (inclusive), keyed by cube y.
+	 * Cubes that were never saved are missing from the map.
+	 */
+	public Map<Integer,CubeRecord> readCubeRecords(int cubeX, int cubeZ, int minCubeY, int maxCubeY) throws IOException {
+		// NOTE: this only touches the storage and save queues, so it's safe to call from the loader threads
+		
+		// check the save queues and the cold cubes first, so a save can't finish between our storage read and this lookup
+		Map<Integer,CubeRecord> records = new HashMap<Integer,CubeRecord>();
+		for (int cubeY = minCubeY; cubeY <= maxCubeY; cubeY++) {
+			long address = AddressTools.getAddress(cubeX, cubeY, cubeZ);
+			CubeRecord pending = copyPendingCube(address);
+			if (pending != null) {
+				records.put(cubeY, pending);
+				continue;
+			}
+			
+			// recently unloaded cubes don't need the storage either
+			byte[] data = takeColdCube(address);
+			if (data != null) {
+				records.put(cubeY, decodeCube(address, data));
+			}
+		}
 		
-		// read the NBT
-		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
-		NbtTagCompound nbt = CompressedStreamTools.readCompressedInputStream(in);
-		in.close();
+		// then get everything else in one range read
+		if (records.size() < maxCubeY - minCubeY + 1) {
+			Map<Long,byte[]> stored = new HashMap<Long,byte[]>();
+			m_storage.readCubes(cubeX, cubeZ, minCubeY, maxCubeY, stored);
+			for (Map.Entry<Long,byte[]> entry : stored.entrySet()) {
+				int cubeY = AddressTools.getY(entry.getKey());
+				if (!records.containsKey(cubeY)) {
+					records.put(cubeY, decodeCube(entry.getKey(), entry.getValue()));
+				}
+			}
+		}
 		
-		// restore the cube
-		int x = AddressTools.getX(address);
-		int y = AddressTools.getY(address);
-		int z = AddressTools.getZ(address);
-		return readCubeFromNbtAndAddToColumn(world, column, x, y, z, nbt);
+		return records;
+	}
+	
+	private CubeRecord decodeCube(long address, byte[] data) throws IOException {
+		// is this a binary record or an old NBT cube?
+		if (CubeRecord.isRecord(data)) {
+			return CubeRecord.decode(data);
+		}
+		return CubeRecord.fromLegacyNbt(address, readNbtBytes(data));
 	}
 	
 	public void saveColumn(Column column) {
@@ -159,7 +330,7 @@ public class CubeIO implements IThreadedFileIO {
 		// with concurrent access to world data structures
 		
 		// add the column to the save queue
-		m_columnsToSave.add(new SaveEntry(column.getAddress(), writeColumnToNbt(column)));
+		m_columnsToSave.add(column.getAddress(), new SaveEntry(column.getAddress(), writeColumnToNbt(column)));
 		column.markSaved();
 		
 		// signal the IO thread to process the save queue
@@ -167,9 +338,33 @@ public class CubeIO implements IThreadedFileIO {
 	}
 	
 	public void saveCube(Cube cube) {
+		saveCube(cube, false);
+	}
+	
+	/**
+	 * Saves a cube that was just unloaded and keeps its compressed bytes around in case it gets loaded again soon.
+	 */
+	public void saveUnloadedCube(Cube cube) {
+		saveCube(cube, true);
+	}
+	
+	private void saveCube(Cube cube, boolean keepCold) {
 		// NOTE: this function blocks the world thread, so make it fast
 		
-		m_cubesToSave.add(new SaveEntry(cube.getAddress(), writeCubeToNbt(cube)));
+		// empty cubes are saved as a marker record, so the old copy of the cube gets replaced in the same commit
+		CubeRecord record;
+		if (canSaveAsEmpty(cube)) {
+			record = CubeRecord.forEmptyCube(cube.getX(), cube.getY(), cube.getZ(), (byte)cube.getGeneratorStage().ordinal());
+		} else {
+			record = writeCubeToRecord(cube);
+		}
+		SaveEntry entry = new SaveEntry(record);
+		entry.keepCold = keepCold && m_coldCubes != null;
+		SaveEntry replacedEntry = m_cubesToSave.add(cube.getAddress(), entry);
+		if (replacedEntry != null) {
+			// no one will write the old save now, but its snapshot still has to go back
+			replacedEntry.record.discardSnapshot();
+		}
 		cube.markSaved();
 		
 		// signal the IO thread to process the save queue
@@ -181,8 +376,52 @@ public class CubeIO implements IThreadedFileIO {
 		
 		// NOTE: return true to redo this call (used for batching)
 		
-		final int ColumnsBatchSize = 25;
-		final int CubesBatchSize = 250;
+		// close() writes from another thread, so take turns
+		synchronized (m_writeLock) {
+			if (m_isClosed) {
+				return false;
+			}
+			return writeBatch();
+		}
+	}
+	
+	/**
+	 * Writes everything still in the save queues, makes it durable and closes the storage.
+	 * Call it after the last save, nothing gets written after this.
+	 */
+	public void close() {
+		synchronized (m_writeLock) {
+			if (m_isClosed) {
+				return;
+			}
+			m_isClosed = true;
+			
+			// don't wait for the IO thread to get to it
+			while (m_columnsToSave.size() > 0 || m_cubesToSave.size() > 0) {
+				writeBatch();
+			}
+			
+			try {
+				// not every storage commits when it closes
+				m_storage.commit();
+				m_bytesAtRisk = 0;
+				m_storage.close();
+			} catch (IOException ex) {
+				log.error("Unable to close cube storage", ex);
+			}
+			m_compressor.shutdown();
+			if (m_commitTimer != null) {
+				m_commitTimer.shutdownNow();
+			}
+		}
+	}
+	
+	private boolean writeBatch() {
+		
+		// bigger batches when there are more threads to compress them
+		int batchScale = Math.min(m_numCompressionThreads, 8);
+		final int ColumnsBatchSize = 25 * batchScale;
+		final int CubesBatchSize = 250 * batchScale;
 		
 		int numColumnsSaved = 0;
 		int numColumnsRemaining = 0;
@@ -192,15 +431,23 @@ public class CubeIO implements IThreadedFileIO {
 		int numCubeBytesSaved = 0;
 		long start = System.currentTimeMillis();
 		
-		List<SaveEntry> entries = new ArrayList<SaveEntry>(Math.max(ColumnsBatchSize, CubesBatchSize));
+		// get a batch of columns and cubes
+		List<SaveEntry> columnEntries = new ArrayList<SaveEntry>(ColumnsBatchSize);
+		List<SaveEntry> cubeEntries = new ArrayList<SaveEntry>(CubesBatchSize);
+		boolean hasMoreColumns = takeBatch(m_columnsToSave, m_columnsBeingSaved, columnEntries, ColumnsBatchSize);
+		boolean hasMoreCubes = takeBatch(m_cubesToSave, m_cubesBeingSaved, cubeEntries, CubesBatchSize);
 		
-		// save a batch of columns
-		boolean hasMoreColumns = m_columnsToSave.getBatch(entries, ColumnsBatchSize);
-		for (SaveEntry entry : entries) {
+		// compress everything on the compression threads
+		List<Future<byte[]>> columnData = compress(columnEntries);
+		List<Future<byte[]>> cubeData = compress(cubeEntries);
+		
+		// then write the results in queue order as they finish
+		for (int i = 0; i < columnEntries.size(); i++) {
+			SaveEntry entry = columnEntries.get(i);
 			try {
 				// save the column
-				byte[] data = writeNbtBytes(entry.nbt);
-				m_columns.put(entry.address, data);
+				byte[] data = getCompressed(columnData.get(i));
+				m_storage.writeColumn(entry.address, data);
 				
 				numColumnsSaved++;
 				numColumnBytesSaved += data.length;
@@ -211,19 +458,21 @@ public class CubeIO implements IThreadedFileIO {
 					t
 				);
 			}
+			finishSave(m_columnsBeingSaved, entry);
 		}
-		entries.clear();
 		
-		// save a batch of cubes
-		boolean hasMoreCubes = m_cubesToSave.getBatch(entries, CubesBatchSize);
-		for (SaveEntry entry : entries) {
+		for (int i = 0; i < cubeEntries.size(); i++) {
+			SaveEntry entry = cubeEntries.get(i);
 			try {
 				// save the cube
-				byte[] data = writeNbtBytes(entry.nbt);
-				m_cubes.put(entry.address, data);
+				byte[] data = getCompressed(cubeData.get(i));
+				m_storage.writeCube(entry.address, data);
+				numCubeBytesSaved += data.length;
+				
+				// a cold copy is only good until the next save
+				updateColdCube(entry.address, entry.keepCold ? data : null);
 				
 				numCubesSaved++;
-				numCubeBytesSaved += data.length;
 			} catch (Throwable t) {
 				log.error("Unable to write cube {},{},{}",
 					AddressTools.getX(entry.address),
@@ -232,24 +481,178 @@ public class CubeIO implements IThreadedFileIO {
 					t
 				);
 			}
+			finishSave(m_cubesBeingSaved, entry);
 		}
-		entries.clear();
 		
 		numColumnsRemaining = m_columnsToSave.size();
 		numCubesRemaining = m_cubesToSave.size();
+		m_bytesAtRisk += numColumnBytesSaved + numCubeBytesSaved;
 		
 		// flush changes to disk
-		m_db.commit();
+		// in journal mode, this only syncs the journal
+		boolean committed = false;
+		boolean commitPending = m_bytesAtRisk > 0;
+		if (commitPending && shouldCommit(start)) {
+			try {
+				m_storage.commit();
+				m_bytesAtRisk = 0;
+				committed = true;
+			} catch (IOException ex) {
+				log.error("Unable to commit cubes and columns", ex);
+			}
+			m_lastCommitTime = System.currentTimeMillis();
+			commitPending = false;
+		}
 		
-		long diff = System.currentTimeMillis() - start;
-		log.info("Wrote {} columns ({} remaining) ({}k) and {} cubes ({} remaining) ({}k) in {} ms",
-			numColumnsSaved, numColumnsRemaining, numColumnBytesSaved / 1024,
-			numCubesSaved, numCubesRemaining, numCubeBytesSaved / 1024, diff
-		);
+		// don't spam the log while we're just waiting for a group commit
+		if (numColumnsSaved > 0 || numCubesSaved > 0 || committed) {
+			long diff = System.currentTimeMillis() - start;
+			log.info("Wrote {} columns ({} remaining) ({}k) and {} cubes ({} remaining) ({}k) in {} ms, {}k not committed",
+				numColumnsSaved, numColumnsRemaining, numColumnBytesSaved / 1024,
+				numCubesSaved, numCubesRemaining, numCubeBytesSaved / 1024, diff,
+				m_bytesAtRisk / 1024
+			);
+		}
 		
+		// don't keep the IO thread polling until the group commit is due, have it come back then
+		if (commitPending) {
+			scheduleCommit();
+		}
 		return hasMoreColumns || hasMoreCubes;
 	}
 	
+	private void scheduleCommit() {
+		
+		// NOTE: only called with the write lock held
+		if (m_isCommitScheduled) {
+			return;
+		}
+		m_isCommitScheduled = true;
+		
+		long delay = Math.max(0, m_lastCommitTime + TallWorldsConfig.GroupCommitMillis - System.currentTimeMillis());
+		m_commitTimer.schedule(new Runnable() {
+			
+			@Override
+			public void run() {
+				synchronized (m_writeLock) {
+					m_isCommitScheduled = false;
+				}
+				FileIOWorker.getThread().queueIO(CubeIO.this);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+	
+	private byte[] takeColdCube(long address) {
+		if (m_coldCubes == null) {
+			return null;
+		}
+		
+		// a loaded cube gets a new cold copy when it unloads again, so don't keep this one
+		synchronized (m_coldCubes) {
+			byte[] data = m_coldCubes.get(address);
+			if (data != null) {
+				m_coldCubes.remove(address);
+			}
+			return data;
+		}
+	}
+	
+	private void updateColdCube(long address, byte[] data) {
+		if (m_coldCubes == null) {
+			return;
+		}
+		synchronized (m_coldCubes) {
+			if (data != null) {
+				m_coldCubes.put(address, data);
+			} else {
+				m_coldCubes.remove(address);
+			}
+		}
+	}
+	
+	private boolean shouldCommit(long now) {
+		if (!m_groupCommit) {
+			return true;
+		}
+		return m_bytesAtRisk >= TallWorldsConfig.GroupCommitBytes || now - m_lastCommitTime >= TallWorldsConfig.GroupCommitMillis;
+	}
+	
+	// NOTE: moving entries from the save queue to the being-saved map must look atomic to readers,
+	// otherwise a load could miss both and read the old copy from storage
+	
+	private CubeRecord copyPendingCube(long address) {
+		// copy the record, the loaded cube takes ownership of the arrays
+		// a newer save can replace the entry and discard its blocks before we copy them
+		// but the newer save is queued by then, so just look again
+		while (true) {
+			SaveEntry entry = getPendingSave(m_cubesToSave, m_cubesBeingSaved, address);
+			if (entry == null) {
+				return null;
+			}
+			CubeRecord copy = entry.record.copy();
+			if (copy != null) {
+				return copy;
+			}
+		}
+	}
+	
+	private synchronized SaveEntry getPendingSave(ConcurrentBatchedMappedQueue<Long,SaveEntry> queue, HashMap<Long,SaveEntry> beingSaved, long address) {
+		// newer saves are in the queue, so check it first
+		SaveEntry entry = queue.get(address);
+		if (entry == null) {
+			entry = beingSaved.get(address);
+		}
+		return entry;
+	}
+	
+	private synchronized boolean takeBatch(ConcurrentBatchedMappedQueue<Long,SaveEntry> queue, HashMap<Long,SaveEntry> beingSaved, List<SaveEntry> out, int size) {
+		LinkedHashMap<Long,SaveEntry> batch = new LinkedHashMap<Long,SaveEntry>();
+		boolean hasMore = queue.getBatch(batch, size);
+		beingSaved.putAll(batch);
+		out.addAll(batch.values());
+		return hasMore;
+	}
+	
+	private synchronized void finishSave(HashMap<Long,SaveEntry> beingSaved, SaveEntry entry) {
+		// the storage has the data now
+		// but don't drop a newer save of the same address
+		if (beingSaved.get(entry.address) == entry) {
+			beingSaved.remove(entry.address);
+		}
+	}
+	
+	private List<Future<byte[]>> compress(List<SaveEntry> entries) {
+		List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>(entries.size());
+		for (final SaveEntry entry : entries) {
+			futures.add(m_compressor.submit(new Callable<byte[]>() {
+				
+				@Override
+				public byte[] call() throws IOException {
+					if (entry.record != null) {
+						return entry.record.encode();
+					}
+					return writeNbtBytes(entry.nbt);
+				}
+			}));
+		}
+		return futures;
+	}
+	
+	private byte[] getCompressed(Future<byte[]> future) throws Throwable {
+		try {
+			return future.get();
+		} catch (ExecutionException ex) {
+			throw ex.getCause();
+		}
+	}
+	
+	private NbtTagCompound readNbtBytes(byte[] data) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		NbtTagCompound nbt = CompressedStreamTools.readCompressedInputStream(in);
+		in.close();
+		return nbt;
+	}
+	
 	private byte[] writeNbtBytes(NbtTagCompound nbt) throws IOException {
 		ByteArrayOutputStream buf = new ByteArrayOutputStream();
 		DataOutputStream out = new DataOutputStream(buf);
@@ -271,7 +674,7 @@ public class CubeIO implements IThreadedFileIO {
 		nbt.put("InhabitedTime", column.getInhabitedTime());
 		
 		// biome mappings
-		nbt.put("Biomes", column.getBiomeMap());
+		nbt.put("Biomes", column.getBiomeMap().clone());
 		
 		// light index
 		nbt.put("LightIndex", column.getLightIndex().getData());
@@ -282,7 +685,7 @@ public class CubeIO implements IThreadedFileIO {
 		return nbt;
 	}
 	
-	private Column readColumnFromNBT(World world, final int x, final int z, NbtTagCompound nbt) {
+	public Column readColumnFromNBT(World world, final int x, final int z, NbtTagCompound nbt) {
 		
 		// check the version number
 		byte version = nbt.getAsByte("v");
@@ -307,7 +710,7 @@ public class CubeIO implements IThreadedFileIO {
 		column.setInhabitedTime(nbt.getAsLong("InhabitedTime"));
 		
 		// biomes
-		column.setBiomeMap(nbt.getAsByteArray("Biomes"));
+		column.setBiomeMap(nbt.getAsByteArray("Biomes").clone());
 		
 		// read light index
 		column.getLightIndex().readData(nbt.getAsByteArray("LightIndex"));
@@ -327,38 +730,38 @@ public class CubeIO implements IThreadedFileIO {
 		return column;
 	}
 	
-	private NbtTagCompound writeCubeToNbt(final Cube cube) {
-		
-		NbtTagCompound nbt = new NbtTagCompound();
-		nbt.put("v", (byte)1);
-		
-		// coords
-		nbt.put("x", cube.getX());
-		nbt.put("y", cube.getY());
-		nbt.put("z", cube.getZ());
-		
-		nbt.put("GeneratorStage", (byte)cube.getGeneratorStage().ordinal());
+	private static boolean canSaveAsEmpty(Cube cube) {
+		// NOTE: scheduled ticks in a cube without blocks are meaningless, so don't bother looking for them
+		return !cube.hasBlocks()
+			&& cube.getGeneratorStage().isLastStage()
+			&& cube.getEntityContainer().size() == 0
+			&& !cube.getBlockEntities().iterator().hasNext();
+	}
+	
+	private CubeRecord writeCubeToRecord(Cube cube) {
 		
+		// just snapshot the blocks and light, the storage copies them only if the cube changes before we're done
+		// the compression threads turn the snapshot into arrays and encode them later
+		IBlockStorage snapshot = null;
 		if (!cube.isEmpty()) {
-			
-			// blocks
-			ChunkSection storage = cube.getStorage();
-			nbt.put("Blocks", ChunkSectionHelper.getBlockLSBArray(storage));
-			NibbleArray msbArray = ChunkSectionHelper.getBlockMSBArray(storage);
-			if (msbArray != null) {
-				nbt.put("Add", msbArray.get());
-			}
-			
-			// metadata
-			nbt.put("Data", ChunkSectionHelper.getBlockMetaArray(storage).get());
-			
-			// light
-			nbt.put("BlockLight", storage.getBlockLightArray().get());
-			if (storage.getSkyLightArray() != null) {
-				nbt.put("SkyLight", storage.getSkyLightArray().get());
-			}
+			snapshot = cube.getStorage().snapshot();
 		}
 		
+		// everything else still goes in NBT
+		// entities and block entities keep changing and aren't thread-safe, so that part has to happen right here
+		NbtTagCompound nbt = new NbtTagCompound();
+		writeCubeEntitiesToNbt(cube, nbt);
+		
+		return new CubeRecord(
+			cube.getX(), cube.getY(), cube.getZ(),
+			(byte)cube.getGeneratorStage().ordinal(),
+			snapshot,
+			nbt
+		);
+	}
+	
+	private void writeCubeEntitiesToNbt(final Cube cube, NbtTagCompound nbt) {
+		
 		// entities
 		cube.getEntityContainer().writeToNbt(nbt, "Entities", new IEntityActionListener() {
 			
@@ -406,8 +809,49 @@ public class CubeIO implements IThreadedFileIO {
 				nbtTicks.add(nbtScheduledTick);
 			}
 		}
+	}
+	
+	public Cube readCubeFromRecordAndAddToColumn(World world, Column column, CubeRecord record) {
+		
+		// old cubes are still in the version 1 NBT format
+		if (record.isLegacy()) {
+			return readCubeFromNbtAndAddToColumn(world, column, record.getX(), record.getY(), record.getZ(), record.getNbt());
+		}
 		
-		return nbt;
+		// check against column
+		int x = record.getX();
+		int y = record.getY();
+		int z = record.getZ();
+		if (x != column.chunkX || z != column.chunkZ) {
+			throw new Error(String.format("Cube is corrupted! Cube (%d,%d,%d) does not match column (%d,%d)", x, y, z, column.chunkX, column.chunkZ));
+		}
+		
+		// build the cube
+		boolean hasSky = !world.dimension.hasNoSky();
+		Cube cube = column.getOrCreateCube(y, false);
+		
+		// get the generator stage
+		cube.setGeneratorStage(GeneratorStage.values()[record.getGeneratorStage()]);
+		
+		// is this an empty cube?
+		boolean isEmpty = record.getBlocks() == null;
+		cube.setEmpty(isEmpty);
+		if (!isEmpty) {
+			IBlockStorage storage = cube.getStorage();
+			
+			// block states are stored in the same encoding the storage uses
+			storage.setBlockData(record.getBlocks());
+			
+			// lights
+			storage.setBlockLightData(record.getBlockLight());
+			if (hasSky && record.getSkyLight() != null) {
+				storage.setSkyLightData(record.getSkyLight());
+			}
+		}
+		
+		readCubeEntitiesFromNbt(world, column, cube, record.getNbt());
+		
+		return cube;
 	}
 	
 	private Cube readCubeFromNbtAndAddToColumn(World world, Column column, final int x, final int y, final int z, NbtTagCompound nbt) {
@@ -445,7 +889,7 @@ public class CubeIO implements IThreadedFileIO {
 		boolean isEmpty = !nbt.containsKey("Blocks");
 		cube.setEmpty(isEmpty);
 		if (!isEmpty) {
-			ChunkSection storage = cube.getStorage();
+			IBlockStorage storage = cube.getStorage();
 			
 			// block ids and metadata (ie block states)
 			byte[] blockIdLsbs = nbt.getAsByteArray("Blocks");
@@ -457,13 +901,19 @@ public class CubeIO implements IThreadedFileIO {
 			ChunkSectionHelper.setBlockStates(storage, blockIdLsbs, blockIdMsbs, blockMetadata);
 			
 			// lights
-			storage.setBlockLightArray(new NibbleArray(nbt.getAsByteArray("BlockLight")));
+			storage.setBlockLightData(nbt.getAsByteArray("BlockLight"));
 			if (hasSky) {
-				storage.setSkyLightArray(new NibbleArray(nbt.getAsByteArray("SkyLight")));
+				storage.setSkyLightData(nbt.getAsByteArray("SkyLight"));
 			}
-			storage.countBlocksInSection();
 		}
 		
+		readCubeEntitiesFromNbt(world, column, cube, nbt);
+		
+		return cube;
+	}
+	
+	private void readCubeEntitiesFromNbt(World world, Column column, final Cube cube, NbtTagCompound nbt) {
+		
 		// entities
 		cube.getEntityContainer().readFromNbt(nbt, "Entities", world, new IEntityActionListener() {
 			
@@ -478,9 +928,9 @@ public class CubeIO implements IThreadedFileIO {
 				}
 				
 				entity.addedToChunk = true;
-				entity.chunkX = x;
-				entity.chunkY = y;
-				entity.chunkZ = z;
+				entity.chunkX = cube.getX();
+				entity.chunkY = cube.getY();
+				entity.chunkZ = cube.getZ();
 			}
 		});
 		
@@ -513,8 +963,6 @@ public class CubeIO implements IThreadedFileIO {
 				);
 			}
 		}
-		
-		return cube;
 	}
 	
 	private List<ScheduledBlockTick> getScheduledTicks(Cube cube) {
@@ -0,0 +1,123 @@
+/*
+ *  This file is part of Cubic Chunks, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2014 Tall Worlds
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package cubicchunks.server;
+
+import cubicchunks.world.cube.Cube;
+import cubicchunks.world.column.Column;
+
+/**
+ * Estimated heap use of the loaded columns and cubes, by category.
+ * <p>
+ * The numbers come from the estimates on the cubes and columns themselves, so they're only good enough to budget with.
+ * Off-heap block storage is counted on its own and isn't part of the total.
+ */
+public class CubeMemoryUsage {
+	
+	private long blocks;
+	private long lightIndex;
+	private long entities;
+	private long blockEntities;
+	private long other;
+	private long offHeap;
+	
+	public CubeMemoryUsage() {
+		clear();
+	}
+	
+	public void clear() {
+		this.blocks = 0;
+		this.lightIndex = 0;
+		this.entities = 0;
+		this.blockEntities = 0;
+		this.other = 0;
+		this.offHeap = 0;
+	}
+	
+	public void addCube(Cube cube) {
+		long total = cube.getMemoryEstimate();
+		long blocks = cube.getStorage() == null ? 0 : cube.getStorage().getMemoryEstimate();
+		long entities = cube.getEntityContainer().getMemoryEstimate();
+		long blockEntities = cube.getBlockEntitiesMemoryEstimate();
+		this.blocks += blocks;
+		this.entities += entities;
+		this.blockEntities += blockEntities;
+		this.other += total - blocks - entities - blockEntities;
+		if (cube.getStorage() != null) {
+			this.offHeap += cube.getStorage().getOffHeapMemoryEstimate();
+		}
+	}
+	
+	public void addColumn(Column column) {
+		long total = column.getMemoryEstimate();
+		long lightIndex = column.getLightIndex().getMemoryEstimate();
+		long entities = column.getEntityContainer().getMemoryEstimate();
+		this.lightIndex += lightIndex;
+		this.entities += entities;
+		this.other += total - lightIndex - entities;
+	}
+	
+	public long getBlocks() {
+		return this.blocks;
+	}
+	
+	public long getLightIndex() {
+		return this.lightIndex;
+	}
+	
+	public long getEntities() {
+		return this.entities;
+	}
+	
+	public long getBlockEntities() {
+		return this.blockEntities;
+	}
+	
+	public long getOther() {
+		return this.other;
+	}
+	
+	public long getOffHeap() {
+		return this.offHeap;
+	}
+	
+	/**
+	 * Returns the heap estimate, without the off-heap storage.
+	 */
+	public long getTotal() {
+		return this.blocks + this.lightIndex + this.entities + this.blockEntities + this.other;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("%dM (blocks %dM, light index %dM, entities %dM, block entities %dM, other %dM) and %dM off heap",
+			toMegabytes(getTotal()), toMegabytes(this.blocks), toMegabytes(this.lightIndex),
+			toMegabytes(this.entities), toMegabytes(this.blockEntities), toMegabytes(this.other),
+			toMegabytes(this.offHeap)
+		);
+	}
+	
+	private static long toMegabytes(long bytes) {
+		return bytes / 1024 / 1024;
+	}
+}
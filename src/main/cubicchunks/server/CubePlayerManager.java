@@ -48,11 +48,11 @@ import net.minecraft.world.WorldServer;
 import net.minecraft.world.chunk.Chunk;
 
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 
 import cubicchunks.TallWorldsMod;
 import cubicchunks.util.AddressTools;
 import cubicchunks.util.Coords;
+import cubicchunks.util.Long2ObjectMap;
 import cubicchunks.visibility.CubeSelector;
 import cubicchunks.visibility.CuboidalCubeSelector;
 import cubicchunks.world.column.Column;
@@ -121,8 +121,8 @@ public class CubePlayerManager extends PlayerManager {
 	private WorldServer m_worldServer;
 	private ServerCubeCache m_cubeCache;
 	private int m_viewDistance;
-	private TreeMap<Long,CubeWatcher> m_watchers;
-	private TreeMap<Integer,PlayerInfo> m_players;
+	private Long2ObjectMap<CubeWatcher> m_watchers;
+	private Long2ObjectMap<PlayerInfo> m_players;
 	
 	public CubePlayerManager(WorldServer worldServer) {
 		super(worldServer);
@@ -130,8 +130,8 @@ public class CubePlayerManager extends PlayerManager {
 		this.m_worldServer = worldServer;
 		this.m_cubeCache = (ServerCubeCache)m_worldServer.serverChunkCache;
 		this.m_viewDistance = worldServer.getMinecraftServer().getConfigurationManager().getViewRadius();
-		this.m_watchers = Maps.newTreeMap();
-		this.m_players = Maps.newTreeMap();
+		this.m_watchers = new Long2ObjectMap<CubeWatcher>();
+		this.m_players = new Long2ObjectMap<PlayerInfo>();
 	}
 	
 	@Override
@@ -158,7 +158,11 @@ public class CubePlayerManager extends PlayerManager {
 			CubeWatcher watcher = getOrCreateWatcher(address);
 			watcher.addPlayer(player);
 			info.watchedAddresses.add(address);
-			info.outgoingCubesToLoad.add(watcher.getCube());
+			
+			// cubes that are still loading get sent when they're done
+			if (watcher.getCube() != null) {
+				info.outgoingCubesToLoad.add(watcher.getCube());
+			}
 		}
 	}
 	
@@ -173,11 +177,6 @@ public class CubePlayerManager extends PlayerManager {
 		
 		// remove player from all its cubes
 		for (long address : info.watchedAddresses) {
-			// skip non-existent cubes
-			if (!cubeExists(address)) {
-				continue;
-			}
-			
 			// get the watcher
 			CubeWatcher watcher = getWatcher(address);
 			if (watcher == null) {
@@ -189,8 +188,7 @@ public class CubePlayerManager extends PlayerManager {
 			
 			// cleanup empty watchers and cubes
 			if (!watcher.hasPlayers()) {
-				this.m_watchers.remove(address);
-				m_cubeCache.unloadCube(watcher.getCube());
+				removeWatcher(watcher);
 			}
 		}
 		
@@ -205,7 +203,8 @@ public class CubePlayerManager extends PlayerManager {
 		// update chunk properties
 		// send chunk updates to players
 		
-		for (CubeWatcher watcher : this.m_watchers.values()) {
+		for (int i = this.m_watchers.firstIndex(); i >= 0; i = this.m_watchers.nextIndex(i)) {
+			CubeWatcher watcher = this.m_watchers.getValueAt(i);
 			watcher.sendUpdates();
 			watcher.tick();
 		}
@@ -279,7 +278,9 @@ public class CubePlayerManager extends PlayerManager {
 		for (long address : info.cubeSelector.getNewlyVisibleCubes()) {
 			CubeWatcher watcher = getOrCreateWatcher(address);
 			watcher.addPlayer(player);
-			info.outgoingCubesToLoad.add(watcher.getCube());
+			if (watcher.getCube() != null) {
+				info.outgoingCubesToLoad.add(watcher.getCube());
+			}
 		}
 		
 		// remove from old watchers
@@ -290,12 +291,13 @@ public class CubePlayerManager extends PlayerManager {
 			}
 			
 			watcher.removePlayer(player);
-			info.outgoingCubesToUnload.add(watcher.getCube());
+			if (watcher.getCube() != null) {
+				info.outgoingCubesToUnload.add(watcher.getCube());
+			}
 			
 			// cleanup empty watchers and cubes
 			if (!watcher.hasPlayers()) {
-				this.m_watchers.remove(address);
-				m_cubeCache.unloadCube(watcher.getCube());
+				removeWatcher(watcher);
 			}
 		}
 	}
@@ -485,26 +487,64 @@ public class CubePlayerManager extends PlayerManager {
 		return this.m_watchers.get(address);
 	}
 	
-	private boolean cubeExists(long address) {
-		int cubeX = AddressTools.getX(address);
-		int cubeY = AddressTools.getY(address);
-		int cubeZ = AddressTools.getZ(address);
-		return m_cubeCache.cubeExists(cubeX, cubeY, cubeZ);
-	}
-	
 	private CubeWatcher getOrCreateWatcher(long address) {
 		CubeWatcher watcher = this.m_watchers.get(address);
 		if (watcher == null) {
-			// get the cube
+			// make a new watcher
+			watcher = new CubeWatcher(address);
+			this.m_watchers.put(address, watcher);
+			
+			// if the cube is about to be unloaded, keep it instead
+			m_cubeCache.cancelUnload(address);
+			
+			// load the cube in the background
+			// if it's already loaded, the callback runs right away
 			int cubeX = AddressTools.getX(address);
 			int cubeY = AddressTools.getY(address);
 			int cubeZ = AddressTools.getZ(address);
-			m_cubeCache.loadCubeAndNeighbors(cubeX, cubeY, cubeZ);
-			
-			// make a new watcher
-			watcher = new CubeWatcher(m_cubeCache.getCube(cubeX, cubeY, cubeZ));
-			this.m_watchers.put(address, watcher);
+			m_cubeCache.loadCubeAndNeighborsAsync(cubeX, cubeY, cubeZ, new ICubeLoadCallback() {
+				
+				@Override
+				public void onCubeLoaded(Cube cube) {
+					if (cube != null) {
+						onWatchedCubeLoaded(cube);
+					}
+				}
+			});
 		}
 		return watcher;
 	}
-}
+	
+	private void onWatchedCubeLoaded(Cube cube) {
+		
+		// did everyone stop watching the cube while it was loading?
+		CubeWatcher watcher = this.m_watchers.get(cube.getAddress());
+		if (watcher == null) {
+			m_cubeCache.unloadCube(cube);
+			return;
+		}
+		
+		// the watcher might have asked for the cube more than once
+		if (watcher.getCube() != null) {
+			return;
+		}
+		watcher.setCube(cube);
+		
+		// send the cube to the players that are waiting for it
+		for (int playerId : watcher.getPlayerIds()) {
+			PlayerInfo info = this.m_players.get(playerId);
+			if (info != null) {
+				info.outgoingCubesToLoad.add(cube);
+			}
+		}
+	}
+	
+	private void removeWatcher(CubeWatcher watcher) {
+		this.m_watchers.remove(watcher.getAddress());
+		
+		// if the cube is still loading, the load callback will unload it
+		if (watcher.getCube() != null) {
+			m_cubeCache.unloadCube(watcher.getCube());
+		}
+	}
+}
\ No newline at end of file
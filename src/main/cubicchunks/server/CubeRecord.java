@@ -0,0 +1,341 @@
+/*
+ *  This file is part of Cubic Chunks, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2014 Tall Worlds
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package cubicchunks.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import net.minecraft.nbt.CompressedStreamTools;
+import net.minecraft.nbt.NbtTagCompound;
+
+import cubicchunks.util.AddressTools;
+import cubicchunks.world.cube.IBlockStorage;
+
+/**
+ * A snapshot of everything CubeIO saves for a cube, detached from the world so it can be encoded and decoded on any thread.
+ * <p>
+ * The binary format (version 2) is:
+ * <pre>
+ * byte     version (2, never a GZip magic byte, so old NBT records are easy to tell apart)
+ * int      x, y, z
+ * byte     generator stage
+ * byte     flags (HasBlocks, HasSkyLight, IsEmptyCube)
+ * int      section length, then the deflated section: 4096 block chars, 2048 block light bytes, 2048 sky light bytes if any
+ * int      nbt length, then the GZip NBT: Entities, TileEntities, TileTicks
+ * </pre>
+ * Empty cubes stop after the flags, so their record is just a marker that replaces any older copy of the cube.
+ * A record can also be built around a block storage snapshot, so the world thread doesn't have to copy the blocks out.
+ * The snapshot is turned into arrays (and released) the first time anyone asks for them.
+ */
+public class CubeRecord {
+	
+	public static final byte Version = 2;
+	
+	private static final int NumBlocks = 16 * 16 * 16;
+	private static final int NumLightBytes = NumBlocks / 2;
+	
+	private static final int HasBlocks = 1 << 0;
+	private static final int HasSkyLight = 1 << 1;
+	private static final int IsEmptyCube = 1 << 2;
+	
+	private int x;
+	private int y;
+	private int z;
+	private byte generatorStage;
+	private char[] blocks;
+	private byte[] blockLight;
+	private byte[] skyLight;
+	private NbtTagCompound nbt;
+	private boolean isLegacy;
+	private boolean isEmptyCube;
+	private IBlockStorage snapshot;
+	private boolean isDiscarded;
+	
+	public CubeRecord(int x, int y, int z, byte generatorStage, char[] blocks, byte[] blockLight, byte[] skyLight, NbtTagCompound nbt) {
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		this.generatorStage = generatorStage;
+		this.blocks = blocks;
+		this.blockLight = blockLight;
+		this.skyLight = skyLight;
+		this.nbt = nbt;
+		this.isLegacy = false;
+		this.isEmptyCube = false;
+		this.snapshot = null;
+		this.isDiscarded = false;
+	}
+	
+	/**
+	 * @param snapshot a snapshot of the cube's block storage, or null for an empty cube. The record takes ownership of it.
+	 */
+	public CubeRecord(int x, int y, int z, byte generatorStage, IBlockStorage snapshot, NbtTagCompound nbt) {
+		this(x, y, z, generatorStage, null, null, null, nbt);
+		this.snapshot = snapshot;
+	}
+	
+	private CubeRecord(long address, NbtTagCompound legacyNbt) {
+		this(AddressTools.getX(address), AddressTools.getY(address), AddressTools.getZ(address), (byte)0, null, null, null, legacyNbt);
+		this.isLegacy = true;
+	}
+	
+	/**
+	 * Builds the record for a cube with no blocks, entities or block entities.
+	 */
+	public static CubeRecord forEmptyCube(int x, int y, int z, byte generatorStage) {
+		CubeRecord record = new CubeRecord(x, y, z, generatorStage, null, null, null, new NbtTagCompound());
+		record.isEmptyCube = true;
+		return record;
+	}
+	
+	public long getAddress() {
+		return AddressTools.getAddress(this.x, this.y, this.z);
+	}
+	
+	public int getX() {
+		return this.x;
+	}
+	
+	public int getY() {
+		return this.y;
+	}
+	
+	public int getZ() {
+		return this.z;
+	}
+	
+	public byte getGeneratorStage() {
+		return this.generatorStage;
+	}
+	
+	public char[] getBlocks() {
+		// NOTE: null means an empty cube
+		unpackSnapshot();
+		return this.blocks;
+	}
+	
+	public byte[] getBlockLight() {
+		unpackSnapshot();
+		return this.blockLight;
+	}
+	
+	public byte[] getSkyLight() {
+		unpackSnapshot();
+		return this.skyLight;
+	}
+	
+	public NbtTagCompound getNbt() {
+		return this.nbt;
+	}
+	
+	public boolean isLegacy() {
+		// legacy records only have the whole version 1 NBT tree, nothing else is decoded
+		return this.isLegacy;
+	}
+	
+	public boolean isEmptyCube() {
+		return this.isEmptyCube;
+	}
+	
+	/**
+	 * Returns null if the record was discarded, since its blocks may be gone.
+	 */
+	public CubeRecord copy() {
+		// NOTE: the NBT is shared, it's never modified after the record is built
+		if (!unpackSnapshot()) {
+			return null;
+		}
+		CubeRecord out = new CubeRecord(
+			this.x, this.y, this.z,
+			this.generatorStage,
+			this.blocks == null ? null : this.blocks.clone(),
+			this.blockLight == null ? null : this.blockLight.clone(),
+			this.skyLight == null ? null : this.skyLight.clone(),
+			this.nbt
+		);
+		out.isLegacy = this.isLegacy;
+		out.isEmptyCube = this.isEmptyCube;
+		return out;
+	}
+	
+	/**
+	 * Releases the block snapshot without reading it, for a save that will never be written.
+	 */
+	public synchronized void discardSnapshot() {
+		if (this.snapshot != null) {
+			this.snapshot.release();
+			this.snapshot = null;
+		}
+		this.isDiscarded = true;
+	}
+	
+	private synchronized boolean unpackSnapshot() {
+		
+		// NOTE: the compression threads and the loader threads can both get here, hence the lock
+		// the arrays never change after this, so whoever unpacks them can share them
+		if (this.snapshot != null) {
+			this.blocks = this.snapshot.getBlockData();
+			this.blockLight = this.snapshot.getBlockLightData();
+			this.skyLight = this.snapshot.getSkyLightData();
+			this.snapshot.release();
+			this.snapshot = null;
+		}
+		return !this.isDiscarded;
+	}
+	
+	public static boolean isRecord(byte[] data) {
+		return data.length > 0 && data[0] == Version;
+	}
+	
+	public static CubeRecord fromLegacyNbt(long address, NbtTagCompound nbt) {
+		return new CubeRecord(address, nbt);
+	}
+	
+	public byte[] encode() throws IOException {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream(4096);
+		DataOutputStream out = new DataOutputStream(buf);
+		
+		unpackSnapshot();
+		
+		// header
+		out.writeByte(Version);
+		out.writeInt(this.x);
+		out.writeInt(this.y);
+		out.writeInt(this.z);
+		out.writeByte(this.generatorStage);
+		int flags = 0;
+		if (this.isEmptyCube) {
+			// that's all there is to an empty cube
+			out.writeByte(IsEmptyCube);
+			out.close();
+			return buf.toByteArray();
+		}
+		if (this.blocks != null) {
+			flags |= HasBlocks;
+			if (this.skyLight != null) {
+				flags |= HasSkyLight;
+			}
+		}
+		out.writeByte(flags);
+		
+		// section
+		if (this.blocks != null) {
+			byte[] section = encodeSection();
+			out.writeInt(section.length);
+			out.write(section);
+		}
+		
+		// nbt
+		ByteArrayOutputStream nbtBuf = new ByteArrayOutputStream();
+		DataOutputStream nbtOut = new DataOutputStream(nbtBuf);
+		CompressedStreamTools.writeNbtMapToOutputStream(this.nbt, nbtOut);
+		nbtOut.close();
+		out.writeInt(nbtBuf.size());
+		nbtBuf.writeTo(out);
+		
+		out.close();
+		return buf.toByteArray();
+	}
+	
+	public static CubeRecord decode(byte[] data) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		
+		// header
+		byte version = in.readByte();
+		if (version != Version) {
+			throw new IOException("Cube record has wrong version! " + version);
+		}
+		int x = in.readInt();
+		int y = in.readInt();
+		int z = in.readInt();
+		byte generatorStage = in.readByte();
+		int flags = in.readByte();
+		if ((flags & IsEmptyCube) != 0) {
+			return forEmptyCube(x, y, z, generatorStage);
+		}
+		
+		// section
+		char[] blocks = null;
+		byte[] blockLight = null;
+		byte[] skyLight = null;
+		if ((flags & HasBlocks) != 0) {
+			byte[] section = new byte[in.readInt()];
+			in.readFully(section);
+			DataInputStream sectionIn = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(section)));
+			
+			byte[] blockBytes = new byte[NumBlocks * 2];
+			sectionIn.readFully(blockBytes);
+			blocks = new char[NumBlocks];
+			for (int i = 0; i < NumBlocks; i++) {
+				blocks[i] = (char)((blockBytes[i * 2] & 0xff) << 8 | (blockBytes[i * 2 + 1] & 0xff));
+			}
+			
+			blockLight = new byte[NumLightBytes];
+			sectionIn.readFully(blockLight);
+			if ((flags & HasSkyLight) != 0) {
+				skyLight = new byte[NumLightBytes];
+				sectionIn.readFully(skyLight);
+			}
+			sectionIn.close();
+		}
+		
+		// nbt
+		byte[] nbtBytes = new byte[in.readInt()];
+		in.readFully(nbtBytes);
+		DataInputStream nbtIn = new DataInputStream(new ByteArrayInputStream(nbtBytes));
+		NbtTagCompound nbt = CompressedStreamTools.readCompressedInputStream(nbtIn);
+		nbtIn.close();
+		
+		return new CubeRecord(x, y, z, generatorStage, blocks, blockLight, skyLight, nbt);
+	}
+	
+	private byte[] encodeSection() throws IOException {
+		
+		// NOTE: write the chars big-endian by hand, DataOutputStream.writeChar() is one virtual call per byte
+		byte[] blockBytes = new byte[NumBlocks * 2];
+		for (int i = 0; i < NumBlocks; i++) {
+			char val = this.blocks[i];
+			blockBytes[i * 2] = (byte)(val >> 8);
+			blockBytes[i * 2 + 1] = (byte)val;
+		}
+		
+		ByteArrayOutputStream buf = new ByteArrayOutputStream(1024);
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		DeflaterOutputStream out = new DeflaterOutputStream(buf, deflater);
+		out.write(blockBytes);
+		out.write(this.blockLight);
+		if (this.skyLight != null) {
+			out.write(this.skyLight);
+		}
+		out.close();
+		deflater.end();
+		return buf.toByteArray();
+	}
+}
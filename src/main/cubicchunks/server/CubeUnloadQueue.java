@@ -0,0 +1,124 @@
+/*
+ *  This file is part of Cubic Chunks, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2014 Tall Worlds
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package cubicchunks.server;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.TreeSet;
+
+import cubicchunks.util.AddressTools;
+import cubicchunks.util.Long2ObjectMap;
+
+/**
+ * Cubes waiting to be unloaded, grouped by column.
+ * <p>
+ * Queuing a cube twice does nothing, and a queued cube can be taken back out if someone wants it again.
+ * Columns come out in the order their first cube went in, with all their queued cubes at once,
+ * so a column only has to be looked at (and saved) once per batch.
+ */
+public class CubeUnloadQueue {
+	
+	private ArrayDeque<Long> m_columnOrder;
+	private Long2ObjectMap<TreeSet<Integer>> m_cubeYs;
+	private int m_size;
+	
+	public CubeUnloadQueue() {
+		m_columnOrder = new ArrayDeque<Long>();
+		m_cubeYs = new Long2ObjectMap<TreeSet<Integer>>();
+		m_size = 0;
+	}
+	
+	public int size() {
+		return m_size;
+	}
+	
+	public boolean isEmpty() {
+		return m_size == 0;
+	}
+	
+	/**
+	 * Returns false if the cube was already queued.
+	 */
+	public boolean add(long cubeAddress) {
+		long columnAddress = getColumnAddress(cubeAddress);
+		TreeSet<Integer> cubeYs = m_cubeYs.get(columnAddress);
+		if (cubeYs == null) {
+			cubeYs = new TreeSet<Integer>();
+			m_cubeYs.put(columnAddress, cubeYs);
+			m_columnOrder.add(columnAddress);
+		}
+		if (!cubeYs.add(AddressTools.getY(cubeAddress))) {
+			return false;
+		}
+		m_size++;
+		return true;
+	}
+	
+	public boolean contains(long cubeAddress) {
+		TreeSet<Integer> cubeYs = m_cubeYs.get(getColumnAddress(cubeAddress));
+		return cubeYs != null && cubeYs.contains(AddressTools.getY(cubeAddress));
+	}
+	
+	/**
+	 * Takes the cube back out of the queue. Returns false if it wasn't queued.
+	 */
+	public boolean remove(long cubeAddress) {
+		long columnAddress = getColumnAddress(cubeAddress);
+		TreeSet<Integer> cubeYs = m_cubeYs.get(columnAddress);
+		if (cubeYs == null || !cubeYs.remove(AddressTools.getY(cubeAddress))) {
+			return false;
+		}
+		
+		// leave the empty set, it keeps the column's spot in the order until it comes up
+		m_size--;
+		return true;
+	}
+	
+	/**
+	 * Takes all the queued cubes of the oldest column, adds their y values to out and returns the column address.
+	 * Returns -1 when the queue is empty, which is never a column address since those leave the y bits zero.
+	 */
+	public long pollColumn(Collection<Integer> out) {
+		while (!m_columnOrder.isEmpty()) {
+			long columnAddress = m_columnOrder.poll();
+			TreeSet<Integer> cubeYs = m_cubeYs.remove(columnAddress);
+			if (!cubeYs.isEmpty()) {
+				out.addAll(cubeYs);
+				m_size -= cubeYs.size();
+				return columnAddress;
+			}
+		}
+		return -1;
+	}
+	
+	public void clear() {
+		m_columnOrder.clear();
+		m_cubeYs.clear();
+		m_size = 0;
+	}
+	
+	private static long getColumnAddress(long cubeAddress) {
+		return AddressTools.getAddress(AddressTools.getX(cubeAddress), AddressTools.getZ(cubeAddress));
+	}
+}
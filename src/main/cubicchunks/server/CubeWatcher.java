@@ -23,6 +23,7 @@
  */
 package cubicchunks.server;
 
+import java.util.Collection;
 import java.util.Map;
 import java.util.SortedSet;
 import java.util.TreeSet;
@@ -59,29 +60,43 @@ public class CubeWatcher {
 		}
 	}
 	
+	private long address;
 	private Cube cube;
 	private Map<Integer,PlayerEntry> players;
 	private long previousWorldTime;
 	private SortedSet<Integer> dirtyBlocks;
 	
-	public CubeWatcher(Cube cube) {
-		if (cube == null) {
-			throw new IllegalArgumentException("cube cannot be null!");
-		}
-		
-		this.cube = cube;
+	public CubeWatcher(long address) {
+		this.address = address;
+		this.cube = null;
 		this.players = Maps.newTreeMap();
 		this.previousWorldTime = 0;
 		this.dirtyBlocks = new TreeSet<Integer>();
 	}
 	
+	public long getAddress() {
+		return this.address;
+	}
+	
 	public Cube getCube() {
+		// NOTE: this is null until the cube finishes loading
 		return this.cube;
 	}
 	
+	public void setCube(Cube cube) {
+		if (cube == null) {
+			throw new IllegalArgumentException("cube cannot be null!");
+		}
+		
+		this.cube = cube;
+		this.previousWorldTime = getWorldTime();
+	}
+	
 	public void addPlayer(EntityPlayerMP player) {
 		this.players.put(player.getEntityId(), new PlayerEntry(player));
-		this.previousWorldTime = getWorldTime();
+		if (this.cube != null) {
+			this.previousWorldTime = getWorldTime();
+		}
 	}
 	
 	public void removePlayer(EntityPlayerMP player) {
@@ -93,6 +108,10 @@ public class CubeWatcher {
 		return !this.players.isEmpty();
 	}
 	
+	public Collection<Integer> getPlayerIds() {
+		return this.players.keySet();
+	}
+	
 	public void setPlayerSawCube(EntityPlayerMP player) {
 		PlayerEntry entry = this.players.get(player.getEntityId());
 		if (entry != null) {
@@ -109,6 +128,10 @@ public class CubeWatcher {
 	}
 	
 	private void updateInhabitedTime() {
+		if (this.cube == null) {
+			return;
+		}
+		
 		final long now = getWorldTime();
 		
 		long inhabitedTime = this.cube.getColumn().getInhabitedTime();
@@ -116,6 +139,9 @@ public class CubeWatcher {
 		
 		this.cube.getColumn().setInhabitedTime(inhabitedTime);
 		this.previousWorldTime = now;
+		
+		// players are looking at the cube, so it's the last thing we want to unload
+		this.cube.setLastWatchedTime(now);
 	}
 	
 	public void setDirtyBlock(int localX, int localY, int localZ) {
@@ -129,7 +155,7 @@ public class CubeWatcher {
 	
 	public void sendUpdates() {
 		// are there any updates?
-		if (this.dirtyBlocks.isEmpty()) {
+		if (this.cube == null || this.dirtyBlocks.isEmpty()) {
 			return;
 		}
 		
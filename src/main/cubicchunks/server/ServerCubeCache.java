@@ -24,12 +24,16 @@
 package cubicchunks.server;
 
 import java.io.IOException;
-import java.util.ArrayDeque;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Queue;
+import java.util.Map;
 
 import net.minecraft.entity.CreatureTypes;
+import net.minecraft.nbt.NbtTagCompound;
 import net.minecraft.util.BlockPos;
 import net.minecraft.util.IProgressBar;
 import net.minecraft.world.WorldServer;
@@ -38,30 +42,64 @@ import net.minecraft.world.gen.ServerChunkCache;
 
 import org.slf4j.Logger;
 
-import com.google.common.collect.Maps;
+import com.google.common.primitives.Longs;
 
+import cubicchunks.TallWorldsConfig;
 import cubicchunks.generator.ColumnGenerator;
 import cubicchunks.generator.GeneratorStage;
 import cubicchunks.util.AddressTools;
 import cubicchunks.util.Coords;
+import cubicchunks.util.Long2ObjectMap;
 import cubicchunks.world.ICubeCache;
+import cubicchunks.world.IModificationListener;
 import cubicchunks.world.column.BlankColumn;
 import cubicchunks.world.column.Column;
 import cubicchunks.world.cube.Cube;
 import cuchaz.m3l.util.Logging;
 
-public class ServerCubeCache extends ServerChunkCache implements ICubeCache {
+public class ServerCubeCache extends ServerChunkCache implements ICubeCache, IModificationListener {
 	
 	private static final Logger log = Logging.getLogger();
 	
 	public static final int WorldSpawnChunkDistance = 12;
 	
+	// the hot cube cache has a slot for each cube in a 4x4x4 block, so any 3x3x3 neighborhood fits without collisions
+	private static final int HotCacheBits = 2;
+	private static final int HotCacheMask = (1 << HotCacheBits) - 1;
+	
+	// how often to re-estimate memory use, in ticks
+	private static final int MemoryCheckInterval = 20;
+	
+	// never unload cubes for the memory budget that a player saw this recently, in ticks
+	private static final int MinUnwatchedTicks = 20 * 10;
+	
+	// unloading gets a slice of every tick, the slice grows with the backlog but shrinks to the minimum when the server is behind
+	private static final long TickNanos = 50L * 1000 * 1000;
+	private static final long MinUnloadNanos = 2L * 1000 * 1000;
+	private static final long MaxUnloadNanos = 15L * 1000 * 1000;
+	private static final int BacklogForMaxUnloadTime = 4000;
+	
+	// always unload at least this many cubes per tick, so the backlog can't grow forever
+	private static final int MinUnloadsPerTick = 32;
+	
+	// background saving gets a fixed slice of every tick
+	private static final long SaveNanos = 3L * 1000 * 1000;
+	
 	private WorldServer worldServer;
 	private CubeIO cubeIO;
 	private ColumnGenerator columnGenerator;
-	private HashMap<Long,Column> loadedColumns;
+	private Long2ObjectMap<Column> loadedColumns;
+	private Long2ObjectMap<Cube> loadedCubes;
+	private long[] hotCubeAddresses;
+	private Cube[] hotCubes;
 	private BlankColumn blankColumn;
-	private Queue<Long> cubesToUnload;
+	private CubeUnloadQueue cubesToUnload;
+	private LinkedHashMap<Long,Long> dirtyCubes;
+	private LinkedHashMap<Long,Long> dirtyColumns;
+	private long lastTickNanos;
+	private AsyncCubeLoader cubeLoader;
+	private CubeMemoryUsage memoryUsage;
+	private int ticksToMemoryCheck;
 	
 	public ServerCubeCache(WorldServer worldServer) {
 		super(worldServer, null, null);
@@ -69,9 +107,18 @@ public class ServerCubeCache extends ServerChunkCache implements ICubeCache {
 		this.worldServer = worldServer;
 		this.cubeIO = new CubeIO(worldServer.getSaveHandler().getSaveFile(), worldServer.dimension);
 		this.columnGenerator = new ColumnGenerator(worldServer);
-		this.loadedColumns = Maps.newHashMap();
+		this.loadedColumns = new Long2ObjectMap<Column>();
+		this.loadedCubes = new Long2ObjectMap<Cube>();
+		this.hotCubeAddresses = new long[1 << (HotCacheBits * 3)];
+		this.hotCubes = new Cube[1 << (HotCacheBits * 3)];
 		this.blankColumn = new BlankColumn(worldServer, 0, 0);
-		this.cubesToUnload = new ArrayDeque<Long>();
+		this.cubesToUnload = new CubeUnloadQueue();
+		this.dirtyCubes = new LinkedHashMap<Long,Long>();
+		this.dirtyColumns = new LinkedHashMap<Long,Long>();
+		this.lastTickNanos = 0;
+		this.cubeLoader = new AsyncCubeLoader(this.cubeIO, TallWorldsConfig.LoaderThreads);
+		this.memoryUsage = new CubeMemoryUsage();
+		this.ticksToMemoryCheck = MemoryCheckInterval;
 	}
 	
 	@Override
@@ -81,16 +128,7 @@ public class ServerCubeCache extends ServerChunkCache implements ICubeCache {
 	
 	@Override
 	public boolean cubeExists(int cubeX, int cubeY, int cubeZ) {
-		
-		// is the column loaded?
-		long columnAddress = AddressTools.getAddress(cubeX, cubeZ);
-		Column column = this.loadedColumns.get(columnAddress);
-		if (column == null) {
-			return false;
-		}
-		
-		// is the cube loaded?
-		return column.getCube(cubeY) != null;
+		return getCube(cubeX, cubeY, cubeZ) != null;
 	}
 	
 	@Override
@@ -118,54 +156,46 @@ public class ServerCubeCache extends ServerChunkCache implements ICubeCache {
 	
 	@Override
 	public Cube getCube(int cubeX, int cubeY, int cubeZ) {
-		// is the column loaded?
-		long columnAddress = AddressTools.getAddress(cubeX, cubeZ);
-		Column column = this.loadedColumns.get(columnAddress);
-		if (column == null) {
-			return null;
+		
+		// NOTE: the hot cache isn't thread-safe, only call this from the server thread
+		
+		// did we just look at this cube?
+		long address = AddressTools.getAddress(cubeX, cubeY, cubeZ);
+		int slot = getHotSlot(cubeX, cubeY, cubeZ);
+		Cube cube = this.hotCubes[slot];
+		if (cube != null && this.hotCubeAddresses[slot] == address) {
+			return cube;
 		}
 		
-		return column.getCube(cubeY);
+		// no, check the index
+		cube = this.loadedCubes.get(address);
+		if (cube != null) {
+			this.hotCubeAddresses[slot] = address;
+			this.hotCubes[slot] = cube;
+		}
+		return cube;
 	}
 	
 	public void loadCubeAndNeighbors(int cubeX, int cubeY, int cubeZ) {
-		// load the requested cube
-		loadCube(cubeX, cubeY, cubeZ);
+		// load the requested stack first
+		loadCubeStack(cubeX, cubeZ, cubeY - 1, cubeY + 1);
 		
-		// load the neighbors
-		loadCube(cubeX - 1, cubeY - 1, cubeZ - 1);
-		loadCube(cubeX - 1, cubeY - 1, cubeZ + 0);
-		loadCube(cubeX - 1, cubeY - 1, cubeZ + 1);
-		loadCube(cubeX + 0, cubeY - 1, cubeZ - 1);
-		loadCube(cubeX + 0, cubeY - 1, cubeZ + 0);
-		loadCube(cubeX + 0, cubeY - 1, cubeZ + 1);
-		loadCube(cubeX + 1, cubeY - 1, cubeZ - 1);
-		loadCube(cubeX + 1, cubeY - 1, cubeZ + 0);
-		loadCube(cubeX + 1, cubeY - 1, cubeZ + 1);
-		
-		loadCube(cubeX - 1, cubeY + 0, cubeZ - 1);
-		loadCube(cubeX - 1, cubeY + 0, cubeZ + 0);
-		loadCube(cubeX - 1, cubeY + 0, cubeZ + 1);
-		loadCube(cubeX + 0, cubeY + 0, cubeZ - 1);
-		loadCube(cubeX + 0, cubeY + 0, cubeZ + 1);
-		loadCube(cubeX + 1, cubeY + 0, cubeZ - 1);
-		loadCube(cubeX + 1, cubeY + 0, cubeZ + 0);
-		loadCube(cubeX + 1, cubeY + 0, cubeZ + 1);
-		
-		loadCube(cubeX - 1, cubeY + 1, cubeZ - 1);
-		loadCube(cubeX - 1, cubeY + 1, cubeZ + 0);
-		loadCube(cubeX - 1, cubeY + 1, cubeZ + 1);
-		loadCube(cubeX + 0, cubeY + 1, cubeZ - 1);
-		loadCube(cubeX + 0, cubeY + 1, cubeZ + 0);
-		loadCube(cubeX + 0, cubeY + 1, cubeZ + 1);
-		loadCube(cubeX + 1, cubeY + 1, cubeZ - 1);
-		loadCube(cubeX + 1, cubeY + 1, cubeZ + 0);
-		loadCube(cubeX + 1, cubeY + 1, cubeZ + 1);
+		// then the neighboring stacks
+		for (int dx = -1; dx <= 1; dx++) {
+			for (int dz = -1; dz <= 1; dz++) {
+				if (dx != 0 || dz != 0) {
+					loadCubeStack(cubeX + dx, cubeZ + dz, cubeY - 1, cubeY + 1);
+				}
+			}
+		}
 	}
 	
 	public void loadCube(int cubeX, int cubeY, int cubeZ) {
+		loadCubeStack(cubeX, cubeZ, cubeY, cubeY);
+	}
+	
+	public void loadCubeStack(int cubeX, int cubeZ, int minCubeY, int maxCubeY) {
 		
-		long cubeAddress = AddressTools.getAddress(cubeX, cubeY, cubeZ);
 		long columnAddress = AddressTools.getAddress(cubeX, cubeZ);
 		
 		// step 1: get a column
@@ -174,38 +204,173 @@ public class ServerCubeCache extends ServerChunkCache implements ICubeCache {
 		Column column = this.loadedColumns.get(columnAddress);
 		if (column == null) {
 			// try loading it
+			NbtTagCompound columnNbt;
 			try {
-				column = this.cubeIO.loadColumn(this.worldServer, cubeX, cubeZ);
+				columnNbt = this.cubeIO.readColumnNbt(columnAddress);
 			} catch (IOException ex) {
 				log.error("Unable to load column ({},{})", cubeX, cubeZ, ex);
 				return;
 			}
-			
-			if (column == null) {
-				// there wasn't a column, generate a new one
-				column = this.columnGenerator.generateColumn(cubeX, cubeZ);
-			} else {
-				// the column was loaded
-				column.setLastSaveTime(this.worldServer.getGameTime());
-			}
+			column = makeColumn(cubeX, cubeZ, columnNbt);
 		}
 		assert (column != null);
 		
-		// step 2: get a cube
+		// step 2: get the cubes
 		
-		// is the cube already loaded?
-		Cube cube = column.getCube(cubeY);
-		if (cube != null) {
+		// are the cubes already loaded?
+		int minMissingY = Integer.MAX_VALUE;
+		int maxMissingY = Integer.MIN_VALUE;
+		for (int cubeY = minCubeY; cubeY <= maxCubeY; cubeY++) {
+			if (column.getCube(cubeY) == null) {
+				minMissingY = Math.min(minMissingY, cubeY);
+				maxMissingY = Math.max(maxMissingY, cubeY);
+			}
+		}
+		if (minMissingY > maxMissingY) {
 			return;
 		}
 		
-		// try to load the cube
+		// read the whole stack at once
+		Map<Integer,CubeRecord> cubeRecords;
 		try {
-			cube = this.cubeIO.loadCubeAndAddToColumn(this.worldServer, column, cubeAddress);
+			cubeRecords = this.cubeIO.readCubeRecords(cubeX, cubeZ, minMissingY, maxMissingY);
 		} catch (IOException ex) {
-			log.error("Unable to load cube ({},{},{})", cubeX, cubeY, cubeZ, ex);
+			log.error("Unable to load cubes ({},{}-{},{})", cubeX, minMissingY, maxMissingY, cubeZ, ex);
 			return;
 		}
+		for (int cubeY = minMissingY; cubeY <= maxMissingY; cubeY++) {
+			if (column.getCube(cubeY) == null) {
+				addCube(column, AddressTools.getAddress(cubeX, cubeY, cubeZ), cubeRecords.get(cubeY));
+			}
+		}
+	}
+	
+	public void loadCubeAndNeighborsAsync(int cubeX, int cubeY, int cubeZ, ICubeLoadCallback callback) {
+		// load the requested cube first so it's at the front of the loader queue
+		loadCubeAsync(cubeX, cubeY, cubeZ, callback);
+		
+		// load the neighbors
+		for (int dy = -1; dy <= 1; dy++) {
+			for (int dx = -1; dx <= 1; dx++) {
+				for (int dz = -1; dz <= 1; dz++) {
+					if (dx != 0 || dy != 0 || dz != 0) {
+						loadCubeAsync(cubeX + dx, cubeY + dy, cubeZ + dz, null);
+					}
+				}
+			}
+		}
+	}
+	
+	public void loadCubeAsync(int cubeX, int cubeY, int cubeZ, ICubeLoadCallback callback) {
+		
+		// is the cube already loaded?
+		Cube cube = getCube(cubeX, cubeY, cubeZ);
+		if (cube != null) {
+			if (callback != null) {
+				callback.onCubeLoaded(cube);
+			}
+			return;
+		}
+		
+		// read the cube on the loader threads, and the column too if we don't have it yet
+		// the cube gets added to the cache in tick()
+		boolean needsColumn = !this.loadedColumns.containsKey(AddressTools.getAddress(cubeX, cubeZ));
+		this.cubeLoader.load(AddressTools.getAddress(cubeX, cubeY, cubeZ), needsColumn, callback);
+	}
+	
+	private void processFinishedLoads() {
+		
+		final int LoadTickBudget = 10; // ms
+		final int LoadBatchSize = 20;
+		
+		long timeStop = System.currentTimeMillis() + LoadTickBudget;
+		List<AsyncCubeLoader.Load> loads = new ArrayList<AsyncCubeLoader.Load>(LoadBatchSize);
+		boolean hasMoreLoads = true;
+		while (hasMoreLoads && System.currentTimeMillis() < timeStop) {
+			loads.clear();
+			hasMoreLoads = this.cubeLoader.getFinishedLoads(loads, LoadBatchSize);
+			for (AsyncCubeLoader.Load load : loads) {
+				this.cubeLoader.finish(load, finishLoad(load));
+			}
+		}
+	}
+	
+	private Cube finishLoad(AsyncCubeLoader.Load load) {
+		
+		int cubeX = load.getX();
+		int cubeY = load.getY();
+		int cubeZ = load.getZ();
+		
+		if (load.getError() != null) {
+			log.error("Unable to load cube ({},{},{})", cubeX, cubeY, cubeZ, load.getError());
+			return null;
+		}
+		
+		// get the column
+		long columnAddress = AddressTools.getAddress(cubeX, cubeZ);
+		Column column = this.loadedColumns.get(columnAddress);
+		if (column == null) {
+			NbtTagCompound columnNbt = load.getColumnNbt();
+			if (!load.hasColumnNbt() || load.isColumnStale()) {
+				// the column was unloaded while the cube was loading, read it again
+				// the save queue has the newest copy if the column was saved in the meantime
+				try {
+					columnNbt = this.cubeIO.readColumnNbt(columnAddress);
+				} catch (IOException ex) {
+					log.error("Unable to load column ({},{})", cubeX, cubeZ, ex);
+					return null;
+				}
+			}
+			column = makeColumn(cubeX, cubeZ, columnNbt);
+		}
+		
+		// did someone else load the cube already?
+		Cube cube = column.getCube(cubeY);
+		if (cube != null) {
+			return cube;
+		}
+		
+		// was the cube saved since we read it?
+		CubeRecord record = load.getCubeRecord();
+		if (load.isCubeStale()) {
+			try {
+				record = this.cubeIO.readCubeRecord(load.getAddress());
+			} catch (IOException ex) {
+				log.error("Unable to load cube ({},{},{})", cubeX, cubeY, cubeZ, ex);
+				return null;
+			}
+		}
+		
+		return addCube(column, load.getAddress(), record);
+	}
+	
+	private Column makeColumn(int cubeX, int cubeZ, NbtTagCompound nbt) {
+		
+		Column column = null;
+		if (nbt != null) {
+			column = this.cubeIO.readColumnFromNBT(this.worldServer, cubeX, cubeZ, nbt);
+		}
+		
+		if (column == null) {
+			// there wasn't a column, generate a new one
+			column = this.columnGenerator.generateColumn(cubeX, cubeZ);
+		} else {
+			// the column was loaded
+			column.setLastSaveTime(this.worldServer.getGameTime());
+		}
+		return column;
+	}
+	
+	private Cube addCube(Column column, long cubeAddress, CubeRecord record) {
+		
+		int cubeX = AddressTools.getX(cubeAddress);
+		int cubeY = AddressTools.getY(cubeAddress);
+		int cubeZ = AddressTools.getZ(cubeAddress);
+		
+		Cube cube = null;
+		if (record != null) {
+			cube = this.cubeIO.readCubeFromRecordAndAddToColumn(this.worldServer, column, record);
+		}
 		
 		if (cube == null) {
 			// start the cube generation process with an empty cube
@@ -221,8 +386,20 @@ public class ServerCubeCache extends ServerChunkCache implements ICubeCache {
 			WorldServerContext.get(this.worldServer).getLightingManager().queueFirstLightCalculation(cubeAddress);
 		}
 		
-		// add the column to the cache
-		this.loadedColumns.put(columnAddress, column);
+		// add the column and cube to the cache
+		// count the cube as just watched, so the memory budget doesn't unload it before a player gets to see it
+		this.loadedColumns.put(AddressTools.getAddress(cubeX, cubeZ), column);
+		this.loadedCubes.put(cubeAddress, cube);
+		cube.setLastWatchedTime(this.worldServer.getGameTime());
+		
+		// from now on the column and cube tell us when they need saving
+		column.setModificationListener(this);
+		if (column.needsSaving(true)) {
+			onColumnModified(column);
+		}
+		if (cube.needsSaving()) {
+			onCubeModified(cube);
+		}
 		
 		// init the column
 		if (!column.isChunkLoaded()) {
@@ -233,6 +410,8 @@ public class ServerCubeCache extends ServerChunkCache implements ICubeCache {
 		
 		// init the cube
 		cube.onLoad();
+		
+		return cube;
 	}
 	
 	@Override
@@ -258,11 +437,18 @@ public class ServerCubeCache extends ServerChunkCache implements ICubeCache {
 		this.cubesToUnload.add(AddressTools.getAddress(cubeX, cubeY, cubeZ));
 	}
 	
+	/**
+	 * Keeps a cube loaded if it was queued for unloading, because someone wants it again.
+	 */
+	public void cancelUnload(long cubeAddress) {
+		this.cubesToUnload.remove(cubeAddress);
+	}
+	
 	@Override
 	public void unloadAllChunks() {
 		// unload all the cubes in the columns
-		for (Column column : this.loadedColumns.values()) {
-			for (Cube cube : column.getCubes()) {
+		for (int i = this.loadedColumns.firstIndex(); i >= 0; i = this.loadedColumns.nextIndex(i)) {
+			for (Cube cube : this.loadedColumns.getValueAt(i).getCubes()) {
 				this.cubesToUnload.add(cube.getAddress());
 			}
 		}
@@ -273,69 +459,282 @@ public class ServerCubeCache extends ServerChunkCache implements ICubeCache {
 		
 		// NOTE: the return value is completely ignored
 		
+		// how long since the last tick started?
+		long start = System.nanoTime();
+		long tickInterval = this.lastTickNanos == 0 ? TickNanos : start - this.lastTickNanos;
+		this.lastTickNanos = start;
+		
+		// add the cubes the loader threads finished to the cache
+		processFinishedLoads();
+		
+		// see how much memory we're using
+		if (--this.ticksToMemoryCheck <= 0) {
+			this.ticksToMemoryCheck = MemoryCheckInterval;
+			updateMemoryUsage();
+			
+			// don't pile on more unloads while the last round is still going
+			if (TallWorldsConfig.CubeMemoryBudgetMB > 0 && !this.worldServer.disableSaving && this.cubesToUnload.isEmpty()) {
+				unloadToMemoryBudget((long)TallWorldsConfig.CubeMemoryBudgetMB * 1024 * 1024);
+			}
+		}
+		
 		if (this.worldServer.disableSaving) {
 			return false;
 		}
 		
-		final int MaxNumToUnload = 400;
-		
-		// unload cubes
-		for (int i = 0; i < MaxNumToUnload && !this.cubesToUnload.isEmpty(); i++) {
-			long cubeAddress = this.cubesToUnload.poll();
-			long columnAddress = AddressTools.getAddress(AddressTools.getX(cubeAddress), AddressTools.getZ(cubeAddress));
+		// unload cubes a column at a time until we run out of time
+		long unloadNanos = getUnloadNanos(tickInterval);
+		int numUnloaded = 0;
+		List<Integer> cubeYs = new ArrayList<Integer>();
+		while (!this.cubesToUnload.isEmpty()) {
+			if (numUnloaded >= MinUnloadsPerTick && System.nanoTime() - start >= unloadNanos) {
+				break;
+			}
 			
-			// get the cube
+			cubeYs.clear();
+			long columnAddress = this.cubesToUnload.pollColumn(cubeYs);
 			Column column = this.loadedColumns.get(columnAddress);
 			if (column == null) {
 				// already unloaded
 				continue;
 			}
 			
-			// unload the cube
-			int cubeY = AddressTools.getY(cubeAddress);
-			Cube cube = column.removeCube(cubeY);
-			if (cube != null) {
-				// tell the cube it has been unloaded
-				cube.onUnload();
-				
-				// save the cube
-				this.cubeIO.saveCube(cube);
+			for (int cubeY : cubeYs) {
+				if (unloadCubeNow(column, cubeY)) {
+					numUnloaded++;
+				}
 			}
 			
 			// unload empty columns
 			if (!column.hasCubes()) {
 				column.onChunkLoad();
 				this.loadedColumns.remove(columnAddress);
+				this.dirtyColumns.remove(columnAddress);
 				this.cubeIO.saveColumn(column);
+				this.cubeLoader.invalidateColumn(column.getX(), column.getZ());
 			}
 		}
 		
+		// save the cubes and columns that have been modified for a while
+		if (TallWorldsConfig.IncrementalSaveTicks > 0) {
+			long stopNanos = System.nanoTime() + SaveNanos;
+			long modifiedBefore = this.worldServer.getGameTime() - TallWorldsConfig.IncrementalSaveTicks;
+			saveDirtyCubes(modifiedBefore, stopNanos);
+			saveDirtyColumns(modifiedBefore, stopNanos);
+		}
+		
 		return false;
 	}
 	
+	private long getUnloadNanos(long tickInterval) {
+		
+		// is the server keeping up?
+		// if ticks are taking longer than they should, unloading waits for a better time
+		if (tickInterval > TickNanos + TickNanos / 10) {
+			return MinUnloadNanos;
+		}
+		
+		// otherwise, spend more time on a bigger backlog
+		double backlog = Math.min(1.0, (double)this.cubesToUnload.size() / BacklogForMaxUnloadTime);
+		return MinUnloadNanos + (long)((MaxUnloadNanos - MinUnloadNanos) * backlog);
+	}
+	
+	private boolean unloadCubeNow(Column column, int cubeY) {
+		
+		Cube cube = column.removeCube(cubeY);
+		if (cube == null) {
+			// already unloaded
+			return false;
+		}
+		
+		this.loadedCubes.remove(cube.getAddress());
+		this.dirtyCubes.remove(cube.getAddress());
+		int slot = getHotSlot(cube.getX(), cube.getY(), cube.getZ());
+		if (this.hotCubes[slot] == cube) {
+			this.hotCubes[slot] = null;
+		}
+		
+		// tell the cube it has been unloaded
+		cube.onUnload();
+		
+		// save the cube, and keep it handy in case a player comes right back
+		this.cubeIO.saveUnloadedCube(cube);
+		this.cubeLoader.invalidateCube(cube.getAddress());
+		
+		// the save has a copy of the blocks now
+		cube.releaseStorage();
+		return true;
+	}
+	
+	/**
+	 * Call this after the world is saved for the last time. Nothing gets loaded or saved afterwards.
+	 */
+	public void close() {
+		// stop reading before the storage goes away
+		this.cubeLoader.shutdown();
+		
+		// the final save has snapshots of the blocks, so give the storage of the cubes still loaded back to the pool
+		// the off-heap pool outlives the world, it would leak their slices otherwise
+		for (int i = this.loadedCubes.firstIndex(); i >= 0; i = this.loadedCubes.nextIndex(i)) {
+			this.loadedCubes.getValueAt(i).releaseStorage();
+		}
+		this.cubeIO.close();
+	}
+	
+	public CubeMemoryUsage getMemoryUsage() {
+		return this.memoryUsage;
+	}
+	
+	private void updateMemoryUsage() {
+		this.memoryUsage.clear();
+		for (int i = this.loadedColumns.firstIndex(); i >= 0; i = this.loadedColumns.nextIndex(i)) {
+			this.memoryUsage.addColumn(this.loadedColumns.getValueAt(i));
+		}
+		for (int i = this.loadedCubes.firstIndex(); i >= 0; i = this.loadedCubes.nextIndex(i)) {
+			this.memoryUsage.addCube(this.loadedCubes.getValueAt(i));
+		}
+	}
+	
+	private void unloadToMemoryBudget(long budget) {
+		
+		long excess = this.memoryUsage.getTotal() - budget;
+		if (excess <= 0) {
+			return;
+		}
+		
+		// find the cubes no one is looking at
+		long now = this.worldServer.getGameTime();
+		List<Cube> candidates = new ArrayList<Cube>();
+		for (int i = this.loadedCubes.firstIndex(); i >= 0; i = this.loadedCubes.nextIndex(i)) {
+			Cube cube = this.loadedCubes.getValueAt(i);
+			if (now - cube.getLastWatchedTime() < MinUnwatchedTicks) {
+				continue;
+			}
+			
+			// let the generator finish with the cube first
+			if (cube.getGeneratorStage() == null || !cube.getGeneratorStage().isLastStage()) {
+				continue;
+			}
+			
+			if (cubeIsNearSpawn(cube.getX(), cube.getY(), cube.getZ())) {
+				continue;
+			}
+			candidates.add(cube);
+		}
+		
+		// unload the ones that were watched longest ago until we're back under budget
+		Collections.sort(candidates, new Comparator<Cube>() {
+			
+			@Override
+			public int compare(Cube a, Cube b) {
+				return Longs.compare(a.getLastWatchedTime(), b.getLastWatchedTime());
+			}
+		});
+		long numBytesFreed = 0;
+		int numCubesQueued = 0;
+		for (Cube cube : candidates) {
+			if (numBytesFreed >= excess) {
+				break;
+			}
+			this.cubesToUnload.add(cube.getAddress());
+			numBytesFreed += cube.getMemoryEstimate();
+			numCubesQueued++;
+		}
+		
+		if (numCubesQueued > 0) {
+			log.info("Cubes are using {}, over the budget by {}k. Unloading {} cubes ({}k)",
+				this.memoryUsage, excess / 1024, numCubesQueued, numBytesFreed / 1024
+			);
+		}
+	}
+	
 	@Override
 	public boolean saveAllChunks(boolean alwaysTrue, IProgressBar progress) {
 		
-		for (Column column : this.loadedColumns.values()) {
-			// save the column
-			if (column.needsSaving(alwaysTrue)) {
-				this.cubeIO.saveColumn(column);
+		// only look at the cubes and columns that changed
+		// save the columns after the cubes, saving empty cubes changes them
+		saveDirtyCubes(Long.MAX_VALUE, Long.MAX_VALUE);
+		saveDirtyColumns(Long.MAX_VALUE, Long.MAX_VALUE);
+		
+		return true;
+	}
+	
+	@Override
+	public void onColumnModified(Column column) {
+		Long address = column.getAddress();
+		if (!this.dirtyColumns.containsKey(address)) {
+			this.dirtyColumns.put(address, this.worldServer.getGameTime());
+		}
+	}
+	
+	@Override
+	public void onCubeModified(Cube cube) {
+		Long address = cube.getAddress();
+		if (!this.dirtyCubes.containsKey(address)) {
+			this.dirtyCubes.put(address, this.worldServer.getGameTime());
+		}
+	}
+	
+	private void saveDirtyCubes(long modifiedBefore, long stopNanos) {
+		
+		// the map is in the order the cubes were modified, so stop at the first one that's too new
+		List<Cube> cubesWithEntities = new ArrayList<Cube>();
+		Iterator<Map.Entry<Long,Long>> iter = this.dirtyCubes.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<Long,Long> entry = iter.next();
+			if (entry.getValue() > modifiedBefore || System.nanoTime() >= stopNanos) {
+				break;
 			}
+			iter.remove();
 			
-			// save the cubes
-			for (Cube cube : column.getCubes()) {
-				if (cube.needsSaving()) {
-					this.cubeIO.saveCube(cube);
-				}
+			Cube cube = this.loadedCubes.get(entry.getKey());
+			if (cube == null) {
+				continue;
+			}
+			if (cube.needsSaving()) {
+				this.cubeIO.saveCube(cube);
 			}
+			
+			// entities move around without telling anyone, so keep checking on cubes that have them
+			if (cube.getEntityContainer().hasActiveEntities()) {
+				cubesWithEntities.add(cube);
+			}
+		}
+		for (Cube cube : cubesWithEntities) {
+			onCubeModified(cube);
 		}
+	}
+	
+	private void saveDirtyColumns(long modifiedBefore, long stopNanos) {
 		
-		return true;
+		List<Column> columnsWithEntities = new ArrayList<Column>();
+		Iterator<Map.Entry<Long,Long>> iter = this.dirtyColumns.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<Long,Long> entry = iter.next();
+			if (entry.getValue() > modifiedBefore || System.nanoTime() >= stopNanos) {
+				break;
+			}
+			iter.remove();
+			
+			Column column = this.loadedColumns.get(entry.getKey());
+			if (column == null) {
+				continue;
+			}
+			if (column.needsSaving(true)) {
+				this.cubeIO.saveColumn(column);
+			}
+			if (column.getEntityContainer().hasActiveEntities()) {
+				columnsWithEntities.add(column);
+			}
+		}
+		for (Column column : columnsWithEntities) {
+			onColumnModified(column);
+		}
 	}
 	
 	@Override
 	public String getName() {
-		return "ServerCubeCache: " + this.loadedColumns.size() + " columns, Unload: " + this.cubesToUnload.size() + " cubes";
+		return "ServerCubeCache: " + this.loadedColumns.size() + " columns, " + this.loadedCubes.size() + " cubes, Memory: " + this.memoryUsage + ", Load: " + this.cubeLoader.getNumPendingLoads() + " cubes, Unload: " + this.cubesToUnload.size() + " cubes, Dirty: " + this.dirtyCubes.size() + " cubes";
 	}
 	
 	@Override
@@ -348,6 +747,10 @@ public class ServerCubeCache extends ServerChunkCache implements ICubeCache {
 		return null;
 	}
 	
+	private static int getHotSlot(int cubeX, int cubeY, int cubeZ) {
+		return (cubeX & HotCacheMask) << (HotCacheBits * 2) | (cubeY & HotCacheMask) << HotCacheBits | (cubeZ & HotCacheMask);
+	}
+	
 	private boolean cubeIsNearSpawn(int cubeX, int cubeY, int cubeZ) {
 		
 		if (!this.worldServer.dimension.canRespawnHere()) {
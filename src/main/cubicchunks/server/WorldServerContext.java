@@ -23,6 +23,7 @@
  */
 package cubicchunks.server;
 
+import java.util.Collection;
 import java.util.Map;
 
 import net.minecraft.world.WorldServer;
@@ -55,6 +56,14 @@ public class WorldServerContext extends WorldContext {
 		m_instances.put(worldServer, worldServerContext);
 	}
 	
+	public static Collection<WorldServerContext> getAll() {
+		return m_instances.values();
+	}
+	
+	public static void clear() {
+		m_instances.clear();
+	}
+	
 	private WorldServer m_worldServer;
 	private ServerCubeCache m_serverCubeCache;
 	private GeneratorPipeline m_generatorPipeline;
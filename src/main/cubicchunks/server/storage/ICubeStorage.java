@@ -0,0 +1,60 @@
+/*
+ *  This file is part of Cubic Chunks, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2014 Tall Worlds
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package cubicchunks.server.storage;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Persistent key-value store for encoded columns and cubes.
+ * <p>
+ * Keys are the addresses from {@link cubicchunks.util.AddressTools}. Values are opaque byte arrays, CubeIO owns the encoding.
+ * Implementations must tolerate reads from one thread while another thread writes.
+ */
+public interface ICubeStorage {
+	
+	boolean columnExists(long address) throws IOException;
+	
+	byte[] readColumn(long address) throws IOException;
+	
+	void writeColumn(long address, byte[] data) throws IOException;
+	
+	boolean cubeExists(long address) throws IOException;
+	
+	byte[] readCube(long address) throws IOException;
+	
+	void writeCube(long address, byte[] data) throws IOException;
+	
+	/**
+	 * Reads all the stored cubes in one column between minCubeY and maxCubeY (inclusive) into out, keyed by cube address.
+	 */
+	void readCubes(int cubeX, int cubeZ, int minCubeY, int maxCubeY, Map<Long,byte[]> out) throws IOException;
+	
+	/**
+	 * Makes all previous writes durable.
+	 */
+	void commit() throws IOException;
+	
+	void close() throws IOException;
+}
@@ -0,0 +1,229 @@
+/*
+ *  This file is part of Cubic Chunks, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2014 Tall Worlds
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package cubicchunks.server.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Write-ahead journal in front of another storage.
+ * <p>
+ * Every write is appended to the journal before it goes to the inner storage, and commit() only syncs the journal,
+ * which is one sequential write. The inner storage is committed at checkpoints, after which the journal is emptied.
+ * If the server dies between checkpoints, the journal is replayed into the inner storage the next time it's opened.
+ */
+public class JournaledCubeStorage implements ICubeStorage {
+	
+	private static final Logger log = LogManager.getLogger();
+	
+	private static final byte ColumnEntry = 1;
+	private static final byte CubeEntry = 2;
+	
+	private ICubeStorage m_inner;
+	private File m_file;
+	private FileOutputStream m_fileOut;
+	private DataOutputStream m_out;
+	private long m_checkpointMillis;
+	private long m_checkpointBytes;
+	private long m_journalBytes;
+	private long m_unsyncedBytes;
+	private long m_lastCheckpointTime;
+	
+	public JournaledCubeStorage(ICubeStorage inner, File file, long checkpointMillis, long checkpointBytes) throws IOException {
+		m_inner = inner;
+		m_file = file;
+		m_checkpointMillis = checkpointMillis;
+		m_checkpointBytes = checkpointBytes;
+		
+		// did we crash last time?
+		if (m_file.exists() && m_file.length() > 0) {
+			replay();
+		}
+		
+		openJournal();
+	}
+	
+	public long getUnsyncedBytes() {
+		return m_unsyncedBytes;
+	}
+	
+	public long getJournalBytes() {
+		return m_journalBytes;
+	}
+	
+	@Override
+	public boolean columnExists(long address) throws IOException {
+		return m_inner.columnExists(address);
+	}
+	
+	@Override
+	public byte[] readColumn(long address) throws IOException {
+		return m_inner.readColumn(address);
+	}
+	
+	@Override
+	public void writeColumn(long address, byte[] data) throws IOException {
+		append(ColumnEntry, address, data);
+		m_inner.writeColumn(address, data);
+	}
+	
+	@Override
+	public boolean cubeExists(long address) throws IOException {
+		return m_inner.cubeExists(address);
+	}
+	
+	@Override
+	public byte[] readCube(long address) throws IOException {
+		return m_inner.readCube(address);
+	}
+	
+	@Override
+	public void writeCube(long address, byte[] data) throws IOException {
+		append(CubeEntry, address, data);
+		m_inner.writeCube(address, data);
+	}
+	
+	@Override
+	public void readCubes(int cubeX, int cubeZ, int minCubeY, int maxCubeY, Map<Long,byte[]> out) throws IOException {
+		m_inner.readCubes(cubeX, cubeZ, minCubeY, maxCubeY, out);
+	}
+	
+	@Override
+	public void commit() throws IOException {
+		
+		// make the journal durable
+		m_out.flush();
+		m_fileOut.getChannel().force(false);
+		m_unsyncedBytes = 0;
+		
+		// is it time to move the journal into the real storage?
+		long now = System.currentTimeMillis();
+		if (m_journalBytes >= m_checkpointBytes || (m_journalBytes > 0 && now - m_lastCheckpointTime >= m_checkpointMillis)) {
+			checkpoint();
+		}
+	}
+	
+	public void checkpoint() throws IOException {
+		m_inner.commit();
+		
+		// everything in the journal is in the inner storage now
+		m_out.flush();
+		m_fileOut.getChannel().truncate(0);
+		m_fileOut.getChannel().force(false);
+		m_journalBytes = 0;
+		m_lastCheckpointTime = System.currentTimeMillis();
+	}
+	
+	@Override
+	public void close() throws IOException {
+		commit();
+		checkpoint();
+		m_out.close();
+		m_inner.close();
+	}
+	
+	private void openJournal() throws IOException {
+		m_file.getParentFile().mkdirs();
+		m_fileOut = new FileOutputStream(m_file, false);
+		m_out = new DataOutputStream(new BufferedOutputStream(m_fileOut, 64 * 1024));
+		m_journalBytes = 0;
+		m_unsyncedBytes = 0;
+		m_lastCheckpointTime = System.currentTimeMillis();
+	}
+	
+	private void append(byte type, long address, byte[] data) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		
+		// entry: type, address, length, crc, data
+		m_out.writeByte(type);
+		m_out.writeLong(address);
+		m_out.writeInt(data.length);
+		m_out.writeInt((int)crc.getValue());
+		m_out.write(data);
+		
+		int numBytes = 1 + 8 + 4 + 4 + data.length;
+		m_journalBytes += numBytes;
+		m_unsyncedBytes += numBytes;
+	}
+	
+	private void replay() throws IOException {
+		int numEntries = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(m_file)));
+		try {
+			while (true) {
+				byte type;
+				try {
+					type = in.readByte();
+				} catch (EOFException ex) {
+					break;
+				}
+				
+				long address = in.readLong();
+				int length = in.readInt();
+				int checksum = in.readInt();
+				if (length < 0 || length > m_file.length()) {
+					log.warn("Cube journal {} has a corrupted entry after {} entries, ignoring the rest", m_file, numEntries);
+					break;
+				}
+				byte[] data = new byte[length];
+				in.readFully(data);
+				
+				// a torn write at the end of the journal won't match its checksum
+				CRC32 crc = new CRC32();
+				crc.update(data);
+				if ((int)crc.getValue() != checksum) {
+					log.warn("Cube journal {} has a corrupted entry after {} entries, ignoring the rest", m_file, numEntries);
+					break;
+				}
+				
+				if (type == ColumnEntry) {
+					m_inner.writeColumn(address, data);
+				} else if (type == CubeEntry) {
+					m_inner.writeCube(address, data);
+				}
+				numEntries++;
+			}
+		} catch (EOFException ex) {
+			log.warn("Cube journal {} ends with a partial entry after {} entries, ignoring it", m_file, numEntries);
+		} finally {
+			in.close();
+		}
+		
+		m_inner.commit();
+		log.info("Replayed {} entries from cube journal {}", numEntries, m_file);
+	}
+}
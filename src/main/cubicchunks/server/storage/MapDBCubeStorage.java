@@ -0,0 +1,201 @@
+/*
+ *  This file is part of Cubic Chunks, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2014 Tall Worlds
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package cubicchunks.server.storage;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+
+import cubicchunks.util.AddressTools;
+
+/**
+ * Stores columns and cubes in two MapDB B-trees inside a single database file.
+ * <p>
+ * Cubes are keyed by {@link AddressTools#getStorageKey}, so loading a stack of cubes is one range scan.
+ * Worlds saved before that still have their cubes keyed by address in the old "chunks" tree.
+ * Those get moved over a batch at a time whenever we commit.
+ */
+public class MapDBCubeStorage implements ICubeStorage {
+	
+	private static final Logger log = LogManager.getLogger();
+	
+	private static final int MigrationBatchSize = 1024;
+	
+	private DB m_db;
+	private ConcurrentNavigableMap<Long,byte[]> m_columns;
+	private ConcurrentNavigableMap<Long,byte[]> m_cubes;
+	private volatile ConcurrentNavigableMap<Long,byte[]> m_legacyCubes;
+	
+	public MapDBCubeStorage(File file) {
+		
+		file.getParentFile().mkdirs();
+		m_db = DBMaker.newFileDB(file).closeOnJvmShutdown()
+		// .compressionEnable()
+			.make();
+		
+		// NOTE: could set different cache settings
+		// the default is a hash map cache with 32768 entries
+		// see: http://www.mapdb.org/features.html
+		
+		m_columns = m_db.getTreeMap("columns");
+		m_cubes = m_db.getTreeMap("cubes");
+		
+		// are there still cubes keyed the old way?
+		m_legacyCubes = null;
+		if (m_db.exists("chunks")) {
+			ConcurrentNavigableMap<Long,byte[]> legacyCubes = m_db.getTreeMap("chunks");
+			if (!legacyCubes.isEmpty()) {
+				log.info("Cube storage {} has cubes with old keys, they will be migrated as the world saves", file);
+				m_legacyCubes = legacyCubes;
+			}
+		}
+	}
+	
+	@Override
+	public boolean columnExists(long address) {
+		return m_columns.containsKey(address);
+	}
+	
+	@Override
+	public byte[] readColumn(long address) {
+		return m_columns.get(address);
+	}
+	
+	@Override
+	public void writeColumn(long address, byte[] data) {
+		m_columns.put(address, data);
+	}
+	
+	@Override
+	public boolean cubeExists(long address) {
+		return readCube(address) != null;
+	}
+	
+	@Override
+	public byte[] readCube(long address) {
+		long key = getKey(address);
+		byte[] data = m_cubes.get(key);
+		if (data == null) {
+			data = readLegacyCube(address, key);
+		}
+		return data;
+	}
+	
+	@Override
+	public void writeCube(long address, byte[] data) {
+		m_cubes.put(getKey(address), data);
+		
+		// don't leave the old copy behind
+		ConcurrentNavigableMap<Long,byte[]> legacyCubes = m_legacyCubes;
+		if (legacyCubes != null) {
+			legacyCubes.remove(address);
+		}
+	}
+	
+	@Override
+	public void readCubes(int cubeX, int cubeZ, int minCubeY, int maxCubeY, Map<Long,byte[]> out) {
+		
+		// one range scan gets the whole stack
+		long minKey = AddressTools.getStorageKey(cubeX, minCubeY, cubeZ);
+		long maxKey = AddressTools.getStorageKey(cubeX, maxCubeY, cubeZ);
+		for (Map.Entry<Long,byte[]> entry : m_cubes.subMap(minKey, true, maxKey, true).entrySet()) {
+			out.put(AddressTools.getAddressFromStorageKey(entry.getKey()), entry.getValue());
+		}
+		
+		// cubes that weren't migrated yet need the slow way
+		if (m_legacyCubes != null) {
+			for (int cubeY = minCubeY; cubeY <= maxCubeY; cubeY++) {
+				long address = AddressTools.getAddress(cubeX, cubeY, cubeZ);
+				if (!out.containsKey(address)) {
+					byte[] data = readLegacyCube(address, getKey(address));
+					if (data != null) {
+						out.put(address, data);
+					}
+				}
+			}
+		}
+	}
+	
+	@Override
+	public void commit() {
+		if (m_legacyCubes != null) {
+			migrateLegacyCubes();
+		}
+		m_db.commit();
+	}
+	
+	@Override
+	public void close() {
+		if (!m_db.isClosed()) {
+			m_db.close();
+		}
+	}
+	
+	private static long getKey(long address) {
+		return AddressTools.getStorageKey(AddressTools.getX(address), AddressTools.getY(address), AddressTools.getZ(address));
+	}
+	
+	private byte[] readLegacyCube(long address, long key) {
+		ConcurrentNavigableMap<Long,byte[]> legacyCubes = m_legacyCubes;
+		if (legacyCubes == null) {
+			return null;
+		}
+		byte[] data = legacyCubes.get(address);
+		if (data == null) {
+			// the cube could have been migrated since we looked at the new tree
+			data = m_cubes.get(key);
+		}
+		return data;
+	}
+	
+	private void migrateLegacyCubes() {
+		
+		// NOTE: only the IO thread writes, so nothing can change the trees under us here
+		// readers check the new tree again if they miss the old one, so they never see a cube disappear
+		
+		List<Long> addresses = new ArrayList<Long>(MigrationBatchSize);
+		for (Map.Entry<Long,byte[]> entry : m_legacyCubes.entrySet()) {
+			if (addresses.size() >= MigrationBatchSize) {
+				break;
+			}
+			m_cubes.putIfAbsent(getKey(entry.getKey()), entry.getValue());
+			addresses.add(entry.getKey());
+		}
+		for (Long address : addresses) {
+			m_legacyCubes.remove(address);
+		}
+		
+		if (m_legacyCubes.isEmpty()) {
+			log.info("Finished migrating cubes to the new keys");
+			m_legacyCubes = null;
+		}
+	}
+}
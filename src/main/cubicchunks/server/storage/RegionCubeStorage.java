@@ -0,0 +1,227 @@
+/*
+ *  This file is part of Cubic Chunks, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2014 Tall Worlds
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package cubicchunks.server.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import cubicchunks.util.AddressTools;
+
+/**
+ * Groups cubes into 16x16x16 regions and columns into 32x32 regions, one memory-mapped {@link RegionFile} per region.
+ * <p>
+ * A lookup is an array index into the region's allocation table plus a copy out of the mapping,
+ * so random cube reads don't pay for a B-tree descent.
+ */
+public class RegionCubeStorage implements ICubeStorage {
+	
+	private static final Logger log = LogManager.getLogger();
+	
+	private static final int CubeRegionBits = 4;
+	private static final int ColumnRegionBits = 5;
+	private static final int CubeRegionMask = (1 << CubeRegionBits) - 1;
+	private static final int ColumnRegionMask = (1 << ColumnRegionBits) - 1;
+	private static final int NumCubesPerRegion = 1 << (CubeRegionBits * 3);
+	private static final int NumColumnsPerRegion = 1 << (ColumnRegionBits * 2);
+	
+	// don't keep too many file handles and mappings around
+	private static final int MaxOpenRegions = 256;
+	
+	private File m_cubeDir;
+	private File m_columnDir;
+	private LinkedHashMap<Long,RegionFile> m_cubeRegions;
+	private LinkedHashMap<Long,RegionFile> m_columnRegions;
+	
+	public RegionCubeStorage(File dir) {
+		m_cubeDir = new File(dir, "cubes");
+		m_columnDir = new File(dir, "columns");
+		m_cubeRegions = new RegionCache();
+		m_columnRegions = new RegionCache();
+	}
+	
+	// NOTE: all the IO methods lock the whole storage
+	// reads and writes are just copies to and from the mappings, so holding the lock is cheap
+	
+	@Override
+	public synchronized boolean columnExists(long address) throws IOException {
+		RegionFile region = getColumnRegion(address, false);
+		return region != null && region.exists(getColumnIndex(address));
+	}
+	
+	@Override
+	public synchronized byte[] readColumn(long address) throws IOException {
+		RegionFile region = getColumnRegion(address, false);
+		if (region == null) {
+			return null;
+		}
+		return region.read(getColumnIndex(address));
+	}
+	
+	@Override
+	public synchronized void writeColumn(long address, byte[] data) throws IOException {
+		getColumnRegion(address, true).write(getColumnIndex(address), data);
+	}
+	
+	@Override
+	public synchronized boolean cubeExists(long address) throws IOException {
+		RegionFile region = getCubeRegion(address, false);
+		return region != null && region.exists(getCubeIndex(address));
+	}
+	
+	@Override
+	public synchronized byte[] readCube(long address) throws IOException {
+		RegionFile region = getCubeRegion(address, false);
+		if (region == null) {
+			return null;
+		}
+		return region.read(getCubeIndex(address));
+	}
+	
+	@Override
+	public synchronized void writeCube(long address, byte[] data) throws IOException {
+		getCubeRegion(address, true).write(getCubeIndex(address), data);
+	}
+	
+	@Override
+	public synchronized void readCubes(int cubeX, int cubeZ, int minCubeY, int maxCubeY, Map<Long,byte[]> out) throws IOException {
+		// the cubes of a column are already next to each other in the allocation table
+		// so just look them up one region at a time
+		RegionFile region = null;
+		for (int cubeY = minCubeY; cubeY <= maxCubeY; cubeY++) {
+			long address = AddressTools.getAddress(cubeX, cubeY, cubeZ);
+			if (region == null || (cubeY & CubeRegionMask) == 0) {
+				region = getCubeRegion(address, false);
+			}
+			if (region == null) {
+				// skip the rest of this region
+				cubeY |= CubeRegionMask;
+				continue;
+			}
+			byte[] data = region.read(getCubeIndex(address));
+			if (data != null) {
+				out.put(address, data);
+			}
+		}
+	}
+	
+	@Override
+	public synchronized void commit() {
+		for (RegionFile region : m_columnRegions.values()) {
+			region.flush();
+		}
+		for (RegionFile region : m_cubeRegions.values()) {
+			region.flush();
+		}
+	}
+	
+	@Override
+	public synchronized void close() throws IOException {
+		closeAll(m_columnRegions);
+		closeAll(m_cubeRegions);
+	}
+	
+	private RegionFile getCubeRegion(long address, boolean create) throws IOException {
+		int regionX = AddressTools.getX(address) >> CubeRegionBits;
+		int regionY = AddressTools.getY(address) >> CubeRegionBits;
+		int regionZ = AddressTools.getZ(address) >> CubeRegionBits;
+		long regionAddress = AddressTools.getAddress(regionX, regionY, regionZ);
+		RegionFile region = m_cubeRegions.get(regionAddress);
+		if (region == null) {
+			File file = new File(m_cubeDir, String.format("r.%d.%d.%d.ccr", regionX, regionY, regionZ));
+			if (!create && !file.exists()) {
+				return null;
+			}
+			region = new RegionFile(file, NumCubesPerRegion);
+			m_cubeRegions.put(regionAddress, region);
+		}
+		return region;
+	}
+	
+	private RegionFile getColumnRegion(long address, boolean create) throws IOException {
+		int regionX = AddressTools.getX(address) >> ColumnRegionBits;
+		int regionZ = AddressTools.getZ(address) >> ColumnRegionBits;
+		long regionAddress = AddressTools.getAddress(regionX, regionZ);
+		RegionFile region = m_columnRegions.get(regionAddress);
+		if (region == null) {
+			File file = new File(m_columnDir, String.format("r.%d.%d.ccc", regionX, regionZ));
+			if (!create && !file.exists()) {
+				return null;
+			}
+			region = new RegionFile(file, NumColumnsPerRegion);
+			m_columnRegions.put(regionAddress, region);
+		}
+		return region;
+	}
+	
+	private static int getCubeIndex(long address) {
+		// keep the cubes of each column next to each other in the allocation table
+		int x = AddressTools.getX(address) & CubeRegionMask;
+		int y = AddressTools.getY(address) & CubeRegionMask;
+		int z = AddressTools.getZ(address) & CubeRegionMask;
+		return (x << (CubeRegionBits * 2)) | (z << CubeRegionBits) | y;
+	}
+	
+	private static int getColumnIndex(long address) {
+		int x = AddressTools.getX(address) & ColumnRegionMask;
+		int z = AddressTools.getZ(address) & ColumnRegionMask;
+		return (x << ColumnRegionBits) | z;
+	}
+	
+	private static void closeAll(Map<Long,RegionFile> regions) throws IOException {
+		Iterator<RegionFile> iter = regions.values().iterator();
+		while (iter.hasNext()) {
+			iter.next().close();
+			iter.remove();
+		}
+	}
+	
+	private static class RegionCache extends LinkedHashMap<Long,RegionFile> {
+		
+		private static final long serialVersionUID = 6473206718593826592L;
+		
+		public RegionCache() {
+			// access order, so the eldest entry is the least recently used region
+			super(16, 0.75f, true);
+		}
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long,RegionFile> eldest) {
+			if (size() <= MaxOpenRegions) {
+				return false;
+			}
+			try {
+				eldest.getValue().close();
+			} catch (IOException ex) {
+				log.error("Unable to close region file", ex);
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,192 @@
+/*
+ *  This file is part of Cubic Chunks, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2014 Tall Worlds
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package cubicchunks.server.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+
+/**
+ * A fixed number of variable-length entries stored in one memory-mapped file.
+ * <p>
+ * The file starts with an allocation table of (sector offset, byte length) int pairs, one pair per entry.
+ * Entry data lives in whole sectors after the table. Rewritten entries always go to freshly allocated sectors
+ * before the old sectors are released, so a torn write never damages the previous copy of the entry.
+ * <p>
+ * Not thread-safe, the owning storage serializes access.
+ */
+class RegionFile {
+	
+	public static final int SectorSize = 512;
+	
+	// grow the file a bit at a time so we don't need to remap on every append
+	private static final int GrowthSectors = 256;
+	
+	private static final int EntryBytes = 8;
+	
+	private RandomAccessFile m_file;
+	private FileChannel m_channel;
+	private MappedByteBuffer m_buffer;
+	private int m_numEntries;
+	private int m_numHeaderSectors;
+	private int m_numSectors;
+	private int[] m_offsets;
+	private int[] m_lengths;
+	private BitSet m_usedSectors;
+	
+	public RegionFile(File file, int numEntries) throws IOException {
+		m_numEntries = numEntries;
+		m_numHeaderSectors = getNumSectors(numEntries * EntryBytes);
+		m_offsets = new int[numEntries];
+		m_lengths = new int[numEntries];
+		m_usedSectors = new BitSet();
+		
+		boolean isNew = !file.exists();
+		file.getParentFile().mkdirs();
+		m_file = new RandomAccessFile(file, "rw");
+		m_channel = m_file.getChannel();
+		
+		// round the file up to a whole number of sectors
+		long size = m_channel.size();
+		m_numSectors = Math.max(m_numHeaderSectors, getNumSectors(size));
+		map(m_numSectors);
+		
+		// reserve the allocation table
+		m_usedSectors.set(0, m_numHeaderSectors);
+		
+		if (!isNew) {
+			// read the allocation table
+			for (int i = 0; i < numEntries; i++) {
+				int offset = m_buffer.getInt(i * EntryBytes);
+				int length = m_buffer.getInt(i * EntryBytes + 4);
+				if (length <= 0 || offset < m_numHeaderSectors || offset + getNumSectors(length) > m_numSectors) {
+					// empty or corrupted entry, forget it
+					continue;
+				}
+				m_offsets[i] = offset;
+				m_lengths[i] = length;
+				m_usedSectors.set(offset, offset + getNumSectors(length));
+			}
+		}
+	}
+	
+	public int getNumEntries() {
+		return m_numEntries;
+	}
+	
+	public boolean exists(int index) {
+		return m_lengths[index] > 0;
+	}
+	
+	public byte[] read(int index) {
+		int length = m_lengths[index];
+		if (length <= 0) {
+			return null;
+		}
+		
+		byte[] data = new byte[length];
+		ByteBuffer view = m_buffer.duplicate();
+		view.position(m_offsets[index] * SectorSize);
+		view.get(data);
+		return data;
+	}
+	
+	public void write(int index, byte[] data) throws IOException {
+		
+		// write the new copy somewhere that doesn't overlap the old copy
+		int numSectors = getNumSectors(data.length);
+		int offset = allocate(numSectors);
+		ByteBuffer view = m_buffer.duplicate();
+		view.position(offset * SectorSize);
+		view.put(data);
+		
+		// then point the table at it
+		free(index);
+		setEntry(index, offset, data.length);
+	}
+	
+	public void remove(int index) {
+		free(index);
+		setEntry(index, 0, 0);
+	}
+	
+	public void flush() {
+		m_buffer.force();
+	}
+	
+	public void close() throws IOException {
+		m_buffer.force();
+		m_channel.close();
+		m_file.close();
+		m_buffer = null;
+	}
+	
+	private void setEntry(int index, int offset, int length) {
+		m_offsets[index] = offset;
+		m_lengths[index] = length;
+		m_buffer.putInt(index * EntryBytes, offset);
+		m_buffer.putInt(index * EntryBytes + 4, length);
+	}
+	
+	private void free(int index) {
+		if (m_lengths[index] > 0) {
+			int offset = m_offsets[index];
+			m_usedSectors.clear(offset, offset + getNumSectors(m_lengths[index]));
+		}
+	}
+	
+	private int allocate(int numSectors) throws IOException {
+		
+		// first fit
+		int start = m_usedSectors.nextClearBit(m_numHeaderSectors);
+		while (start < m_numSectors) {
+			int stop = m_usedSectors.nextSetBit(start);
+			if (stop < 0 || stop - start >= numSectors) {
+				break;
+			}
+			start = m_usedSectors.nextClearBit(stop);
+		}
+		
+		// does the file need to grow?
+		if (start + numSectors > m_numSectors) {
+			map(start + numSectors + GrowthSectors);
+		}
+		
+		m_usedSectors.set(start, start + numSectors);
+		return start;
+	}
+	
+	private void map(int numSectors) throws IOException {
+		m_numSectors = numSectors;
+		m_buffer = m_channel.map(FileChannel.MapMode.READ_WRITE, 0, (long)numSectors * SectorSize);
+	}
+	
+	private static int getNumSectors(long numBytes) {
+		return (int)((numBytes + SectorSize - 1) / SectorSize);
+	}
+}
@@ -68,6 +68,29 @@ public class AddressTools {
 		return Bits.packSignedToLong(x, XSize, XOffset) | Bits.packSignedToLong(z, ZSize, ZOffset);
 	}
 
+	// storage keys put y in the lowest bits instead, so the cubes of a column are next to each other in a sorted map
+	// y is biased instead of signed, so the keys of one column also sort by y
+	// 0                    |2         3         4 |        5         6  |
+	// 0123456789012345678901234567890123456789012345678901234567890123
+	// xxxxxxxxxxxxxxxxxxxxxxzzzzzzzzzzzzzzzzzzzzzzyyyyyyyyyyyyyyyyyyyy
+	
+	private static final int KeyYOffset = 0;
+	private static final int KeyZOffset = KeyYOffset + YSize;
+	private static final int KeyXOffset = KeyZOffset + ZSize;
+	
+	public static long getStorageKey(int x, int y, int z) {
+		return Bits.packSignedToLong(x, XSize, KeyXOffset) | Bits.packSignedToLong(z, ZSize, KeyZOffset)
+				| Bits.packUnsignedToLong(y - MinY, YSize, KeyYOffset);
+	}
+	
+	public static long getAddressFromStorageKey(long key) {
+		return getAddress(
+			Bits.unpackSigned(key, XSize, KeyXOffset),
+			Bits.unpackUnsigned(key, YSize, KeyYOffset) + MinY,
+			Bits.unpackSigned(key, ZSize, KeyZOffset)
+		);
+	}
+	
 	public static int getY(long address) {
 		return Bits.unpackSigned(address, YSize, YOffset);
 	}
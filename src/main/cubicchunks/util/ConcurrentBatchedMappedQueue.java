@@ -35,8 +35,9 @@ public class ConcurrentBatchedMappedQueue<k, T> {
 		queue = new LinkedHashMap<k, T>();
 	}
 
-	public synchronized void add(k key, T val) {
-		queue.put(key, val);
+	public synchronized T add(k key, T val) {
+		// returns the value this one replaced, if any
+		return queue.put(key, val);
 	}
 
 	public synchronized void addAll(Map<k, T> vals) {
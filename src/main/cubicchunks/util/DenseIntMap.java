@@ -0,0 +1,333 @@
+/*
+ *  This file is part of Cubic Chunks, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2014 Tall Worlds
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package cubicchunks.util;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+/**
+ * Map from ints to objects for keys that are mostly close together, like the cube y values in a column.
+ * <p>
+ * Keys near each other live in one array starting at a base key, so lookups are an index.
+ * The array grows in whichever direction it needs to, up to MaxDenseSize slots.
+ * Keys too far from the rest go in a sorted sparse map instead.
+ * <p>
+ * Iterating over a key range with get() doesn't allocate. values() iterates in key order, like a TreeMap.
+ * Null values aren't allowed.
+ */
+public class DenseIntMap<V> {
+	
+	private static final int MinDenseSize = 16;
+	private static final int MaxDenseSize = 1024;
+	
+	private Object[] m_dense;
+	private int m_base;
+	private TreeMap<Integer,V> m_sparse;
+	private int m_size;
+	
+	public DenseIntMap() {
+		m_dense = null;
+		m_base = 0;
+		m_sparse = null;
+		m_size = 0;
+	}
+	
+	public int size() {
+		return m_size;
+	}
+	
+	public boolean isEmpty() {
+		return m_size == 0;
+	}
+	
+	@SuppressWarnings("unchecked")
+	public V get(int key) {
+		if (m_dense != null) {
+			int i = key - m_base;
+			if (i >= 0 && i < m_dense.length) {
+				return (V)m_dense[i];
+			}
+		}
+		if (m_sparse == null) {
+			return null;
+		}
+		return m_sparse.get(key);
+	}
+	
+	public boolean containsKey(int key) {
+		return get(key) != null;
+	}
+	
+	@SuppressWarnings("unchecked")
+	public V put(int key, V value) {
+		if (value == null) {
+			throw new IllegalArgumentException("Null values aren't allowed");
+		}
+		
+		if (m_dense == null) {
+			// start the array around the first key
+			m_dense = new Object[MinDenseSize];
+			m_base = key - MinDenseSize / 2;
+		}
+		
+		int i = key - m_base;
+		if ((i < 0 || i >= m_dense.length) && !growToInclude(key)) {
+			// too far away, use the sparse map
+			if (m_sparse == null) {
+				m_sparse = new TreeMap<Integer,V>();
+			}
+			V oldValue = m_sparse.put(key, value);
+			if (oldValue == null) {
+				m_size++;
+			}
+			return oldValue;
+		}
+		
+		i = key - m_base;
+		V oldValue = (V)m_dense[i];
+		m_dense[i] = value;
+		if (oldValue == null) {
+			m_size++;
+		}
+		return oldValue;
+	}
+	
+	@SuppressWarnings("unchecked")
+	public V remove(int key) {
+		V oldValue = null;
+		if (m_dense != null) {
+			int i = key - m_base;
+			if (i >= 0 && i < m_dense.length) {
+				oldValue = (V)m_dense[i];
+				m_dense[i] = null;
+			}
+		}
+		if (oldValue == null && m_sparse != null) {
+			oldValue = m_sparse.remove(key);
+		}
+		if (oldValue != null) {
+			m_size--;
+		}
+		return oldValue;
+	}
+	
+	public void clear() {
+		m_dense = null;
+		m_sparse = null;
+		m_size = 0;
+	}
+	
+	public int firstKey() {
+		if (m_size == 0) {
+			throw new NoSuchElementException();
+		}
+		
+		// sparse keys below the array come first
+		if (m_sparse != null && !m_sparse.isEmpty() && m_sparse.firstKey() < m_base) {
+			return m_sparse.firstKey();
+		}
+		if (m_dense != null) {
+			for (int i = 0; i < m_dense.length; i++) {
+				if (m_dense[i] != null) {
+					return m_base + i;
+				}
+			}
+		}
+		return m_sparse.firstKey();
+	}
+	
+	public int lastKey() {
+		if (m_size == 0) {
+			throw new NoSuchElementException();
+		}
+		
+		// sparse keys above the array come last
+		if (m_sparse != null && !m_sparse.isEmpty() && (m_dense == null || m_sparse.lastKey() >= m_base + m_dense.length)) {
+			return m_sparse.lastKey();
+		}
+		if (m_dense != null) {
+			for (int i = m_dense.length - 1; i >= 0; i--) {
+				if (m_dense[i] != null) {
+					return m_base + i;
+				}
+			}
+		}
+		return m_sparse.lastKey();
+	}
+	
+	/**
+	 * All the keys, in order.
+	 */
+	public Iterable<Integer> keys() {
+		return new Iterable<Integer>() {
+			
+			@Override
+			public Iterator<Integer> iterator() {
+				final EntryIterator iter = new EntryIterator();
+				return new Iterator<Integer>() {
+					
+					@Override
+					public boolean hasNext() {
+						return iter.hasNext();
+					}
+					
+					@Override
+					public Integer next() {
+						iter.next();
+						return iter.getKey();
+					}
+					
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+	
+	/**
+	 * All the values, in key order.
+	 */
+	public Collection<V> values() {
+		return new AbstractCollection<V>() {
+			
+			@Override
+			public Iterator<V> iterator() {
+				return new EntryIterator();
+			}
+			
+			@Override
+			public int size() {
+				return m_size;
+			}
+		};
+	}
+	
+	private boolean growToInclude(int key) {
+		int min = Math.min(m_base, key);
+		int max = Math.max(m_base + m_dense.length - 1, key);
+		int neededSize = max - min + 1;
+		if (neededSize > MaxDenseSize) {
+			return false;
+		}
+		
+		// at least double, and leave the extra room on the side we're growing toward
+		int newSize = Math.min(MaxDenseSize, Math.max(neededSize, m_dense.length * 2));
+		int newBase = key < m_base ? max - newSize + 1 : min;
+		Object[] newDense = new Object[newSize];
+		System.arraycopy(m_dense, 0, newDense, m_base - newBase, m_dense.length);
+		m_dense = newDense;
+		m_base = newBase;
+		
+		// pull in any sparse keys the array covers now
+		if (m_sparse != null) {
+			Iterator<Map.Entry<Integer,V>> iter = m_sparse.subMap(m_base, true, m_base + m_dense.length - 1, true).entrySet().iterator();
+			while (iter.hasNext()) {
+				Map.Entry<Integer,V> entry = iter.next();
+				m_dense[entry.getKey() - m_base] = entry.getValue();
+				iter.remove();
+			}
+		}
+		return true;
+	}
+	
+	private class EntryIterator implements Iterator<V> {
+		
+		// sparse keys below the array, then the array, then sparse keys above it
+		private Iterator<Map.Entry<Integer,V>> m_below;
+		private int m_denseIndex;
+		private Iterator<Map.Entry<Integer,V>> m_above;
+		private int m_key;
+		private boolean m_hasNext;
+		private int m_nextKey;
+		private V m_nextValue;
+		
+		public EntryIterator() {
+			if (m_sparse != null) {
+				int denseSize = m_dense == null ? 0 : m_dense.length;
+				m_below = m_sparse.headMap(m_base, false).entrySet().iterator();
+				m_above = m_sparse.tailMap(m_base + denseSize, true).entrySet().iterator();
+			}
+			m_denseIndex = -1;
+			advance();
+		}
+		
+		public int getKey() {
+			return m_key;
+		}
+		
+		@Override
+		public boolean hasNext() {
+			return m_hasNext;
+		}
+		
+		@Override
+		public V next() {
+			if (!m_hasNext) {
+				throw new NoSuchElementException();
+			}
+			V value = m_nextValue;
+			m_key = m_nextKey;
+			advance();
+			return value;
+		}
+		
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+		
+		@SuppressWarnings("unchecked")
+		private void advance() {
+			m_hasNext = true;
+			if (m_below != null && m_below.hasNext()) {
+				Map.Entry<Integer,V> entry = m_below.next();
+				m_nextKey = entry.getKey();
+				m_nextValue = entry.getValue();
+				return;
+			}
+			if (m_dense != null) {
+				while (++m_denseIndex < m_dense.length) {
+					if (m_dense[m_denseIndex] != null) {
+						m_nextKey = m_base + m_denseIndex;
+						m_nextValue = (V)m_dense[m_denseIndex];
+						return;
+					}
+				}
+			}
+			if (m_above != null && m_above.hasNext()) {
+				Map.Entry<Integer,V> entry = m_above.next();
+				m_nextKey = entry.getKey();
+				m_nextValue = entry.getValue();
+				return;
+			}
+			m_hasNext = false;
+		}
+	}
+}
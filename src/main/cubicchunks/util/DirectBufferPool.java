@@ -0,0 +1,111 @@
+/*
+ *  This file is part of Cubic Chunks, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2014 Tall Worlds
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package cubicchunks.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+
+/**
+ * Hands out fixed-size slices of big direct buffers, so lots of small long-lived buffers don't cost the heap anything
+ * and don't each pay for their own native allocation.
+ * <p>
+ * Slabs are allocated as needed and never given back, a freed slice just goes back on the free list.
+ * Slices are zeroed when they're handed out. Thread-safe.
+ */
+public class DirectBufferPool {
+	
+	private int m_sliceBytes;
+	private int m_slicesPerSlab;
+	private ArrayDeque<ByteBuffer> m_free;
+	private int m_numSlabs;
+	private int m_numAllocated;
+	
+	public DirectBufferPool(int sliceBytes, int slicesPerSlab) {
+		if (sliceBytes <= 0 || slicesPerSlab <= 0) {
+			throw new IllegalArgumentException("Slice size and slices per slab must be positive");
+		}
+		m_sliceBytes = sliceBytes;
+		m_slicesPerSlab = slicesPerSlab;
+		m_free = new ArrayDeque<ByteBuffer>();
+		m_numSlabs = 0;
+		m_numAllocated = 0;
+	}
+	
+	public int getSliceBytes() {
+		return m_sliceBytes;
+	}
+	
+	public synchronized int getNumAllocated() {
+		return m_numAllocated;
+	}
+	
+	/**
+	 * Returns the bytes of native memory the pool has claimed, whether the slices are in use or not.
+	 */
+	public synchronized long getCapacityBytes() {
+		return (long)m_numSlabs * m_slicesPerSlab * m_sliceBytes;
+	}
+	
+	public ByteBuffer allocate() {
+		ByteBuffer buf;
+		synchronized (this) {
+			if (m_free.isEmpty()) {
+				addSlab();
+			}
+			buf = m_free.poll();
+			m_numAllocated++;
+		}
+		
+		// zero it outside the lock
+		for (int i = 0; i + 8 <= m_sliceBytes; i += 8) {
+			buf.putLong(i, 0);
+		}
+		for (int i = m_sliceBytes & ~7; i < m_sliceBytes; i++) {
+			buf.put(i, (byte)0);
+		}
+		return buf;
+	}
+	
+	/**
+	 * Gives a slice back. The caller must not touch it again.
+	 */
+	public synchronized void free(ByteBuffer buf) {
+		if (buf.capacity() != m_sliceBytes) {
+			throw new IllegalArgumentException("Buffer is not from this pool");
+		}
+		m_free.push(buf);
+		m_numAllocated--;
+	}
+	
+	private void addSlab() {
+		ByteBuffer slab = ByteBuffer.allocateDirect(m_sliceBytes * m_slicesPerSlab).order(ByteOrder.nativeOrder());
+		for (int i = 0; i < m_slicesPerSlab; i++) {
+			slab.limit((i + 1) * m_sliceBytes);
+			slab.position(i * m_sliceBytes);
+			m_free.add(slab.slice().order(ByteOrder.nativeOrder()));
+		}
+		m_numSlabs++;
+	}
+}
@@ -0,0 +1,234 @@
+/*
+ *  This file is part of Cubic Chunks, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2014 Tall Worlds
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package cubicchunks.util;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Open-addressing hash map from primitive longs to objects, so lookups never box the key.
+ * <p>
+ * Linear probing over a power-of-two table, with backward-shift deletion so there are no tombstones.
+ * Null values aren't allowed, an empty slot has a null value.
+ * <p>
+ * To iterate without allocating:
+ * <pre>
+ * for (int i = map.firstIndex(); i >= 0; i = map.nextIndex(i)) {
+ *     map.getKeyAt(i); map.getValueAt(i);
+ * }
+ * </pre>
+ * Don't change the map while iterating over it.
+ */
+public class Long2ObjectMap<V> {
+	
+	private static final int MinCapacity = 16;
+	
+	private long[] m_keys;
+	private Object[] m_values;
+	private int m_mask;
+	private int m_size;
+	
+	public Long2ObjectMap() {
+		this(MinCapacity);
+	}
+	
+	public Long2ObjectMap(int expectedSize) {
+		// keep the load factor at or under 1/2
+		int capacity = MinCapacity;
+		while (capacity < expectedSize * 2) {
+			capacity <<= 1;
+		}
+		allocate(capacity);
+		m_size = 0;
+	}
+	
+	public int size() {
+		return m_size;
+	}
+	
+	public boolean isEmpty() {
+		return m_size == 0;
+	}
+	
+	public boolean containsKey(long key) {
+		return m_values[find(key)] != null;
+	}
+	
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		return (V)m_values[find(key)];
+	}
+	
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		if (value == null) {
+			throw new IllegalArgumentException("Null values aren't allowed");
+		}
+		
+		int i = find(key);
+		V oldValue = (V)m_values[i];
+		m_keys[i] = key;
+		m_values[i] = value;
+		if (oldValue == null) {
+			m_size++;
+			if (m_size * 2 > m_values.length) {
+				resize(m_values.length * 2);
+			}
+		}
+		return oldValue;
+	}
+	
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		int i = find(key);
+		V oldValue = (V)m_values[i];
+		if (oldValue == null) {
+			return null;
+		}
+		
+		// shift later entries of the probe sequence back into the hole
+		int hole = i;
+		int j = i;
+		while (true) {
+			j = (j + 1) & m_mask;
+			if (m_values[j] == null) {
+				break;
+			}
+			
+			// can the entry at j move to the hole? only if its home slot isn't cyclically in (hole, j]
+			int home = hash(m_keys[j]) & m_mask;
+			if (((j - home) & m_mask) >= ((j - hole) & m_mask)) {
+				m_keys[hole] = m_keys[j];
+				m_values[hole] = m_values[j];
+				hole = j;
+			}
+		}
+		m_values[hole] = null;
+		m_size--;
+		return oldValue;
+	}
+	
+	public void clear() {
+		for (int i = 0; i < m_values.length; i++) {
+			m_values[i] = null;
+		}
+		m_size = 0;
+	}
+	
+	public int firstIndex() {
+		return nextIndex(-1);
+	}
+	
+	public int nextIndex(int index) {
+		for (int i = index + 1; i < m_values.length; i++) {
+			if (m_values[i] != null) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	public long getKeyAt(int index) {
+		return m_keys[index];
+	}
+	
+	@SuppressWarnings("unchecked")
+	public V getValueAt(int index) {
+		return (V)m_values[index];
+	}
+	
+	/**
+	 * Convenience view for code that isn't hot, this allocates an iterator.
+	 */
+	public Iterable<V> values() {
+		return new Iterable<V>() {
+			
+			@Override
+			public Iterator<V> iterator() {
+				return new Iterator<V>() {
+					
+					private int m_next = firstIndex();
+					
+					@Override
+					public boolean hasNext() {
+						return m_next >= 0;
+					}
+					
+					@Override
+					public V next() {
+						if (m_next < 0) {
+							throw new NoSuchElementException();
+						}
+						V value = getValueAt(m_next);
+						m_next = nextIndex(m_next);
+						return value;
+					}
+					
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+	
+	private int find(long key) {
+		// returns the slot with the key, or the empty slot where it would go
+		int i = hash(key) & m_mask;
+		while (m_values[i] != null && m_keys[i] != key) {
+			i = (i + 1) & m_mask;
+		}
+		return i;
+	}
+	
+	private void allocate(int capacity) {
+		m_keys = new long[capacity];
+		m_values = new Object[capacity];
+		m_mask = capacity - 1;
+	}
+	
+	private void resize(int capacity) {
+		long[] oldKeys = m_keys;
+		Object[] oldValues = m_values;
+		allocate(capacity);
+		for (int i = 0; i < oldValues.length; i++) {
+			if (oldValues[i] != null) {
+				int j = find(oldKeys[i]);
+				m_keys[j] = oldKeys[i];
+				m_values[j] = oldValues[i];
+			}
+		}
+	}
+	
+	private static int hash(long key) {
+		// addresses differ mostly in the low bits of each coordinate, so mix everything together
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int)key;
+	}
+}
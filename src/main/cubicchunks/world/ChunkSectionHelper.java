@@ -24,15 +24,26 @@
 package cubicchunks.world;
 
 import net.minecraft.block.Block;
+import net.minecraft.block.state.IBlockState;
 import net.minecraft.world.chunk.NibbleArray;
-import net.minecraft.world.chunk.storage.ChunkSection;
+
+import cubicchunks.world.cube.IBlockStorage;
 
 public class ChunkSectionHelper {
 	
-	public static byte[] getBlockLSBArray(ChunkSection storage) {
+	public static char getBlockStateId(IBlockState blockState) {
+		// same encoding as the vanilla section data
+		Block block = blockState.getBlock();
+		return (char)(Block.getBlockIndex(block) << 4 | block.getMetadataForBlockState(blockState));
+	}
+	
+	public static IBlockState getBlockState(char id) {
+		return Block.getBlockFromIndex(id >> 4).getBlockStateForMetadata(id & 0xf);
+	}
+	
+	public static byte[] getBlockLSBArray(char[] data) {
 		byte[] out = new byte[16 * 16 * 16];
 		
-		char[] data = storage.getBlockDataArray();
 		for (int i = 0; i<data.length; i++) {
 			final int val = data[i];
 			
@@ -44,10 +55,9 @@ public class ChunkSectionHelper {
 		return out;
 	}
 	
-	public static NibbleArray getBlockMSBArray(ChunkSection storage) {
+	public static NibbleArray getBlockMSBArray(char[] data) {
 		NibbleArray out = null;
 		
-		char[] data = storage.getBlockDataArray();
 		for (int i = 0; i<data.length; i++) {
 			final int val = data[i];
 			
@@ -68,10 +78,9 @@ public class ChunkSectionHelper {
 		return out;
 	}
 	
-	public static NibbleArray getBlockMetaArray(ChunkSection storage) {
+	public static NibbleArray getBlockMetaArray(char[] data) {
 		NibbleArray out = new NibbleArray();
 		
-		char[] data = storage.getBlockDataArray();
 		for (int i = 0; i<data.length; i++) {
 			final int val = data[i];
 			
@@ -86,7 +95,7 @@ public class ChunkSectionHelper {
 		return out;
 	}
 
-	public static void setBlockStates(ChunkSection chunkSection, byte[] blockIdLsbs, NibbleArray blockIdMsbs, NibbleArray blockMetadata) {
+	public static void setBlockStates(IBlockStorage storage, byte[] blockIdLsbs, NibbleArray blockIdMsbs, NibbleArray blockMetadata) {
 		for (int i=0; i<blockIdLsbs.length; i++) {
 			
 			// get the block
@@ -103,7 +112,7 @@ public class ChunkSectionHelper {
 			int x = i & 0xf;
 			int y = (i >> 8) & 0xf;
 			int z = (i >> 4) & 0xf;
-			chunkSection.setBlockStateAt(x, y, z, block.getBlockStateForMetadata(meta));
+			storage.setBlockState(x, y, z, block.getBlockStateForMetadata(meta));
 		}
 	}
 }
@@ -39,6 +39,9 @@ import com.google.common.base.Predicate;
 
 public class EntityContainer {
 	
+	// entities are big objects with lots of fields, this is just a ballpark
+	private static final long BytesPerEntity = 1024;
+	
 	private EntitySet<Entity> m_entities;
 	private boolean m_hasActiveEntities;
 	private long m_lastSaveTime;
@@ -82,6 +85,10 @@ public class EntityContainer {
 		return m_entities.size();
 	}
 	
+	public long getMemoryEstimate() {
+		return m_entities.size() * BytesPerEntity;
+	}
+	
 	public <T extends Entity> void findEntities(Class<? extends T> entityType, AxisAlignedBB queryBox, List<T> out, Predicate<? super T> predicate) {
 		for (T entity : m_entities.getEntities(entityType)) {
 			if (entityType.isAssignableFrom(entity.getClass()) && entity.getBoundingBox().intersects(queryBox) && (predicate == null || predicate.apply(entity))) {
@@ -45,6 +45,16 @@ public class LightIndex {
 		m_topNonTransparentBlockY = new ValueCache<Integer>();
 	}
 	
+	public long getMemoryEstimate() {
+		long bytes = 16 + m_columns.length * 4;
+		for (LightIndexColumn column : m_columns) {
+			if (column != null) {
+				bytes += column.getMemoryEstimate();
+			}
+		}
+		return bytes;
+	}
+	
 	public int getOpacity(int localX, int blockY, int localZ) {
 		int xzCoord = localZ << 4 | localX;
 		if (m_columns[xzCoord] == null) {
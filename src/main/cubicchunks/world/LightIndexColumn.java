@@ -26,55 +26,71 @@ package cubicchunks.world;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.Map;
-import java.util.TreeMap;
-
-import cubicchunks.util.ValueCache;
+import java.util.Arrays;
 
+/**
+ * Run-length encoded block opacities for one block column.
+ * <p>
+ * Each run starts at a block y and goes up to the start of the next run, the last run goes up forever.
+ * Blocks below the first run have zero opacity.
+ */
 public class LightIndexColumn {
 	
+	private static final int MinCapacity = 4;
+	
+	// most columns never get any runs, so they can all share the same empty arrays
+	private static final int[] NoRunStarts = new int[0];
+	private static final byte[] NoRunOpacities = new byte[0];
+	
 	private int m_seaLevel;
-	private TreeMap<Integer,Integer> m_opacity;
-	private ValueCache<Integer> m_topNonTransparentBlockY;
-	private ValueCache<Integer> m_topOpaqueUnderSeaLevelBlockY;
+	
+	// sorted run starts and their opacities, only the first m_numRuns entries are used
+	private int[] m_runStarts;
+	private byte[] m_runOpacities;
+	private int m_numRuns;
+	
+	private boolean m_hasTopNonTransparentBlockY;
+	private Integer m_topNonTransparentBlockY;
+	private boolean m_hasTopOpaqueUnderSeaLevelBlockY;
+	private Integer m_topOpaqueUnderSeaLevelBlockY;
 	
 	public LightIndexColumn(int seaLevel) {
 		m_seaLevel = seaLevel;
-		// UNDONE: could reduce memory usage by using the int-packed representation in memory
-		// although, that's probably not necessary since using cubes should actually save memory
-		// will have to do memory profiling to see if it's even worth trying to optimize memory usage here
-		m_opacity = new TreeMap<Integer,Integer>();
-		
-		m_topNonTransparentBlockY = new ValueCache<Integer>();
-		m_topOpaqueUnderSeaLevelBlockY = new ValueCache<Integer>();
+		m_runStarts = NoRunStarts;
+		m_runOpacities = NoRunOpacities;
+		m_numRuns = 0;
+		clearCaches();
 	}
 	
 	public void readData(DataInputStream in) throws IOException {
-		m_opacity.clear();
+		m_numRuns = 0;
 		int numEntries = in.readUnsignedShort();
+		ensureCapacity(numEntries);
 		for (int i = 0; i < numEntries; i++) {
 			int blockY = in.readInt();
 			int opacity = in.readUnsignedByte();
-			m_opacity.put(blockY, opacity);
+			put(blockY, opacity);
 		}
-		m_topNonTransparentBlockY.clear();;
-		m_topOpaqueUnderSeaLevelBlockY.clear();
+		clearCaches();
 	}
 	
 	public void writeData(DataOutputStream out) throws IOException {
-		out.writeShort(m_opacity.size());
-		for (Map.Entry<Integer,Integer> entry : m_opacity.entrySet()) {
-			out.writeInt(entry.getKey());
-			out.writeByte(entry.getValue());
+		out.writeShort(m_numRuns);
+		for (int i = 0; i < m_numRuns; i++) {
+			out.writeInt(m_runStarts[i]);
+			out.writeByte(m_runOpacities[i]);
 		}
 	}
 	
+	public long getMemoryEstimate() {
+		// the object, two array headers and an int and a byte per run
+		return 64 + m_runStarts.length * 5;
+	}
+	
 	public int getOpacity(int blockY) {
-		// lookups are easy: log(n) time
-		
-		Map.Entry<Integer,Integer> entry = m_opacity.floorEntry(blockY);
-		if (entry != null) {
-			return entry.getValue();
+		int i = floorIndex(blockY);
+		if (i >= 0) {
+			return m_runOpacities[i] & 0xff;
 		}
 		
 		// assume zero
@@ -82,7 +98,6 @@ public class LightIndexColumn {
 	}
 	
 	public void setOpacity(int blockY, int opacity) {
-		// updates are a bit harder: 5log(n) time
 		
 		// do we need to change anything?
 		int opacityAt = getOpacity(blockY);
@@ -96,22 +111,22 @@ public class LightIndexColumn {
 		boolean sameAbove = opacity == opacityAbove;
 		boolean sameBelow = opacity == opacityBelow;
 		if (sameAbove && sameBelow) {
-			// remove this entry and the one above it
-			m_opacity.remove(blockY);
-			m_opacity.remove(blockY + 1);
+			// remove this run and the one above it
+			remove(blockY);
+			remove(blockY + 1);
 		} else if (sameAbove && !sameBelow) {
-			// move the above entry down
-			m_opacity.remove(blockY + 1);
-			m_opacity.put(blockY, opacity);
+			// move the above run down
+			remove(blockY + 1);
+			put(blockY, opacity);
 		} else if (!sameAbove && sameBelow) {
-			// move the entry up
-			m_opacity.remove(blockY);
-			m_opacity.put(blockY + 1, opacityAbove);
+			// move the run up
+			remove(blockY);
+			put(blockY + 1, opacityAbove);
 		} else // !sameAbove && !sameBelow
 		{
-			// add/replace entries
-			m_opacity.put(blockY, opacity);
-			m_opacity.put(blockY + 1, opacityAbove);
+			// add/replace runs
+			put(blockY, opacity);
+			put(blockY + 1, opacityAbove);
 		}
 		
 		// just in case
@@ -119,69 +134,106 @@ public class LightIndexColumn {
 		assert (getOpacity(blockY + 1) == opacityAbove);
 		assert (getOpacity(blockY - 1) == opacityBelow);
 		
-		// invalidate caches
-		m_topNonTransparentBlockY.clear();
-		m_topOpaqueUnderSeaLevelBlockY.clear();
+		clearCaches();
 	}
 	
 	public Integer getTopNonTransparentBlockY() {
 		// do we need to recompute this?
-		if (!m_topNonTransparentBlockY.hasValue()) {
-			m_topNonTransparentBlockY.set(null);
+		if (!m_hasTopNonTransparentBlockY) {
+			m_hasTopNonTransparentBlockY = true;
+			m_topNonTransparentBlockY = null;
 			
-			Map.Entry<Integer,Integer> lastEntry = null;
-			for (Map.Entry<Integer,Integer> entry : m_opacity.descendingMap().entrySet()) {
-				int opacity = entry.getValue();
-				if (opacity > 0) {
-					// if there was no last segment, that means the top entry in this column is non-transparent
-					// which means the top non-transparent block is at infinity
+			for (int i = m_numRuns - 1; i >= 0; i--) {
+				if (m_runOpacities[i] != 0) {
+					// if there was no run above this one, the top non-transparent block would be at infinity
 					// obviously that doesn't make any sense
-					assert (lastEntry != null);
+					assert (i + 1 < m_numRuns);
 					
-					// go to the top of this segment
-					m_topNonTransparentBlockY.set(lastEntry.getKey() - 1);
+					// go to the top of this run
+					m_topNonTransparentBlockY = m_runStarts[i + 1] - 1;
 					break;
 				}
-				
-				lastEntry = entry;
 			}
 		}
-		return m_topNonTransparentBlockY.get();
+		return m_topNonTransparentBlockY;
 	}
 	
 	public Integer getTopOpaqueBlockBelowSeaLevel() {
 		// do we need to recompute this?
-		if (!m_topOpaqueUnderSeaLevelBlockY.hasValue()) {
-			m_topOpaqueUnderSeaLevelBlockY.set(null);
+		if (!m_hasTopOpaqueUnderSeaLevelBlockY) {
+			m_hasTopOpaqueUnderSeaLevelBlockY = true;
+			m_topOpaqueUnderSeaLevelBlockY = null;
 			
-			// UNDONE: this is a linear-time query... we might be able to speed it up if we need
-			// log(n) would be nice
-			
-			Map.Entry<Integer,Integer> entry = m_opacity.floorEntry(m_seaLevel);
-			while (entry != null) {
-				// is this segment opaque?
-				if (entry.getValue() == 255) {
-					// go to the top of this segment
-					// NOTE: since this segment is opaque, there should always be a transparent one above it
-					m_topOpaqueUnderSeaLevelBlockY.set(m_opacity.higherKey(entry.getKey()));
+			for (int i = floorIndex(m_seaLevel); i >= 0; i--) {
+				// is this run opaque?
+				if ((m_runOpacities[i] & 0xff) == 255) {
+					// go to the top of this run
+					// NOTE: since this run is opaque, there should always be a transparent one above it
+					if (i + 1 < m_numRuns) {
+						m_topOpaqueUnderSeaLevelBlockY = m_runStarts[i + 1];
+					}
 					break;
 				}
-				
-				// move down to the next entry
-				entry = m_opacity.lowerEntry(entry.getKey());
 			}
 		}
-		return m_topOpaqueUnderSeaLevelBlockY.get();
+		return m_topOpaqueUnderSeaLevelBlockY;
 	}
 	
 	public String dump() {
 		StringBuilder buf = new StringBuilder();
-		for (Map.Entry<Integer,Integer> entry : m_opacity.entrySet()) {
+		for (int i = 0; i < m_numRuns; i++) {
 			if (buf.length() > 0) {
 				buf.append(", ");
 			}
-			buf.append(String.format("%d:%d", entry.getKey(), entry.getValue()));
+			buf.append(String.format("%d:%d", m_runStarts[i], m_runOpacities[i] & 0xff));
 		}
 		return buf.toString();
 	}
-}
\ No newline at end of file
+	
+	private int floorIndex(int blockY) {
+		// index of the last run starting at or below blockY, or -1 if there isn't one
+		int i = Arrays.binarySearch(m_runStarts, 0, m_numRuns, blockY);
+		if (i >= 0) {
+			return i;
+		}
+		return -i - 2;
+	}
+	
+	private void put(int blockY, int opacity) {
+		int i = Arrays.binarySearch(m_runStarts, 0, m_numRuns, blockY);
+		if (i < 0) {
+			// make room for a new run
+			i = -i - 1;
+			ensureCapacity(m_numRuns + 1);
+			System.arraycopy(m_runStarts, i, m_runStarts, i + 1, m_numRuns - i);
+			System.arraycopy(m_runOpacities, i, m_runOpacities, i + 1, m_numRuns - i);
+			m_runStarts[i] = blockY;
+			m_numRuns++;
+		}
+		m_runOpacities[i] = (byte)opacity;
+	}
+	
+	private void remove(int blockY) {
+		int i = Arrays.binarySearch(m_runStarts, 0, m_numRuns, blockY);
+		if (i >= 0) {
+			System.arraycopy(m_runStarts, i + 1, m_runStarts, i, m_numRuns - i - 1);
+			System.arraycopy(m_runOpacities, i + 1, m_runOpacities, i, m_numRuns - i - 1);
+			m_numRuns--;
+		}
+	}
+	
+	private void ensureCapacity(int capacity) {
+		if (capacity > m_runStarts.length) {
+			int newCapacity = Math.max(Math.max(capacity, MinCapacity), m_runStarts.length * 2);
+			m_runStarts = Arrays.copyOf(m_runStarts, newCapacity);
+			m_runOpacities = Arrays.copyOf(m_runOpacities, newCapacity);
+		}
+	}
+	
+	private void clearCaches() {
+		m_hasTopNonTransparentBlockY = false;
+		m_topNonTransparentBlockY = null;
+		m_hasTopOpaqueUnderSeaLevelBlockY = false;
+		m_topOpaqueUnderSeaLevelBlockY = null;
+	}
+}
@@ -32,7 +32,6 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
-import java.util.TreeMap;
 
 import net.minecraft.block.Block;
 import net.minecraft.block.Blocks;
@@ -51,7 +50,6 @@ import net.minecraft.world.biome.Biome;
 import net.minecraft.world.biome.BiomeManager;
 import net.minecraft.world.chunk.Chunk;
 import net.minecraft.world.chunk.NibbleArray;
-import net.minecraft.world.chunk.storage.ChunkSection;
 
 import org.apache.commons.io.output.ByteArrayOutputStream;
 import org.apache.logging.log4j.LogManager;
@@ -63,13 +61,16 @@ import cubicchunks.generator.GeneratorStage;
 import cubicchunks.util.AddressTools;
 import cubicchunks.util.Bits;
 import cubicchunks.util.Coords;
+import cubicchunks.util.DenseIntMap;
 import cubicchunks.util.RangeInt;
 import cubicchunks.world.ChunkSectionHelper;
 import cubicchunks.world.EntityContainer;
 import cubicchunks.world.ICubeCache;
+import cubicchunks.world.IModificationListener;
 import cubicchunks.world.LightIndex;
 import cubicchunks.world.WorldContext;
 import cubicchunks.world.cube.Cube;
+import cubicchunks.world.cube.IBlockStorage;
 
 public class Column extends Chunk {
 	
@@ -78,11 +79,15 @@ public class Column extends Chunk {
 	
 	private static final Logger log = LogManager.getLogger();
 	
-	private TreeMap<Integer,Cube> cubes;
+	// the vanilla chunk arrays (biomes, height maps, ...) and our own fields, but not the cubes
+	private static final long BaseBytes = 4 * 1024;
+	
+	private DenseIntMap<Cube> cubes;
 	private LightIndex lightIndex;
 	private int roundRobinLightUpdatePointer;
 	private List<Cube> roundRobinCubes;
 	private EntityContainer entities;
+	private IModificationListener modificationListener;
 	
 	public Column(World world, int x, int z) {
 		
@@ -109,11 +114,12 @@ public class Column extends Chunk {
 	
 	private void init() {
 		
-		this.cubes = new TreeMap<Integer,Cube>();
+		this.cubes = new DenseIntMap<Cube>();
 		this.lightIndex = new LightIndex(this.world.getSeaLevel());
 		this.roundRobinLightUpdatePointer = 0;
 		this.roundRobinCubes = new ArrayList<Cube>();
 		this.entities = new EntityContainer();
+		this.modificationListener = null;
 		
 		// make sure no one's using data structures that have been replaced
 		// also saves memory
@@ -148,6 +154,15 @@ public class Column extends Chunk {
 		return this.lightIndex;
 	}
 	
+	/**
+	 * Returns a rough count of the heap bytes this column uses, not counting its cubes.
+	 */
+	public long getMemoryEstimate() {
+		return BaseBytes
+			+ this.lightIndex.getMemoryEstimate()
+			+ this.entities.getMemoryEstimate();
+	}
+	
 	@Override
 	public void generateHeightMap() {
 		// override this so no height map is generated
@@ -174,16 +189,12 @@ public class Column extends Chunk {
 		return cube;
 	}
 	
-	public Iterable<Cube> getCubes(int minY, int maxY) {
-		return this.cubes.subMap(minY, true, maxY, true).values();
-	}
-	
 	public Cube removeCube(int cubeY) {
 		return this.cubes.remove(cubeY);
 	}
 	
 	public List<RangeInt> getCubeYRanges() {
-		return getRanges(this.cubes.keySet());
+		return getRanges(this.cubes.keys());
 	}
 	
 	@Override
@@ -196,6 +207,35 @@ public class Column extends Chunk {
 		this.isModified = false;
 	}
 	
+	@Override
+	public void setModified(boolean isModified) {
+		if (isModified) {
+			markModified();
+		} else {
+			this.isModified = false;
+		}
+	}
+	
+	public IModificationListener getModificationListener() {
+		return this.modificationListener;
+	}
+	
+	/**
+	 * The listener hears about this column and its cubes when they first change after a save.
+	 */
+	public void setModificationListener(IModificationListener val) {
+		this.modificationListener = val;
+	}
+	
+	private void markModified() {
+		if (!this.isModified) {
+			this.isModified = true;
+			if (this.modificationListener != null) {
+				this.modificationListener.onColumnModified(this);
+			}
+		}
+	}
+	
 	@Override
 	public Block getBlockAt(final int x, final int y, final int z) {
 		
@@ -294,7 +334,7 @@ public class Column extends Chunk {
 		// update lighting index
 		getLightIndex().setOpacity(x, pos.getY(), z, newBlock.getOpacity());
 		
-		this.isModified = true;
+		markModified();
 		
 		// NOTE: after this method, the World calls updateLights on the source block which changes light values again
 		
@@ -437,7 +477,7 @@ public class Column extends Chunk {
 			entity.chunkZ = this.chunkZ;
 			
 			this.entities.add(entity);
-			this.isModified = true;
+			markModified();
 		}
 	}
 	
@@ -459,7 +499,7 @@ public class Column extends Chunk {
 			cube.removeEntity(entity);
 		} else if (this.entities.remove(entity)) {
 			entity.addedToChunk = false;
-			this.isModified = true;
+			markModified();
 		} else {
 			log.warn("{} Tried to remove entity {} from column ({},{}), but it was not there. Entity thinks it's in cube ({},{},{})",
 				this.world.isClient ? "CLIENT" : "SERVER",
@@ -474,10 +514,16 @@ public class Column extends Chunk {
     public void findEntitiesExcept(Entity excludedEntity, AxisAlignedBB queryBox, List<Entity> out, Predicate<? super Entity> predicate) {
 		
 		// get a y-range that 2 blocks wider than the box for safety
-		int minCubeY = Coords.blockToCube(MathHelper.floor(queryBox.minY - 2));
-		int maxCubeY = Coords.blockToCube(MathHelper.floor(queryBox.maxY + 2));
-		for (Cube cube : getCubes(minCubeY, maxCubeY)) {
-			cube.findEntitiesExcept(excludedEntity, queryBox, out, predicate);
+		// but only look where there are cubes, the box could be really tall
+		if (!this.cubes.isEmpty()) {
+			int minCubeY = Math.max(Coords.blockToCube(MathHelper.floor(queryBox.minY - 2)), this.cubes.firstKey());
+			int maxCubeY = Math.min(Coords.blockToCube(MathHelper.floor(queryBox.maxY + 2)), this.cubes.lastKey());
+			for (int cubeY = minCubeY; cubeY <= maxCubeY; cubeY++) {
+				Cube cube = this.cubes.get(cubeY);
+				if (cube != null) {
+					cube.findEntitiesExcept(excludedEntity, queryBox, out, predicate);
+				}
+			}
 		}
 		
 		// check the column too
@@ -488,10 +534,16 @@ public class Column extends Chunk {
     public <T extends Entity> void findEntities(Class<? extends T> entityType, AxisAlignedBB queryBox, List<T> out, Predicate<? super T> predicate) {
 		
 		// get a y-range that 2 blocks wider than the box for safety
-		int minCubeY = Coords.blockToCube(MathHelper.floor(queryBox.minY - 2));
-		int maxCubeY = Coords.blockToCube(MathHelper.floor(queryBox.maxY + 2));
-		for (Cube cube : getCubes(minCubeY, maxCubeY)) {
-			cube.findEntities(entityType, queryBox, out, predicate);
+		// but only look where there are cubes, the box could be really tall
+		if (!this.cubes.isEmpty()) {
+			int minCubeY = Math.max(Coords.blockToCube(MathHelper.floor(queryBox.minY - 2)), this.cubes.firstKey());
+			int maxCubeY = Math.min(Coords.blockToCube(MathHelper.floor(queryBox.maxY + 2)), this.cubes.lastKey());
+			for (int cubeY = minCubeY; cubeY <= maxCubeY; cubeY++) {
+				Cube cube = this.cubes.get(cubeY);
+				if (cube != null) {
+					cube.findEntities(entityType, queryBox, out, predicate);
+				}
+			}
 		}
 		
 		// check the column too
@@ -571,13 +623,14 @@ public class Column extends Chunk {
 			
 			out.writeBoolean(cube.isEmpty());
 			if (!cube.isEmpty()) {
-				ChunkSection storage = cube.getStorage();
+				IBlockStorage storage = cube.getStorage();
+				char[] blockData = storage.getBlockData();
 				
 				// 1. block IDs, low bits
-				out.write(ChunkSectionHelper.getBlockLSBArray(storage));
+				out.write(ChunkSectionHelper.getBlockLSBArray(blockData));
 				
 				// 2. block IDs, high bits
-				NibbleArray blockIdMsbs = ChunkSectionHelper.getBlockMSBArray(storage);
+				NibbleArray blockIdMsbs = ChunkSectionHelper.getBlockMSBArray(blockData);
 				if (blockIdMsbs != null) {
 					out.writeByte(1);
 					out.write(blockIdMsbs.get());
@@ -587,14 +640,15 @@ public class Column extends Chunk {
 				}
 				
 				// 3. metadata
-				out.write(ChunkSectionHelper.getBlockMetaArray(storage).get());
+				out.write(ChunkSectionHelper.getBlockMetaArray(blockData).get());
 				
 				// 4. block light
-				out.write(storage.getBlockLightArray().get());
+				// NOTE: the light getters would copy the storage if a save still has a snapshot of it
+				storage.writeBlockLight(out);
 				
 				if (hasSky) {
 					// 5. sky light
-					out.write(storage.getSkyLightArray().get());
+					storage.writeSkyLight(out);
 				}
 			}
 		}
@@ -670,7 +724,7 @@ public class Column extends Chunk {
 				cube.setEmpty(isEmpty);
 				
 				if (!isEmpty) {
-					ChunkSection storage = cube.getStorage();
+					IBlockStorage storage = cube.getStorage();
 					
 					// 1. block IDs, low bits
 					byte[] blockIdLsbs = new byte[16*16*16];
@@ -691,14 +745,12 @@ public class Column extends Chunk {
 					ChunkSectionHelper.setBlockStates(storage, blockIdLsbs, blockIdMsbs, blockMetadata);
 					
 					// 4. block light
-					in.read(storage.getBlockLightArray().get());
+					in.read(storage.getBlockLightData());
 					
 					if (!this.world.dimension.hasNoSky()) {
 						// 5. sky light
-						in.read(storage.getSkyLightArray().get());
+						in.read(storage.getSkyLightData());
 					}
-					
-					storage.countBlocksInSection();
 				}
 				
 				// flag cube for render update
@@ -880,7 +932,7 @@ public class Column extends Chunk {
 		Cube cube = this.cubes.get(cubeY);
 		if (cube != null) {
 			cube.setLightValue(lightType, pos, light);
-			this.isModified = true;
+			markModified();
 		}
 	}
 	
@@ -36,34 +36,40 @@ import net.minecraft.util.BlockPos;
 import net.minecraft.world.LightType;
 import net.minecraft.world.World;
 import net.minecraft.world.chunk.Chunk.ChunkEntityCreationType;
-import net.minecraft.world.chunk.storage.ChunkSection;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import com.google.common.base.Predicate;
 
+import cubicchunks.TallWorldsConfig;
 import cubicchunks.generator.GeneratorStage;
 import cubicchunks.util.AddressTools;
 import cubicchunks.util.Coords;
 import cubicchunks.util.CubeBlockMap;
 import cubicchunks.world.EntityContainer;
+import cubicchunks.world.IModificationListener;
 import cubicchunks.world.column.Column;
 
 public class Cube {
 	
 	private static final Logger LOGGER = LogManager.getLogger();
 	
+	// object headers, fields and the empty containers
+	private static final long BaseBytes = 256;
+	private static final long BytesPerBlockEntity = 256;
+	
 	private World world;
 	private Column column;
 	private int cubeX;
 	private int cubeY;
 	private int cubeZ;
 	private boolean isModified;
-	private ChunkSection storage;
+	private IBlockStorage storage;
 	private EntityContainer entities;
 	private CubeBlockMap<BlockEntity> blockEntities;
 	private GeneratorStage generatorStage;
+	private long lastWatchedTime;
 	
 	public Cube(World world, Column column, int x, int y, int z, boolean isModified) {
 		this.world = world;
@@ -77,6 +83,7 @@ public class Cube {
 		this.entities = new EntityContainer();
 		this.blockEntities = new CubeBlockMap<BlockEntity>();
 		this.generatorStage = null;
+		this.lastWatchedTime = 0;
 	}
 	
 	public boolean isEmpty() {
@@ -84,10 +91,28 @@ public class Cube {
 	}
 	
 	public void setEmpty(boolean isEmpty) {
-		if (isEmpty) {
+		releaseStorage();
+		if (!isEmpty) {
+			boolean hasSky = !this.world.dimension.hasNoSky();
+			if (TallWorldsConfig.OffHeapBlockStorage && !this.world.isClient) {
+				// the client reads light straight into the arrays, so it keeps the heap storage
+				this.storage = new OffHeapBlockStorage(hasSky);
+			} else if (TallWorldsConfig.PaletteBlockStorage) {
+				this.storage = new PaletteBlockStorage(hasSky);
+			} else {
+				this.storage = new VanillaBlockStorage(Coords.cubeToMinBlock(this.cubeY), hasSky);
+			}
+		}
+	}
+	
+	/**
+	 * Gives the block storage back and leaves the cube empty.
+	 * Call this once an unloaded cube is saved, since the save copies the blocks.
+	 */
+	public void releaseStorage() {
+		if (this.storage != null) {
+			this.storage.release();
 			this.storage = null;
-		} else {
-			this.storage = new ChunkSection(Coords.cubeToMinBlock(this.cubeY), !this.world.dimension.hasNoSky());
 		}
 	}
 	
@@ -129,7 +154,7 @@ public class Cube {
 			&& this.cubeZ == Coords.blockToCube(blockPos.getZ());
 	}
 	
-	public ChunkSection getStorage() {
+	public IBlockStorage getStorage() {
 		return this.storage;
 	}
 	
@@ -144,7 +169,7 @@ public class Cube {
 		if (isEmpty()) {
 			return Blocks.AIR;
 		}
-		return this.storage.getBlockAt(localX, localY, localZ);
+		return this.storage.getBlock(localX, localY, localZ);
 	}
 	
 	public IBlockState getBlockState(BlockPos pos) {
@@ -161,7 +186,7 @@ public class Cube {
 		if (isEmpty()) {
 			return Blocks.AIR.getDefaultState();
 		}
-		return this.storage.getBlockStateAt(localX, localY, localZ);
+		return this.storage.getBlockState(localX, localY, localZ);
 	}
 	
 	public IBlockState setBlockState(BlockPos pos, IBlockState newBlockState) {
@@ -182,7 +207,7 @@ public class Cube {
 		int z = Coords.blockToLocal(pos.getZ());
 
 		// set the block
-		this.storage.setBlockStateAt(x, y, z, newBlockState);
+		this.storage.setBlockState(x, y, z, newBlockState);
 		
 		Block newBlock = newBlockState.getBlock();
 		Block oldBlock = oldBlockState.getBlock();
@@ -198,10 +223,10 @@ public class Cube {
 		}
 		
 		// did the block change work correctly?
-		if (this.storage.getBlockAt(x, y, z) != newBlock) {
+		if (this.storage.getBlock(x, y, z) != newBlock) {
 			return null;
 		}
-		this.isModified = true;
+		markModified();
 		
 		if (oldBlock instanceof IBlockEntityProvider) {
 			// update tile entity
@@ -250,15 +275,15 @@ public class Cube {
 		int z = Coords.blockToLocal(pos.getZ());
 
 		// set the block
-		this.storage.setBlockStateAt(x, y, z, newBlockState);
+		this.storage.setBlockState(x, y, z, newBlockState);
 		
 		Block newBlock = newBlockState.getBlock();
 		
 		// did the block change work correctly?
-		if (this.storage.getBlockAt(x, y, z) != newBlock) {
+		if (this.storage.getBlock(x, y, z) != newBlock) {
 			return null;
 		}
-		this.isModified = true;
+		markModified();
 		
 		// update the column light index
 		int blockY = Coords.localToBlock(this.cubeY, y);
@@ -272,7 +297,7 @@ public class Cube {
 			return false;
 		}
 		
-		return !this.storage.isSectionEmpty();
+		return this.storage.hasBlocks();
 	}
 	
 	public Iterable<BlockEntity> getBlockEntities() {
@@ -300,14 +325,14 @@ public class Cube {
 		entity.chunkZ = this.cubeZ;
 		
 		this.entities.add(entity);
-		this.isModified = true;
+		markModified();
 	}
 	
 	public boolean removeEntity(Entity entity) {
 		boolean wasRemoved = this.entities.remove(entity);
 		if (wasRemoved) {
 			entity.addedToChunk = false;
-			this.isModified = true;
+			markModified();
 		} else {
 			LOGGER.warn(String.format("%s Tried to remove entity %s from cube (%d,%d,%d), but it was not there. Entity thinks it's in cube (%d,%d,%d)",
 				this.world.isClient ? "CLIENT" : "SERVER",
@@ -407,7 +432,7 @@ public class Cube {
 			// install the new tile entity
 			blockEntity.setValid();
 			this.blockEntities.put(pos, blockEntity);
-			this.isModified = true;
+			markModified();
 		}
 	}
 	
@@ -415,7 +440,7 @@ public class Cube {
 		BlockEntity blockEntity = this.blockEntities.remove(pos);
 		if (blockEntity != null) {
 			blockEntity.setInvalid();
-			this.isModified = true;
+			markModified();
 		}
 	}
 	
@@ -443,6 +468,32 @@ public class Cube {
 		}
 	}
 	
+	/**
+	 * Returns the last world time a player was watching this cube.
+	 */
+	public long getLastWatchedTime() {
+		return this.lastWatchedTime;
+	}
+	
+	public void setLastWatchedTime(long val) {
+		this.lastWatchedTime = val;
+	}
+	
+	public long getBlockEntitiesMemoryEstimate() {
+		return this.blockEntities.size() * BytesPerBlockEntity;
+	}
+	
+	/**
+	 * Returns a rough count of the heap bytes this cube uses, including its blocks and entities.
+	 */
+	public long getMemoryEstimate() {
+		long bytes = BaseBytes + this.entities.getMemoryEstimate() + getBlockEntitiesMemoryEstimate();
+		if (this.storage != null) {
+			bytes += this.storage.getMemoryEstimate();
+		}
+		return bytes;
+	}
+	
 	public boolean needsSaving() {
 		return this.entities.needsSaving(this.world.getGameTime()) || this.isModified;
 	}
@@ -452,6 +503,16 @@ public class Cube {
 		this.isModified = false;
 	}
 	
+	private void markModified() {
+		if (!this.isModified) {
+			this.isModified = true;
+			IModificationListener listener = this.column.getModificationListener();
+			if (listener != null) {
+				listener.onCubeModified(this);
+			}
+		}
+	}
+	
 	public boolean isUnderground(BlockPos pos) {
 		int x = Coords.blockToLocal(pos.getX());
 		int z = Coords.blockToLocal(pos.getZ());
@@ -495,7 +556,7 @@ public class Cube {
 						}
 					}
 					
-					return this.storage.getSkyLightAtCoords(x, y, z);
+					return this.storage.getSkyLight(x, y, z);
 				} else {
 					return 0;
 				}
@@ -505,7 +566,7 @@ public class Cube {
 					return 0;
 				}
 				
-				return this.storage.getBlockLightAtCoords(x, y, z);
+				return this.storage.getBlockLight(x, y, z);
 				
 			default:
 				return lightType.defaultValue;
@@ -526,21 +587,46 @@ public class Cube {
 		switch (lightType) {
 			case SKY:
 				if (!this.world.dimension.hasNoSky()) {
-					this.storage.setSkyLightAtCoords(x, y, z, light);
-					this.isModified = true;
+					this.storage.setSkyLight(x, y, z, light);
+					markModified();
+				}
+			break;
+			
+			case BLOCK:
+				this.storage.setBlockLight(x, y, z, light);
+				markModified();
+			break;
+		}
+	}
+	
+	/**
+	 * Replaces the whole light array at once, eg after editing the array from {@link IBlockStorage#getBlockLightData}.
+	 */
+	public void setLightData(LightType lightType, byte[] data) {
+		
+		// make sure we're not empty
+		if (isEmpty()) {
+			setEmpty(false);
+		}
+		
+		switch (lightType) {
+			case SKY:
+				if (!this.world.dimension.hasNoSky()) {
+					this.storage.setSkyLightData(data);
+					markModified();
 				}
 			break;
 			
 			case BLOCK:
-				this.storage.setBlockLightAtCoords(x, y, z, light);
-				this.isModified = true;
+				this.storage.setBlockLightData(data);
+				markModified();
 			break;
 		}
 	}
 	
 	public void doRandomTicks() {
 		
-		if (isEmpty() || this.storage.isSectionEmpty()) {
+		if (isEmpty() || !this.storage.hasBlocks()) {
 			return;
 		}
 		
@@ -554,7 +640,7 @@ public class Cube {
 			int y = (index >> 8) & 15;
 			int z = (index >> 16) & 15;
 			
-			IBlockState blockState = this.storage.getBlockStateAt(x, y, z);
+			IBlockState blockState = this.storage.getBlockState(x, y, z);
 			Block block = blockState.getBlock();
 			
 			if (block.hasRandomTick()) {
@@ -0,0 +1,113 @@
+/*
+ *  This file is part of Cubic Chunks, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2014 Tall Worlds
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package cubicchunks.world.cube;
+
+import java.io.DataOutput;
+import java.io.IOException;
+
+import net.minecraft.block.Block;
+import net.minecraft.block.state.IBlockState;
+
+/**
+ * Block states and light for the 16x16x16 blocks of a cube.
+ * <p>
+ * Block data is exchanged in the vanilla section encoding (block id &lt;&lt; 4 | metadata per char, indexed y &lt;&lt; 8 | z &lt;&lt; 4 | x)
+ * and light in the vanilla nibble layout, so the save format and the network format don't depend on the implementation.
+ */
+public interface IBlockStorage {
+	
+	IBlockState getBlockState(int localX, int localY, int localZ);
+	
+	void setBlockState(int localX, int localY, int localZ, IBlockState blockState);
+	
+	Block getBlock(int localX, int localY, int localZ);
+	
+	int getBlockLight(int localX, int localY, int localZ);
+	
+	void setBlockLight(int localX, int localY, int localZ, int light);
+	
+	int getSkyLight(int localX, int localY, int localZ);
+	
+	void setSkyLight(int localX, int localY, int localZ, int light);
+	
+	/**
+	 * @return true if any block is not air
+	 */
+	boolean hasBlocks();
+	
+	/**
+	 * @return a copy of the block data in the vanilla encoding
+	 */
+	char[] getBlockData();
+	
+	void setBlockData(char[] data);
+	
+	/**
+	 * @return the block light nibbles, live for the heap storages but a copy for off-heap storage
+	 */
+	byte[] getBlockLightData();
+	
+	void setBlockLightData(byte[] data);
+	
+	/**
+	 * @return the sky light nibbles (live or a copy, like the block light), or null if the world has no sky
+	 */
+	byte[] getSkyLightData();
+	
+	void setSkyLightData(byte[] data);
+	
+	/**
+	 * Writes the block light nibbles to out without copying or changing anything, for the network
+	 */
+	void writeBlockLight(DataOutput out) throws IOException;
+	
+	/**
+	 * Writes the sky light nibbles to out like {@link #writeBlockLight}, or nothing if the world has no sky
+	 */
+	void writeSkyLight(DataOutput out) throws IOException;
+	
+	IBlockStorage copy();
+	
+	/**
+	 * Returns a frozen copy of the storage that's safe to read from another thread while this storage keeps changing.
+	 * This is meant to be cheap: the two share their data and this storage makes its own copy the next time it changes.
+	 * Never modify a snapshot, and release it when done.
+	 */
+	IBlockStorage snapshot();
+	
+	/**
+	 * @return a rough count of the heap bytes this storage holds on to
+	 */
+	long getMemoryEstimate();
+	
+	/**
+	 * @return the bytes this storage holds on to outside the heap
+	 */
+	long getOffHeapMemoryEstimate();
+	
+	/**
+	 * Gives back any memory the storage can't leave to the garbage collector. Don't use the storage afterwards.
+	 */
+	void release();
+}
@@ -0,0 +1,277 @@
+/*
+ *  This file is part of Cubic Chunks, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2014 Tall Worlds
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package cubicchunks.world.cube;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.minecraft.block.Block;
+import net.minecraft.block.state.IBlockState;
+
+import cubicchunks.util.DirectBufferPool;
+import cubicchunks.world.ChunkSectionHelper;
+
+/**
+ * Block storage that keeps the blocks and light of a cube in a slice of a pooled direct buffer instead of on the heap.
+ * <p>
+ * The slice holds vanilla-encoded chars for the blocks, then the block light nibbles, then the sky light nibbles.
+ * The light data getters return copies, so changes have to go back through the setters.
+ * The slice goes back to the pool on {@link #release}, after that the storage must not be used.
+ * Snapshots share the slice, which is reference counted so it goes back once the storage and all its snapshots are released.
+ */
+public class OffHeapBlockStorage implements IBlockStorage {
+	
+	private static final int NumBlocks = 16 * 16 * 16;
+	private static final int NumLightBytes = NumBlocks / 2;
+	private static final int BlockLightOffset = NumBlocks * 2;
+	private static final int SkyLightOffset = BlockLightOffset + NumLightBytes;
+	private static final int NumBytes = SkyLightOffset + NumLightBytes;
+	
+	// 256 cubes (3 MiB) per slab
+	private static final DirectBufferPool Pool = new DirectBufferPool(NumBytes, 256);
+	
+	private ByteBuffer buf;
+	private AtomicInteger refs;
+	private boolean hasSky;
+	private int numNonAirBlocks;
+	
+	public OffHeapBlockStorage(boolean hasSky) {
+		this(Pool.allocate(), new AtomicInteger(1), hasSky, 0);
+	}
+	
+	private OffHeapBlockStorage(ByteBuffer buf, AtomicInteger refs, boolean hasSky, int numNonAirBlocks) {
+		this.buf = buf;
+		this.refs = refs;
+		this.hasSky = hasSky;
+		this.numNonAirBlocks = numNonAirBlocks;
+	}
+	
+	public static DirectBufferPool getPool() {
+		return Pool;
+	}
+	
+	@Override
+	public IBlockState getBlockState(int localX, int localY, int localZ) {
+		return ChunkSectionHelper.getBlockState(this.buf.getChar(getIndex(localX, localY, localZ) * 2));
+	}
+	
+	@Override
+	public void setBlockState(int localX, int localY, int localZ, IBlockState blockState) {
+		unshare();
+		int i = getIndex(localX, localY, localZ) * 2;
+		char id = ChunkSectionHelper.getBlockStateId(blockState);
+		
+		// keep track of how many non-air blocks we have
+		if (!isAir(this.buf.getChar(i))) {
+			this.numNonAirBlocks--;
+		}
+		if (!isAir(id)) {
+			this.numNonAirBlocks++;
+		}
+		this.buf.putChar(i, id);
+	}
+	
+	@Override
+	public Block getBlock(int localX, int localY, int localZ) {
+		return getBlockState(localX, localY, localZ).getBlock();
+	}
+	
+	@Override
+	public int getBlockLight(int localX, int localY, int localZ) {
+		return getNibble(BlockLightOffset, getIndex(localX, localY, localZ));
+	}
+	
+	@Override
+	public void setBlockLight(int localX, int localY, int localZ, int light) {
+		unshare();
+		setNibble(BlockLightOffset, getIndex(localX, localY, localZ), light);
+	}
+	
+	@Override
+	public int getSkyLight(int localX, int localY, int localZ) {
+		if (!this.hasSky) {
+			return 0;
+		}
+		return getNibble(SkyLightOffset, getIndex(localX, localY, localZ));
+	}
+	
+	@Override
+	public void setSkyLight(int localX, int localY, int localZ, int light) {
+		if (this.hasSky) {
+			unshare();
+			setNibble(SkyLightOffset, getIndex(localX, localY, localZ), light);
+		}
+	}
+	
+	@Override
+	public boolean hasBlocks() {
+		return this.numNonAirBlocks > 0;
+	}
+	
+	@Override
+	public char[] getBlockData() {
+		char[] out = new char[NumBlocks];
+		for (int i = 0; i < NumBlocks; i++) {
+			out[i] = this.buf.getChar(i * 2);
+		}
+		return out;
+	}
+	
+	@Override
+	public void setBlockData(char[] data) {
+		unshare();
+		this.numNonAirBlocks = 0;
+		for (int i = 0; i < NumBlocks; i++) {
+			char id = data[i];
+			if (!isAir(id)) {
+				this.numNonAirBlocks++;
+			}
+			this.buf.putChar(i * 2, id);
+		}
+	}
+	
+	@Override
+	public byte[] getBlockLightData() {
+		return readBytes(BlockLightOffset);
+	}
+	
+	@Override
+	public void setBlockLightData(byte[] data) {
+		unshare();
+		writeBytes(BlockLightOffset, data);
+	}
+	
+	@Override
+	public byte[] getSkyLightData() {
+		if (!this.hasSky) {
+			return null;
+		}
+		return readBytes(SkyLightOffset);
+	}
+	
+	@Override
+	public void setSkyLightData(byte[] data) {
+		if (this.hasSky) {
+			unshare();
+			writeBytes(SkyLightOffset, data);
+		}
+	}
+	
+	@Override
+	public void writeBlockLight(DataOutput out) throws IOException {
+		out.write(readBytes(BlockLightOffset));
+	}
+	
+	@Override
+	public void writeSkyLight(DataOutput out) throws IOException {
+		if (this.hasSky) {
+			out.write(readBytes(SkyLightOffset));
+		}
+	}
+	
+	@Override
+	public IBlockStorage copy() {
+		return new OffHeapBlockStorage(copyBuffer(), new AtomicInteger(1), this.hasSky, this.numNonAirBlocks);
+	}
+	
+	@Override
+	public IBlockStorage snapshot() {
+		this.refs.incrementAndGet();
+		return new OffHeapBlockStorage(this.buf, this.refs, this.hasSky, this.numNonAirBlocks);
+	}
+	
+	private void unshare() {
+		// NOTE: snapshots only ever release their reference, so if we're the only one left, no one can share it again
+		if (this.refs.get() > 1) {
+			ByteBuffer buf = copyBuffer();
+			release();
+			this.buf = buf;
+			this.refs = new AtomicInteger(1);
+		}
+	}
+	
+	private ByteBuffer copyBuffer() {
+		ByteBuffer out = Pool.allocate();
+		ByteBuffer src = this.buf.duplicate();
+		src.clear();
+		out.duplicate().put(src);
+		return out;
+	}
+	
+	@Override
+	public long getMemoryEstimate() {
+		// just us, the slice is off the heap
+		return 32;
+	}
+	
+	@Override
+	public long getOffHeapMemoryEstimate() {
+		return NumBytes;
+	}
+	
+	@Override
+	public void release() {
+		if (this.buf != null) {
+			if (this.refs.decrementAndGet() == 0) {
+				Pool.free(this.buf);
+			}
+			this.buf = null;
+		}
+	}
+	
+	private byte[] readBytes(int offset) {
+		byte[] out = new byte[NumLightBytes];
+		ByteBuffer view = this.buf.duplicate();
+		view.position(offset);
+		view.get(out);
+		return out;
+	}
+	
+	private void writeBytes(int offset, byte[] data) {
+		ByteBuffer view = this.buf.duplicate();
+		view.position(offset);
+		view.put(data, 0, NumLightBytes);
+	}
+	
+	private int getNibble(int offset, int i) {
+		return (this.buf.get(offset + (i >> 1)) >> ((i & 1) << 2)) & 0xf;
+	}
+	
+	private void setNibble(int offset, int i, int val) {
+		int shift = (i & 1) << 2;
+		int pos = offset + (i >> 1);
+		this.buf.put(pos, (byte)((this.buf.get(pos) & ~(0xf << shift)) | ((val & 0xf) << shift)));
+	}
+	
+	private static boolean isAir(char id) {
+		// air is block id 0, whatever the metadata
+		return (id >> 4) == 0;
+	}
+	
+	private static int getIndex(int localX, int localY, int localZ) {
+		return localY << 8 | localZ << 4 | localX;
+	}
+}
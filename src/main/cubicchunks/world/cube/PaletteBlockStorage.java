@@ -0,0 +1,448 @@
+/*
+ *  This file is part of Cubic Chunks, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2014 Tall Worlds
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package cubicchunks.world.cube;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.minecraft.block.Block;
+import net.minecraft.block.Blocks;
+import net.minecraft.block.state.IBlockState;
+
+import cubicchunks.world.ChunkSectionHelper;
+
+/**
+ * Block storage that keeps a small palette of the block states in the cube and 1, 2, 4 or 8 bit indices into it.
+ * <p>
+ * The palette grows on demand. If a cube ever needs more than 256 block states, it falls back to one vanilla-encoded char per block.
+ * Light arrays are only allocated once some light is non-zero, which is never for most underground cubes.
+ */
+public class PaletteBlockStorage implements IBlockStorage {
+	
+	private static final int NumBlocks = 16 * 16 * 16;
+	private static final int NumLightBytes = NumBlocks / 2;
+	private static final byte[] NoLight = new byte[NumLightBytes];
+	private static final int MaxBits = 8;
+	
+	private IBlockState[] palette;
+	private char[] paletteIds;
+	private int paletteSize;
+	private int bits;
+	private long[] indices;
+	private char[] directIds;
+	private int numNonAirBlocks;
+	private boolean hasSky;
+	private byte[] blockLight;
+	private byte[] skyLight;
+	
+	// counts us and the live snapshots sharing our arrays, we have to copy them before changing anything while it's over 1
+	private AtomicInteger refs;
+	private boolean isSnapshot;
+	
+	public PaletteBlockStorage(boolean hasSky) {
+		this.hasSky = hasSky;
+		this.blockLight = null;
+		this.skyLight = null;
+		this.refs = new AtomicInteger(1);
+		this.isSnapshot = false;
+		clearBlocks();
+	}
+	
+	private void clearBlocks() {
+		// index 0 is always air, so new storage is all air
+		this.palette = new IBlockState[2];
+		this.paletteIds = new char[2];
+		this.palette[0] = Blocks.AIR.getDefaultState();
+		this.paletteIds[0] = ChunkSectionHelper.getBlockStateId(this.palette[0]);
+		this.paletteSize = 1;
+		this.bits = 1;
+		this.indices = new long[NumBlocks * this.bits / 64];
+		this.directIds = null;
+		this.numNonAirBlocks = 0;
+	}
+	
+	public int getNumBitsPerBlock() {
+		return this.directIds != null ? 16 : this.bits;
+	}
+	
+	@Override
+	public IBlockState getBlockState(int localX, int localY, int localZ) {
+		int i = getIndex(localX, localY, localZ);
+		if (this.directIds != null) {
+			return ChunkSectionHelper.getBlockState(this.directIds[i]);
+		}
+		return this.palette[getPaletteIndex(i)];
+	}
+	
+	@Override
+	public void setBlockState(int localX, int localY, int localZ, IBlockState blockState) {
+		unshare();
+		int i = getIndex(localX, localY, localZ);
+		
+		// keep track of how many non-air blocks we have
+		if (getBlockState(localX, localY, localZ).getBlock() != Blocks.AIR) {
+			this.numNonAirBlocks--;
+		}
+		if (blockState.getBlock() != Blocks.AIR) {
+			this.numNonAirBlocks++;
+		}
+		
+		if (this.directIds == null) {
+			int paletteIndex = getOrAddPaletteIndex(blockState);
+			if (paletteIndex >= 0) {
+				setPaletteIndex(i, paletteIndex);
+				return;
+			}
+			
+			// the palette overflowed, we're using direct ids now
+		}
+		
+		this.directIds[i] = ChunkSectionHelper.getBlockStateId(blockState);
+	}
+	
+	@Override
+	public Block getBlock(int localX, int localY, int localZ) {
+		return getBlockState(localX, localY, localZ).getBlock();
+	}
+	
+	@Override
+	public int getBlockLight(int localX, int localY, int localZ) {
+		return getNibble(this.blockLight, getIndex(localX, localY, localZ));
+	}
+	
+	@Override
+	public void setBlockLight(int localX, int localY, int localZ, int light) {
+		unshare();
+		if (this.blockLight == null) {
+			if (light == 0) {
+				return;
+			}
+			this.blockLight = new byte[NumLightBytes];
+		}
+		setNibble(this.blockLight, getIndex(localX, localY, localZ), light);
+	}
+	
+	@Override
+	public int getSkyLight(int localX, int localY, int localZ) {
+		return getNibble(this.skyLight, getIndex(localX, localY, localZ));
+	}
+	
+	@Override
+	public void setSkyLight(int localX, int localY, int localZ, int light) {
+		if (!this.hasSky) {
+			return;
+		}
+		unshare();
+		if (this.skyLight == null) {
+			if (light == 0) {
+				return;
+			}
+			this.skyLight = new byte[NumLightBytes];
+		}
+		setNibble(this.skyLight, getIndex(localX, localY, localZ), light);
+	}
+	
+	@Override
+	public boolean hasBlocks() {
+		return this.numNonAirBlocks > 0;
+	}
+	
+	@Override
+	public char[] getBlockData() {
+		if (this.directIds != null) {
+			return this.directIds.clone();
+		}
+		
+		char[] out = new char[NumBlocks];
+		for (int i = 0; i < NumBlocks; i++) {
+			out[i] = this.paletteIds[getPaletteIndex(i)];
+		}
+		return out;
+	}
+	
+	@Override
+	public void setBlockData(char[] data) {
+		unshare();
+		clearBlocks();
+		
+		// runs of the same block are really common, so remember the last lookup
+		char lastId = this.paletteIds[0];
+		int lastPaletteIndex = 0;
+		for (int i = 0; i < NumBlocks; i++) {
+			char id = data[i];
+			if ((id >> 4) != 0) {
+				this.numNonAirBlocks++;
+			}
+			
+			if (this.directIds != null) {
+				this.directIds[i] = id;
+				continue;
+			}
+			
+			if (id != lastId) {
+				lastPaletteIndex = getOrAddPaletteIndex(id);
+				lastId = id;
+				if (lastPaletteIndex < 0) {
+					// the palette overflowed, switch to direct ids
+					this.directIds[i] = id;
+					continue;
+				}
+			}
+			setPaletteIndex(i, lastPaletteIndex);
+		}
+	}
+	
+	@Override
+	public byte[] getBlockLightData() {
+		if (this.isSnapshot) {
+			// snapshots never change, but their owner can once they're released, so the caller gets a copy
+			return this.blockLight == null ? new byte[NumLightBytes] : this.blockLight.clone();
+		}
+		
+		// the caller gets the live array
+		unshare();
+		if (this.blockLight == null) {
+			this.blockLight = new byte[NumLightBytes];
+		}
+		return this.blockLight;
+	}
+	
+	@Override
+	public void setBlockLightData(byte[] data) {
+		this.blockLight = data;
+	}
+	
+	@Override
+	public byte[] getSkyLightData() {
+		if (!this.hasSky) {
+			return null;
+		}
+		if (this.isSnapshot) {
+			return this.skyLight == null ? new byte[NumLightBytes] : this.skyLight.clone();
+		}
+		unshare();
+		if (this.skyLight == null) {
+			this.skyLight = new byte[NumLightBytes];
+		}
+		return this.skyLight;
+	}
+	
+	@Override
+	public void setSkyLightData(byte[] data) {
+		if (this.hasSky) {
+			this.skyLight = data;
+		}
+	}
+	
+	@Override
+	public void writeBlockLight(DataOutput out) throws IOException {
+		// missing light is all zeros, no need to make the array for it
+		out.write(this.blockLight == null ? NoLight : this.blockLight);
+	}
+	
+	@Override
+	public void writeSkyLight(DataOutput out) throws IOException {
+		if (this.hasSky) {
+			out.write(this.skyLight == null ? NoLight : this.skyLight);
+		}
+	}
+	
+	@Override
+	public IBlockStorage copy() {
+		PaletteBlockStorage out = new PaletteBlockStorage(this.hasSky);
+		out.palette = this.palette.clone();
+		out.paletteIds = this.paletteIds.clone();
+		out.paletteSize = this.paletteSize;
+		out.bits = this.bits;
+		out.indices = this.indices == null ? null : this.indices.clone();
+		out.directIds = this.directIds == null ? null : this.directIds.clone();
+		out.numNonAirBlocks = this.numNonAirBlocks;
+		out.blockLight = this.blockLight == null ? null : this.blockLight.clone();
+		out.skyLight = this.skyLight == null ? null : this.skyLight.clone();
+		return out;
+	}
+	
+	@Override
+	public IBlockStorage snapshot() {
+		PaletteBlockStorage out = new PaletteBlockStorage(this.hasSky);
+		out.palette = this.palette;
+		out.paletteIds = this.paletteIds;
+		out.paletteSize = this.paletteSize;
+		out.bits = this.bits;
+		out.indices = this.indices;
+		out.directIds = this.directIds;
+		out.numNonAirBlocks = this.numNonAirBlocks;
+		out.blockLight = this.blockLight;
+		out.skyLight = this.skyLight;
+		out.isSnapshot = true;
+		
+		// the snapshot never changes, so only we have to copy
+		this.refs.incrementAndGet();
+		out.refs = this.refs;
+		return out;
+	}
+	
+	private void unshare() {
+		// NOTE: snapshots only ever release their reference, so if we're the only one left, no one can share it again
+		if (this.refs.get() <= 1) {
+			return;
+		}
+		this.palette = this.palette.clone();
+		this.paletteIds = this.paletteIds.clone();
+		this.indices = this.indices == null ? null : this.indices.clone();
+		this.directIds = this.directIds == null ? null : this.directIds.clone();
+		this.blockLight = this.blockLight == null ? null : this.blockLight.clone();
+		this.skyLight = this.skyLight == null ? null : this.skyLight.clone();
+		this.refs.decrementAndGet();
+		this.refs = new AtomicInteger(1);
+	}
+	
+	@Override
+	public long getMemoryEstimate() {
+		// count the arrays, the palette's block states are shared
+		long bytes = 64 + this.palette.length * 4 + this.paletteIds.length * 2;
+		if (this.indices != null) {
+			bytes += this.indices.length * 8;
+		}
+		if (this.directIds != null) {
+			bytes += this.directIds.length * 2;
+		}
+		if (this.blockLight != null) {
+			bytes += NumLightBytes;
+		}
+		if (this.skyLight != null) {
+			bytes += NumLightBytes;
+		}
+		return bytes;
+	}
+	
+	@Override
+	public long getOffHeapMemoryEstimate() {
+		return 0;
+	}
+	
+	@Override
+	public void release() {
+		// it's all on the heap, but the owner doesn't have to copy for us anymore
+		if (this.refs != null) {
+			this.refs.decrementAndGet();
+			this.refs = null;
+		}
+	}
+	
+	private int getOrAddPaletteIndex(IBlockState blockState) {
+		for (int i = 0; i < this.paletteSize; i++) {
+			if (this.palette[i] == blockState) {
+				return i;
+			}
+		}
+		return addToPalette(blockState, ChunkSectionHelper.getBlockStateId(blockState));
+	}
+	
+	private int getOrAddPaletteIndex(char id) {
+		for (int i = 0; i < this.paletteSize; i++) {
+			if (this.paletteIds[i] == id) {
+				return i;
+			}
+		}
+		return addToPalette(ChunkSectionHelper.getBlockState(id), id);
+	}
+	
+	private int addToPalette(IBlockState blockState, char id) {
+		
+		// do we need more bits?
+		if (this.paletteSize == 1 << this.bits) {
+			if (this.bits == MaxBits) {
+				convertToDirectIds();
+				return -1;
+			}
+			resize(this.bits * 2);
+		}
+		
+		this.palette[this.paletteSize] = blockState;
+		this.paletteIds[this.paletteSize] = id;
+		return this.paletteSize++;
+	}
+	
+	private void resize(int newBits) {
+		
+		// NOTE: bits is always a power of two, so indices never straddle two longs
+		long[] oldIndices = this.indices;
+		int oldBits = this.bits;
+		
+		this.bits = newBits;
+		this.indices = new long[NumBlocks * newBits / 64];
+		for (int i = 0; i < NumBlocks; i++) {
+			setPaletteIndex(i, getPaletteIndex(oldIndices, oldBits, i));
+		}
+		
+		IBlockState[] newPalette = new IBlockState[1 << newBits];
+		System.arraycopy(this.palette, 0, newPalette, 0, this.paletteSize);
+		this.palette = newPalette;
+		char[] newPaletteIds = new char[1 << newBits];
+		System.arraycopy(this.paletteIds, 0, newPaletteIds, 0, this.paletteSize);
+		this.paletteIds = newPaletteIds;
+	}
+	
+	private void convertToDirectIds() {
+		this.directIds = new char[NumBlocks];
+		for (int i = 0; i < NumBlocks; i++) {
+			this.directIds[i] = this.paletteIds[getPaletteIndex(i)];
+		}
+		this.indices = null;
+	}
+	
+	private int getPaletteIndex(int i) {
+		return getPaletteIndex(this.indices, this.bits, i);
+	}
+	
+	private static int getPaletteIndex(long[] indices, int bits, int i) {
+		int bitIndex = i * bits;
+		return (int)(indices[bitIndex >> 6] >>> (bitIndex & 63)) & ((1 << bits) - 1);
+	}
+	
+	private void setPaletteIndex(int i, int paletteIndex) {
+		int bitIndex = i * this.bits;
+		int shift = bitIndex & 63;
+		long mask = ((1L << this.bits) - 1) << shift;
+		this.indices[bitIndex >> 6] = (this.indices[bitIndex >> 6] & ~mask) | ((long)paletteIndex << shift);
+	}
+	
+	private static int getIndex(int localX, int localY, int localZ) {
+		return localY << 8 | localZ << 4 | localX;
+	}
+	
+	private static int getNibble(byte[] nibbles, int i) {
+		if (nibbles == null) {
+			return 0;
+		}
+		return (nibbles[i >> 1] >> ((i & 1) << 2)) & 0xf;
+	}
+	
+	private static void setNibble(byte[] nibbles, int i, int val) {
+		int shift = (i & 1) << 2;
+		nibbles[i >> 1] = (byte)((nibbles[i >> 1] & ~(0xf << shift)) | ((val & 0xf) << shift));
+	}
+}
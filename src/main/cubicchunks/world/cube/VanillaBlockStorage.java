@@ -0,0 +1,226 @@
+/*
+ *  This file is part of Cubic Chunks, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2014 Tall Worlds
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package cubicchunks.world.cube;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.minecraft.block.Block;
+import net.minecraft.block.state.IBlockState;
+import net.minecraft.world.chunk.NibbleArray;
+import net.minecraft.world.chunk.storage.ChunkSection;
+
+/**
+ * Block storage backed by a vanilla chunk section.
+ */
+public class VanillaBlockStorage implements IBlockStorage {
+	
+	private static final int NumBlocks = 16 * 16 * 16;
+	
+	// block chars, the block light nibbles and the section itself
+	private static final long BaseBytes = NumBlocks * 2 + NumBlocks / 2 + 64;
+	private static final long SkyLightBytes = NumBlocks / 2;
+	
+	private int minBlockY;
+	private ChunkSection section;
+	
+	// counts us and the live snapshots sharing our section, we have to copy it before changing anything while it's over 1
+	private AtomicInteger refs;
+	private boolean isSnapshot;
+	
+	public VanillaBlockStorage(int minBlockY, boolean hasSky) {
+		this(minBlockY, new ChunkSection(minBlockY, hasSky), new AtomicInteger(1), false);
+	}
+	
+	private VanillaBlockStorage(int minBlockY, ChunkSection section, AtomicInteger refs, boolean isSnapshot) {
+		this.minBlockY = minBlockY;
+		this.section = section;
+		this.refs = refs;
+		this.isSnapshot = isSnapshot;
+	}
+	
+	public ChunkSection getSection() {
+		// the caller can change the section
+		unshare();
+		return this.section;
+	}
+	
+	@Override
+	public IBlockState getBlockState(int localX, int localY, int localZ) {
+		return this.section.getBlockStateAt(localX, localY, localZ);
+	}
+	
+	@Override
+	public void setBlockState(int localX, int localY, int localZ, IBlockState blockState) {
+		unshare();
+		this.section.setBlockStateAt(localX, localY, localZ, blockState);
+	}
+	
+	@Override
+	public Block getBlock(int localX, int localY, int localZ) {
+		return this.section.getBlockAt(localX, localY, localZ);
+	}
+	
+	@Override
+	public int getBlockLight(int localX, int localY, int localZ) {
+		return this.section.getBlockLightAtCoords(localX, localY, localZ);
+	}
+	
+	@Override
+	public void setBlockLight(int localX, int localY, int localZ, int light) {
+		unshare();
+		this.section.setBlockLightAtCoords(localX, localY, localZ, light);
+	}
+	
+	@Override
+	public int getSkyLight(int localX, int localY, int localZ) {
+		return this.section.getSkyLightAtCoords(localX, localY, localZ);
+	}
+	
+	@Override
+	public void setSkyLight(int localX, int localY, int localZ, int light) {
+		unshare();
+		this.section.setSkyLightAtCoords(localX, localY, localZ, light);
+	}
+	
+	@Override
+	public boolean hasBlocks() {
+		return !this.section.isSectionEmpty();
+	}
+	
+	@Override
+	public char[] getBlockData() {
+		return this.section.getBlockDataArray().clone();
+	}
+	
+	@Override
+	public void setBlockData(char[] data) {
+		unshare();
+		System.arraycopy(data, 0, this.section.getBlockDataArray(), 0, data.length);
+		this.section.countBlocksInSection();
+	}
+	
+	@Override
+	public byte[] getBlockLightData() {
+		if (this.isSnapshot) {
+			// snapshots never change, but their owner can once they're released, so the caller gets a copy
+			return this.section.getBlockLightArray().get().clone();
+		}
+		
+		// the caller gets the live array
+		unshare();
+		return this.section.getBlockLightArray().get();
+	}
+	
+	@Override
+	public void setBlockLightData(byte[] data) {
+		unshare();
+		this.section.setBlockLightArray(new NibbleArray(data));
+	}
+	
+	@Override
+	public byte[] getSkyLightData() {
+		if (this.section.getSkyLightArray() == null) {
+			return null;
+		}
+		if (this.isSnapshot) {
+			return this.section.getSkyLightArray().get().clone();
+		}
+		unshare();
+		return this.section.getSkyLightArray().get();
+	}
+	
+	@Override
+	public void setSkyLightData(byte[] data) {
+		if (this.section.getSkyLightArray() != null) {
+			unshare();
+			this.section.setSkyLightArray(new NibbleArray(data));
+		}
+	}
+	
+	@Override
+	public void writeBlockLight(DataOutput out) throws IOException {
+		out.write(this.section.getBlockLightArray().get());
+	}
+	
+	@Override
+	public void writeSkyLight(DataOutput out) throws IOException {
+		if (this.section.getSkyLightArray() != null) {
+			out.write(this.section.getSkyLightArray().get());
+		}
+	}
+	
+	@Override
+	public long getMemoryEstimate() {
+		return this.section.getSkyLightArray() == null ? BaseBytes : BaseBytes + SkyLightBytes;
+	}
+	
+	@Override
+	public long getOffHeapMemoryEstimate() {
+		return 0;
+	}
+	
+	@Override
+	public void release() {
+		// it's all on the heap, but the owner doesn't have to copy for us anymore
+		if (this.refs != null) {
+			this.refs.decrementAndGet();
+			this.refs = null;
+		}
+	}
+	
+	@Override
+	public IBlockStorage copy() {
+		return new VanillaBlockStorage(this.minBlockY, copySection(), new AtomicInteger(1), false);
+	}
+	
+	@Override
+	public IBlockStorage snapshot() {
+		// the snapshot never changes, so only we have to copy
+		this.refs.incrementAndGet();
+		return new VanillaBlockStorage(this.minBlockY, this.section, this.refs, true);
+	}
+	
+	private void unshare() {
+		// NOTE: snapshots only ever release their reference, so if we're the only one left, no one can share it again
+		if (this.refs.get() > 1) {
+			this.section = copySection();
+			this.refs.decrementAndGet();
+			this.refs = new AtomicInteger(1);
+		}
+	}
+	
+	private ChunkSection copySection() {
+		NibbleArray skyLight = this.section.getSkyLightArray();
+		ChunkSection out = new ChunkSection(this.minBlockY, skyLight != null);
+		System.arraycopy(this.section.getBlockDataArray(), 0, out.getBlockDataArray(), 0, NumBlocks);
+		out.countBlocksInSection();
+		out.setBlockLightArray(new NibbleArray(this.section.getBlockLightArray().get().clone()));
+		if (skyLight != null) {
+			out.setSkyLightArray(new NibbleArray(skyLight.get().clone()));
+		}
+		return out;
+	}
+}
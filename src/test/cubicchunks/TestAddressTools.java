@@ -87,4 +87,32 @@ public class TestAddressTools {
 			}
 		}
 	}
-}
\ No newline at end of file
+	
+	@Test
+	public void testStorageKeys() {
+		for (int x = -32; x <= 32; x++) {
+			for (int y = -32; y <= 32; y++) {
+				for (int z = -32; z <= 32; z++) {
+					long address = AddressTools.getAddress(x, y, z);
+					assertEquals(address, AddressTools.getAddressFromStorageKey(AddressTools.getStorageKey(x, y, z)));
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void testStorageKeyColumnsAreContiguous() {
+		int[] coords = { AddressTools.MinX, -1, 0, 1, AddressTools.MaxX };
+		for (int x : coords) {
+			for (int z : coords) {
+				// every column is one run of keys, sorted by y
+				long minKey = AddressTools.getStorageKey(x, AddressTools.MinY, z);
+				long maxKey = AddressTools.getStorageKey(x, AddressTools.MaxY, z);
+				assertEquals((long)AddressTools.MaxY - AddressTools.MinY, maxKey - minKey);
+				for (int y = -32; y <= 32; y++) {
+					assertEquals(minKey + y - AddressTools.MinY, AddressTools.getStorageKey(x, y, z));
+				}
+			}
+		}
+	}
+}
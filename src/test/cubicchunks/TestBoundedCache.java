@@ -0,0 +1,122 @@
+/*
+ *  This file is part of Cubic Chunks, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2014 Tall Worlds
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package cubicchunks;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import cubicchunks.cache.BoundedCache;
+import cubicchunks.cache.ICacheWeigher;
+import cubicchunks.cache.LongBoundedCache;
+
+public class TestBoundedCache {
+	
+	@Test
+	public void evictsLeastRecentlyUsed() {
+		BoundedCache<String,Integer> cache = new BoundedCache<String,Integer>(3);
+		cache.put("a", 1);
+		cache.put("b", 2);
+		cache.put("c", 3);
+		
+		// using a makes b the eldest
+		assertEquals(Integer.valueOf(1), cache.get("a"));
+		cache.put("d", 4);
+		
+		assertEquals(3, cache.size());
+		assertFalse(cache.containsKey("b"));
+		assertTrue(cache.containsKey("a"));
+		assertTrue(cache.containsKey("c"));
+		assertTrue(cache.containsKey("d"));
+		assertEquals(1, cache.getEvictions());
+	}
+	
+	@Test
+	public void stats() {
+		BoundedCache<String,Integer> cache = new BoundedCache<String,Integer>(10);
+		cache.put("a", 1);
+		cache.get("a");
+		cache.get("a");
+		cache.get("b");
+		assertEquals(2, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		assertEquals(2.0 / 3.0, cache.getHitRate(), 1e-9);
+		cache.resetStats();
+		assertEquals(0, cache.getHits());
+		assertEquals(0, cache.getMisses());
+	}
+	
+	@Test
+	public void weigher() {
+		BoundedCache<String,byte[]> cache = new BoundedCache<String,byte[]>(100, new ICacheWeigher<byte[]>() {
+			
+			@Override
+			public int getWeight(byte[] value) {
+				return value.length;
+			}
+		});
+		cache.put("a", new byte[40]);
+		cache.put("b", new byte[40]);
+		assertEquals(80, cache.getWeight());
+		
+		// replacing a value updates the weight
+		cache.put("b", new byte[10]);
+		assertEquals(50, cache.getWeight());
+		
+		// a big value pushes out the eldest entries
+		cache.put("c", new byte[60]);
+		assertFalse(cache.containsKey("a"));
+		assertEquals(70, cache.getWeight());
+		
+		// a value bigger than the whole budget doesn't stay
+		cache.put("d", new byte[200]);
+		assertTrue(cache.isEmpty());
+		assertEquals(0, cache.getWeight());
+		
+		cache.put("e", new byte[5]);
+		assertEquals(5, cache.remove("e").length);
+		assertEquals(0, cache.getWeight());
+	}
+	
+	@Test
+	public void longKeys() {
+		LongBoundedCache<String> cache = new LongBoundedCache<String>(100);
+		for (long key = 0; key < 1000; key++) {
+			cache.put(key, Long.toString(key));
+			
+			// keep the first key hot
+			assertEquals("0", cache.get(0));
+		}
+		assertEquals(100, cache.size());
+		assertEquals(900, cache.getEvictions());
+		assertEquals("0", cache.get(0));
+		assertEquals("999", cache.get(999));
+		assertNull(cache.get(500));
+		assertEquals("901", cache.remove(901));
+		assertEquals(99, cache.size());
+		cache.clear();
+		assertTrue(cache.isEmpty());
+		assertEquals(0, cache.getWeight());
+	}
+}
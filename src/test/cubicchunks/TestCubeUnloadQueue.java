@@ -0,0 +1,92 @@
+/*
+ *  This file is part of Cubic Chunks, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2014 Tall Worlds
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package cubicchunks;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import cubicchunks.server.CubeUnloadQueue;
+import cubicchunks.util.AddressTools;
+
+public class TestCubeUnloadQueue {
+	
+	@Test
+	public void dedupesAndGroupsByColumn() {
+		CubeUnloadQueue queue = new CubeUnloadQueue();
+		assertTrue(queue.add(AddressTools.getAddress(1, 5, 2)));
+		assertTrue(queue.add(AddressTools.getAddress(3, 0, 4)));
+		assertTrue(queue.add(AddressTools.getAddress(1, -2, 2)));
+		assertFalse(queue.add(AddressTools.getAddress(1, 5, 2)));
+		assertEquals(3, queue.size());
+		
+		// columns come out in the order their first cube went in
+		List<Integer> cubeYs = new ArrayList<Integer>();
+		assertEquals(AddressTools.getAddress(1, 2), queue.pollColumn(cubeYs));
+		assertEquals(Arrays.asList(-2, 5), cubeYs);
+		
+		cubeYs.clear();
+		assertEquals(AddressTools.getAddress(3, 4), queue.pollColumn(cubeYs));
+		assertEquals(Arrays.asList(0), cubeYs);
+		
+		assertTrue(queue.isEmpty());
+		assertEquals(-1, queue.pollColumn(cubeYs));
+	}
+	
+	@Test
+	public void cancel() {
+		CubeUnloadQueue queue = new CubeUnloadQueue();
+		long a = AddressTools.getAddress(1, 5, 2);
+		long b = AddressTools.getAddress(7, 1, 7);
+		queue.add(a);
+		queue.add(b);
+		assertTrue(queue.contains(a));
+		assertTrue(queue.remove(a));
+		assertFalse(queue.remove(a));
+		assertFalse(queue.contains(a));
+		assertEquals(1, queue.size());
+		
+		// cancelled cubes don't come out
+		List<Integer> cubeYs = new ArrayList<Integer>();
+		assertEquals(AddressTools.getAddress(7, 7), queue.pollColumn(cubeYs));
+		assertEquals(Arrays.asList(1), cubeYs);
+		assertEquals(-1, queue.pollColumn(cubeYs));
+		assertEquals(0, queue.size());
+		
+		// re-queuing a cancelled cube keeps its column's spot
+		queue.add(a);
+		queue.add(b);
+		queue.remove(a);
+		queue.add(a);
+		cubeYs.clear();
+		assertEquals(AddressTools.getAddress(1, 2), queue.pollColumn(cubeYs));
+		assertEquals(Arrays.asList(5), cubeYs);
+		assertEquals(AddressTools.getAddress(7, 7), queue.pollColumn(cubeYs));
+		assertTrue(queue.isEmpty());
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ *  This file is part of Cubic Chunks, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2014 Tall Worlds
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package cubicchunks;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import cubicchunks.util.DenseIntMap;
+
+public class TestDenseIntMap {
+	
+	@Test
+	public void growsBothWays() {
+		DenseIntMap<String> map = new DenseIntMap<String>();
+		for (int y = 0; y <= 100; y++) {
+			map.put(y, "up" + y);
+			map.put(-y, "down" + y);
+		}
+		assertEquals(201, map.size());
+		assertEquals(-100, map.firstKey());
+		assertEquals(100, map.lastKey());
+		assertEquals("up50", map.get(50));
+		assertEquals("down50", map.get(-50));
+		assertNull(map.get(101));
+	}
+	
+	@Test
+	public void sparseKeys() {
+		DenseIntMap<String> map = new DenseIntMap<String>();
+		map.put(0, "a");
+		map.put(1000000, "b");
+		map.put(-1000000, "c");
+		assertEquals("a", map.get(0));
+		assertEquals("b", map.get(1000000));
+		assertEquals("c", map.get(-1000000));
+		assertEquals(-1000000, map.firstKey());
+		assertEquals(1000000, map.lastKey());
+		assertEquals("b", map.remove(1000000));
+		assertEquals(0, map.lastKey());
+	}
+	
+	@Test
+	public void sameAsTreeMap() {
+		Random random = new Random(12345);
+		DenseIntMap<Integer> map = new DenseIntMap<Integer>();
+		TreeMap<Integer,Integer> expected = new TreeMap<Integer,Integer>();
+		for (int i = 0; i < 100000; i++) {
+			// mostly nearby keys, with some outliers
+			int key = random.nextInt(10) == 0 ? random.nextInt(100000) - 50000 : random.nextInt(600) - 300;
+			if (random.nextInt(3) > 0) {
+				assertEquals(expected.put(key, i), map.put(key, i));
+			} else {
+				assertEquals(expected.remove(key), map.remove(key));
+			}
+			assertEquals(expected.size(), map.size());
+		}
+		
+		assertEquals((int)expected.firstKey(), map.firstKey());
+		assertEquals((int)expected.lastKey(), map.lastKey());
+		assertEquals(new ArrayList<Integer>(expected.values()), new ArrayList<Integer>(map.values()));
+		assertEquals(new ArrayList<Integer>(expected.keySet()), toList(map.keys()));
+	}
+	
+	private static ArrayList<Integer> toList(Iterable<Integer> values) {
+		ArrayList<Integer> out = new ArrayList<Integer>();
+		for (Integer value : values) {
+			out.add(value);
+		}
+		return out;
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ *  This file is part of Cubic Chunks, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2014 Tall Worlds
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package cubicchunks;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import cubicchunks.util.DirectBufferPool;
+
+public class TestDirectBufferPool {
+	
+	@Test
+	public void slicesDontOverlap() {
+		DirectBufferPool pool = new DirectBufferPool(100, 4);
+		List<ByteBuffer> bufs = new ArrayList<ByteBuffer>();
+		for (int i = 0; i < 10; i++) {
+			ByteBuffer buf = pool.allocate();
+			assertTrue(buf.isDirect());
+			assertEquals(100, buf.capacity());
+			for (int j = 0; j < 100; j++) {
+				buf.put(j, (byte)i);
+			}
+			bufs.add(buf);
+		}
+		for (int i = 0; i < 10; i++) {
+			for (int j = 0; j < 100; j++) {
+				assertEquals(i, bufs.get(i).get(j));
+			}
+		}
+		assertEquals(10, pool.getNumAllocated());
+		assertEquals(3 * 4 * 100, pool.getCapacityBytes());
+	}
+	
+	@Test
+	public void reusesFreedSlices() {
+		DirectBufferPool pool = new DirectBufferPool(100, 4);
+		ByteBuffer buf = pool.allocate();
+		buf.put(7, (byte)42);
+		buf.put(99, (byte)42);
+		pool.free(buf);
+		assertEquals(0, pool.getNumAllocated());
+		
+		// we get the same slice back, zeroed
+		ByteBuffer again = pool.allocate();
+		assertSame(buf, again);
+		for (int i = 0; i < 100; i++) {
+			assertEquals(0, again.get(i));
+		}
+		assertEquals(4 * 100, pool.getCapacityBytes());
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsForeignBuffers() {
+		new DirectBufferPool(100, 4).free(ByteBuffer.allocateDirect(50));
+	}
+}
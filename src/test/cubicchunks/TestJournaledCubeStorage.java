@@ -0,0 +1,170 @@
+/*
+ *  This file is part of Cubic Chunks, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2014 Tall Worlds
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package cubicchunks;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import cubicchunks.server.storage.ICubeStorage;
+import cubicchunks.server.storage.JournaledCubeStorage;
+import cubicchunks.util.AddressTools;
+
+public class TestJournaledCubeStorage {
+	
+	private File m_file;
+	
+	@Before
+	public void setUp() throws IOException {
+		m_file = File.createTempFile("cubes", ".journal");
+	}
+	
+	@After
+	public void tearDown() {
+		m_file.delete();
+	}
+	
+	@Test
+	public void replayAfterCrash() throws IOException {
+		MemoryStorage inner = new MemoryStorage();
+		JournaledCubeStorage storage = new JournaledCubeStorage(inner, m_file, Long.MAX_VALUE, Long.MAX_VALUE);
+		storage.writeCube(AddressTools.getAddress(1, 2, 3), new byte[] { 1, 2, 3 });
+		storage.writeColumn(AddressTools.getAddress(1, 3), new byte[] { 4, 5 });
+		storage.commit();
+		assertEquals(0, storage.getUnsyncedBytes());
+		
+		// the inner storage never committed, so a crash loses everything but the journal
+		inner.crash();
+		assertFalse(inner.cubeExists(AddressTools.getAddress(1, 2, 3)));
+		
+		storage = new JournaledCubeStorage(inner, m_file, Long.MAX_VALUE, Long.MAX_VALUE);
+		assertArrayEquals(new byte[] { 1, 2, 3 }, storage.readCube(AddressTools.getAddress(1, 2, 3)));
+		assertArrayEquals(new byte[] { 4, 5 }, storage.readColumn(AddressTools.getAddress(1, 3)));
+		assertEquals(0, storage.getJournalBytes());
+	}
+	
+	@Test
+	public void checkpoint() throws IOException {
+		MemoryStorage inner = new MemoryStorage();
+		JournaledCubeStorage storage = new JournaledCubeStorage(inner, m_file, Long.MAX_VALUE, 1);
+		storage.writeCube(AddressTools.getAddress(1, 2, 3), new byte[] { 1, 2, 3 });
+		storage.commit();
+		
+		// the journal was big enough to move into the inner storage
+		assertEquals(0, storage.getJournalBytes());
+		assertEquals(0, m_file.length());
+		inner.crash();
+		assertTrue(inner.cubeExists(AddressTools.getAddress(1, 2, 3)));
+	}
+	
+	@Test
+	public void tornWrite() throws IOException {
+		MemoryStorage inner = new MemoryStorage();
+		JournaledCubeStorage storage = new JournaledCubeStorage(inner, m_file, Long.MAX_VALUE, Long.MAX_VALUE);
+		storage.writeCube(AddressTools.getAddress(1, 2, 3), new byte[] { 1, 2, 3 });
+		storage.writeCube(AddressTools.getAddress(4, 5, 6), new byte[] { 4, 5, 6 });
+		storage.commit();
+		inner.crash();
+		
+		// lose the last byte of the second entry
+		RandomAccessFile file = new RandomAccessFile(m_file, "rw");
+		file.setLength(file.length() - 1);
+		file.close();
+		
+		storage = new JournaledCubeStorage(inner, m_file, Long.MAX_VALUE, Long.MAX_VALUE);
+		assertArrayEquals(new byte[] { 1, 2, 3 }, storage.readCube(AddressTools.getAddress(1, 2, 3)));
+		assertFalse(storage.cubeExists(AddressTools.getAddress(4, 5, 6)));
+	}
+	
+	private static class MemoryStorage implements ICubeStorage {
+		
+		private Map<Long,byte[]> m_columns = new HashMap<Long,byte[]>();
+		private Map<Long,byte[]> m_cubes = new HashMap<Long,byte[]>();
+		private Map<Long,byte[]> m_committedColumns = new HashMap<Long,byte[]>();
+		private Map<Long,byte[]> m_committedCubes = new HashMap<Long,byte[]>();
+		
+		public void crash() {
+			m_columns = new HashMap<Long,byte[]>(m_committedColumns);
+			m_cubes = new HashMap<Long,byte[]>(m_committedCubes);
+		}
+		
+		@Override
+		public boolean columnExists(long address) {
+			return m_columns.containsKey(address);
+		}
+		
+		@Override
+		public byte[] readColumn(long address) {
+			return m_columns.get(address);
+		}
+		
+		@Override
+		public void writeColumn(long address, byte[] data) {
+			m_columns.put(address, data);
+		}
+		
+		@Override
+		public boolean cubeExists(long address) {
+			return m_cubes.containsKey(address);
+		}
+		
+		@Override
+		public byte[] readCube(long address) {
+			return m_cubes.get(address);
+		}
+		
+		@Override
+		public void writeCube(long address, byte[] data) {
+			m_cubes.put(address, data);
+		}
+		
+		@Override
+		public void readCubes(int cubeX, int cubeZ, int minCubeY, int maxCubeY, Map<Long,byte[]> out) {
+			for (int cubeY = minCubeY; cubeY <= maxCubeY; cubeY++) {
+				long address = AddressTools.getAddress(cubeX, cubeY, cubeZ);
+				if (m_cubes.containsKey(address)) {
+					out.put(address, m_cubes.get(address));
+				}
+			}
+		}
+		
+		@Override
+		public void commit() {
+			m_committedColumns = new HashMap<Long,byte[]>(m_columns);
+			m_committedCubes = new HashMap<Long,byte[]>(m_cubes);
+		}
+		
+		@Override
+		public void close() {
+		}
+	}
+}
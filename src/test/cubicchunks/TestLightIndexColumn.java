@@ -23,6 +23,7 @@
  */
 package cubicchunks;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
 import java.io.ByteArrayInputStream;
@@ -30,6 +31,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.Random;
 
 import org.junit.Test;
 
@@ -154,6 +156,91 @@ public class TestLightIndexColumn {
 		assertEquals(null, index.getTopNonTransparentBlockY());
 	}
 	
+	@Test
+	public void topOpaqueBlockBelowSeaLevel() {
+		LightIndexColumn index = new LightIndexColumn(SeaLevel);
+		
+		assertEquals(null, index.getTopOpaqueBlockBelowSeaLevel());
+		
+		index.setOpacity(-10, 1);
+		assertEquals(null, index.getTopOpaqueBlockBelowSeaLevel());
+		
+		index.setOpacity(-5, 255);
+		assertEquals(-4, (int)index.getTopOpaqueBlockBelowSeaLevel());
+		
+		index.setOpacity(-4, 255);
+		assertEquals(-3, (int)index.getTopOpaqueBlockBelowSeaLevel());
+		
+		// above sea level doesn't count
+		index.setOpacity(5, 255);
+		assertEquals(-3, (int)index.getTopOpaqueBlockBelowSeaLevel());
+		
+		index.setOpacity(-5, 0);
+		index.setOpacity(-4, 0);
+		assertEquals(null, index.getTopOpaqueBlockBelowSeaLevel());
+	}
+	
+	@Test
+	public void writeAndRead() throws IOException {
+		LightIndexColumn index = buildColumn(-20, 255, -3, 0, 0, 1, 7, 0, 100, 200, 101, 0);
+		
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(buf);
+		index.writeData(out);
+		out.close();
+		
+		LightIndexColumn copy = new LightIndexColumn(SeaLevel);
+		copy.readData(new DataInputStream(new ByteArrayInputStream(buf.toByteArray())));
+		for (int i = -32; i <= 128; i++) {
+			assertEquals(index.getOpacity(i), copy.getOpacity(i));
+		}
+		assertEquals(255, copy.getOpacity(-20));
+		assertEquals(200, copy.getOpacity(100));
+		assertEquals(index.dump(), copy.dump());
+	}
+	
+	@Test
+	public void randomWrites() throws IOException {
+		final int MinY = -64;
+		final int MaxY = 64;
+		
+		// check against a plain array of opacities
+		int[] expected = new int[MaxY - MinY + 1];
+		LightIndexColumn index = new LightIndexColumn(SeaLevel);
+		Random random = new Random(12345);
+		for (int n = 0; n < 10000; n++) {
+			int blockY = MinY + random.nextInt(expected.length);
+			int opacity = random.nextInt(4) == 0 ? 255 : random.nextInt(3);
+			expected[blockY - MinY] = opacity;
+			index.setOpacity(blockY, opacity);
+		}
+		
+		int[] observed = new int[expected.length];
+		for (int i = 0; i < observed.length; i++) {
+			observed[i] = index.getOpacity(MinY + i);
+		}
+		assertArrayEquals(expected, observed);
+		assertEquals(0, index.getOpacity(MinY - 1));
+		
+		// the runs should be as short as possible, one at each change in opacity
+		int numRuns = 0;
+		int lastOpacity = 0;
+		for (int opacity : expected) {
+			if (opacity != lastOpacity) {
+				numRuns++;
+			}
+			lastOpacity = opacity;
+		}
+		if (lastOpacity != 0) {
+			numRuns++;
+		}
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(buf);
+		index.writeData(out);
+		out.close();
+		assertEquals(2 + numRuns * 5, buf.size());
+	}
+	
 	private LightIndexColumn buildColumn(int... data) {
 		try {
 			// write the data
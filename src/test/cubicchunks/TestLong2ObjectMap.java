@@ -0,0 +1,98 @@
+/*
+ *  This file is part of Cubic Chunks, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2014 Tall Worlds
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package cubicchunks;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import cubicchunks.util.AddressTools;
+import cubicchunks.util.Long2ObjectMap;
+
+public class TestLong2ObjectMap {
+	
+	@Test
+	public void putGetRemove() {
+		Long2ObjectMap<String> map = new Long2ObjectMap<String>();
+		assertTrue(map.isEmpty());
+		assertNull(map.put(5, "a"));
+		assertEquals("a", map.put(5, "b"));
+		assertEquals("b", map.get(5));
+		assertTrue(map.containsKey(5));
+		assertFalse(map.containsKey(6));
+		assertEquals(1, map.size());
+		assertEquals("b", map.remove(5));
+		assertNull(map.remove(5));
+		assertNull(map.get(5));
+		assertTrue(map.isEmpty());
+	}
+	
+	@Test
+	public void sameAsHashMap() {
+		// lots of clustered keys, like cube addresses, to exercise collisions and backward shifts
+		Random random = new Random(12345);
+		Long2ObjectMap<Long> map = new Long2ObjectMap<Long>();
+		HashMap<Long,Long> expected = new HashMap<Long,Long>();
+		for (int i = 0; i < 200000; i++) {
+			long key = AddressTools.getAddress(random.nextInt(40) - 20, random.nextInt(40) - 20, random.nextInt(40) - 20);
+			if (random.nextInt(3) > 0) {
+				assertEquals(expected.put(key, (long)i), map.put(key, (long)i));
+			} else {
+				assertEquals(expected.remove(key), map.remove(key));
+			}
+			assertEquals(expected.size(), map.size());
+		}
+		for (Map.Entry<Long,Long> entry : expected.entrySet()) {
+			assertEquals(entry.getValue(), map.get(entry.getKey()));
+		}
+	}
+	
+	@Test
+	public void iterate() {
+		Long2ObjectMap<Long> map = new Long2ObjectMap<Long>();
+		HashSet<Long> expected = new HashSet<Long>();
+		for (long key = -500; key < 500; key += 3) {
+			map.put(key, key);
+			expected.add(key);
+		}
+		
+		HashSet<Long> observed = new HashSet<Long>();
+		for (int i = map.firstIndex(); i >= 0; i = map.nextIndex(i)) {
+			assertEquals((Long)map.getKeyAt(i), map.getValueAt(i));
+			assertTrue(observed.add(map.getKeyAt(i)));
+		}
+		assertEquals(expected, observed);
+		
+		observed.clear();
+		for (Long value : map.values()) {
+			observed.add(value);
+		}
+		assertEquals(expected, observed);
+	}
+}
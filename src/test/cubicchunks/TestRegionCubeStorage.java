@@ -0,0 +1,131 @@
+/*
+ *  This file is part of Cubic Chunks, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2014 Tall Worlds
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package cubicchunks;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import cubicchunks.server.storage.RegionCubeStorage;
+import cubicchunks.util.AddressTools;
+
+public class TestRegionCubeStorage {
+	
+	private File m_dir;
+	
+	@Before
+	public void setUp() throws IOException {
+		m_dir = File.createTempFile("cubes", "");
+		m_dir.delete();
+		m_dir.mkdirs();
+	}
+	
+	@After
+	public void tearDown() {
+		delete(m_dir);
+	}
+	
+	@Test
+	public void missing() throws IOException {
+		RegionCubeStorage storage = new RegionCubeStorage(m_dir);
+		assertFalse(storage.cubeExists(AddressTools.getAddress(1, 2, 3)));
+		assertNull(storage.readCube(AddressTools.getAddress(1, 2, 3)));
+		assertFalse(storage.columnExists(AddressTools.getAddress(1, 3)));
+		assertNull(storage.readColumn(AddressTools.getAddress(1, 3)));
+		storage.close();
+		
+		// reads shouldn't create region files
+		assertFalse(new File(m_dir, "cubes").exists());
+	}
+	
+	@Test
+	public void readWrite() throws IOException {
+		RegionCubeStorage storage = new RegionCubeStorage(m_dir);
+		for (int x = -20; x <= 20; x += 5) {
+			for (int y = -20; y <= 20; y += 5) {
+				for (int z = -20; z <= 20; z += 5) {
+					storage.writeCube(AddressTools.getAddress(x, y, z), makeData(x, y, z));
+				}
+				storage.writeColumn(AddressTools.getAddress(x, y), makeData(x, 0, y));
+			}
+		}
+		storage.commit();
+		storage.close();
+		
+		storage = new RegionCubeStorage(m_dir);
+		for (int x = -20; x <= 20; x += 5) {
+			for (int y = -20; y <= 20; y += 5) {
+				for (int z = -20; z <= 20; z += 5) {
+					assertTrue(storage.cubeExists(AddressTools.getAddress(x, y, z)));
+					assertArrayEquals(makeData(x, y, z), storage.readCube(AddressTools.getAddress(x, y, z)));
+				}
+				assertArrayEquals(makeData(x, 0, y), storage.readColumn(AddressTools.getAddress(x, y)));
+			}
+		}
+		storage.close();
+	}
+	
+	@Test
+	public void overwrite() throws IOException {
+		RegionCubeStorage storage = new RegionCubeStorage(m_dir);
+		long address = AddressTools.getAddress(5, 6, 7);
+		long neighbor = AddressTools.getAddress(5, 7, 7);
+		storage.writeCube(address, new byte[100]);
+		storage.writeCube(neighbor, makeData(1, 2, 3));
+		
+		// grow then shrink the entry, the neighbor shouldn't notice
+		byte[] big = makeData(9, 9, 9);
+		big = Arrays.copyOf(big, 5000);
+		storage.writeCube(address, big);
+		assertArrayEquals(big, storage.readCube(address));
+		storage.writeCube(address, new byte[] { 1, 2, 3 });
+		assertArrayEquals(new byte[] { 1, 2, 3 }, storage.readCube(address));
+		assertArrayEquals(makeData(1, 2, 3), storage.readCube(neighbor));
+		storage.close();
+	}
+	
+	private byte[] makeData(int x, int y, int z) {
+		byte[] data = new byte[700 + Math.abs(x * y * z) % 300];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte)(x + y * 7 + z * 13 + i);
+		}
+		return data;
+	}
+	
+	private void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}